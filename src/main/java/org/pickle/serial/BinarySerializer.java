@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import java.io.*;
+
+/**
+ * A Serializer for hand-written binary formats. Subclasses write the fields of
+ * an object to a DataOutput and read them back in the same order, which avoids
+ * the class descriptors and reflection of Java serialization:
+ * <pre><code>
+ * public class PointSerializer extends BinarySerializer&lt;Point&gt; {
+ *   protected void write(Point point, DataOutput out) throws IOException {
+ *     out.writeInt(point.x);
+ *     out.writeInt(point.y);
+ *   }
+ *   protected Point read(DataInput in) throws IOException {
+ *     return new Point(in.readInt(), in.readInt());
+ *   }
+ * }
+ * </code></pre>
+ */
+public abstract class BinarySerializer<E> implements Serializer<E> {
+
+    private final int initialSize;
+
+    protected BinarySerializer() {
+        this(64);
+    }
+
+    /**
+     * @param initialSize the expected size in bytes of a serialized object
+     */
+    protected BinarySerializer(int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * Writes the fields of the object.
+     */
+    protected abstract void write(E object, DataOutput out) throws IOException;
+
+    /**
+     * Reads the fields written by {@link #write} and returns the object.
+     */
+    protected abstract E read(DataInput in) throws IOException;
+
+    @Override
+    public byte[] serialize(E object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(initialSize);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            write(object, out);
+            out.flush();
+        } catch (IOException e) {
+            throw new SerializationException("Unable to serialize " + object.getClass().getName(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public E deserialize(byte[] bytes) {
+        try {
+            return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new SerializationException("Unable to deserialize " + bytes.length + " bytes", e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.*;
+
+/**
+ * A Serializer that deflates the output of another Serializer when it is at
+ * least a threshold size. Every stored value starts with a header recording
+ * how it was written, so compressed and uncompressed values can be mixed in
+ * one collection and the threshold can be changed at any time:
+ * <pre>
+ *   [0] raw bytes
+ *   [1] [int raw length] deflated bytes
+ *   [2] [int raw length] [int dictionary Adler-32] bytes deflated with the dictionary
+ * </pre>
+ * A value is stored raw if deflating does not make it smaller.
+ *
+ * Small values compress poorly on their own because they cannot refer to the
+ * similar values stored before them. A preset dictionary, such as the
+ * serialized form of a typical element, gives every value that shared history;
+ * the same dictionary must be given to read the values back.
+ *
+ * Values written by a {@link JavaSerializer} before compression was enabled
+ * have no header but start with the Java serialization magic number, so they
+ * are still read. Other serializers must be wrapped before the first value is
+ * stored.
+ */
+public class CompressingSerializer<E> implements Serializer<E> {
+
+    /**
+     * The default minimum size in bytes of a value that is compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final byte DEFLATE_DICTIONARY = 2;
+    private static final int DEFLATE_HEADER_BYTES = 5;
+    private static final int DICTIONARY_HEADER_BYTES = 9;
+
+    private final Serializer<E> serializer;
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    public CompressingSerializer(Serializer<E> serializer) {
+        this(serializer, DEFAULT_THRESHOLD);
+    }
+
+    public CompressingSerializer(Serializer<E> serializer, int threshold) {
+        this(serializer, threshold, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * @param serializer the Serializer whose output is compressed
+     * @param threshold the minimum size in bytes of a value that is compressed
+     * @param level the Deflater compression level
+     * @param dictionary a preset dictionary, or null for none
+     */
+    public CompressingSerializer(Serializer<E> serializer, int threshold, int level, byte[] dictionary) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        }
+        this.serializer = serializer;
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionary = dictionary != null ? dictionary.clone() : null;
+        this.dictionaryId = dictionary != null ? adler32(dictionary) : 0;
+    }
+
+    @Override
+    public byte[] serialize(E object) {
+        byte[] raw = serializer.serialize(object);
+        if (raw.length >= threshold) {
+            byte[] compressed = deflate(raw);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        byte[] bytes = new byte[raw.length + 1];
+        bytes[0] = RAW;
+        System.arraycopy(raw, 0, bytes, 1, raw.length);
+        return bytes;
+    }
+
+    @Override
+    public E deserialize(byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new SerializationException("Missing compression header.");
+        }
+        switch (bytes[0]) {
+            case RAW:
+                return serializer.deserialize(Arrays.copyOfRange(bytes, 1, bytes.length));
+            case DEFLATE:
+                return serializer.deserialize(inflate(bytes, DEFLATE_HEADER_BYTES));
+            case DEFLATE_DICTIONARY:
+                if (dictionary == null || ByteBuffer.wrap(bytes, 5, 4).getInt() != dictionaryId) {
+                    throw new SerializationException("Value was compressed with a different dictionary.");
+                }
+                return serializer.deserialize(inflate(bytes, DICTIONARY_HEADER_BYTES));
+            case (byte) 0xAC:
+                if (bytes.length > 1 && bytes[1] == (byte) 0xED) {
+                    return serializer.deserialize(bytes);
+                }
+                throw unknownCodec(bytes[0]);
+            default:
+                throw unknownCodec(bytes[0]);
+        }
+    }
+
+    private static SerializationException unknownCodec(byte codec) {
+        return new SerializationException("Unknown compression codec: " + codec);
+    }
+
+    /**
+     * Returns the header and deflated bytes, or null if they are no smaller
+     * than the raw value with its header.
+     */
+    private byte[] deflate(byte[] raw) {
+        int headerBytes = dictionary != null ? DICTIONARY_HEADER_BYTES : DEFLATE_HEADER_BYTES;
+        Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + headerBytes);
+            ByteBuffer header = ByteBuffer.allocate(headerBytes);
+            header.put(dictionary != null ? DEFLATE_DICTIONARY : DEFLATE).putInt(raw.length);
+            if (dictionary != null) {
+                header.putInt(dictionaryId);
+            }
+            out.write(header.array(), 0, headerBytes);
+            byte[] buffer = new byte[Math.min(raw.length + 64, 64 * 1024)];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() > raw.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] bytes, int headerBytes) {
+        int length = ByteBuffer.wrap(bytes, 1, 4).getInt();
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, headerBytes, bytes.length - headerBytes);
+            int offset = 0;
+            while (offset < length) {
+                int inflated = inflater.inflate(raw, offset, length - offset);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new SerializationException("Compressed value is truncated.");
+                    }
+                }
+                offset += inflated;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new SerializationException("Compressed value is corrupt.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int adler32(byte[] bytes) {
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, bytes.length);
+        return (int) adler.getValue();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import java.io.*;
+
+/**
+ * A Serializer using Java serialization, the default for collections created
+ * without one. Its output is the same as that of H2 for OTHER columns, so it
+ * reads objects stored by earlier versions of pickle.
+ */
+public class JavaSerializer<E> implements Serializer<E> {
+
+    @Override
+    public byte[] serialize(E object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        } catch (IOException e) {
+            throw new SerializationException("Unable to serialize " + object.getClass().getName(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E deserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (E) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new SerializationException("Unable to deserialize object", e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import org.pickle.sql.DatabaseException;
+
+/**
+ * Thrown by a {@link Serializer} that cannot convert an object. It extends
+ * DatabaseException so that callers handling storage failures also handle it.
+ */
+public class SerializationException extends DatabaseException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SerializationException(String message) {
+        super(message);
+    }
+
+    public SerializationException(String message, Throwable throwable) {
+        super(message, throwable);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+/**
+ * Converts the elements of a persistent collection to and from the bytes that
+ * are stored for them. Implementations must be thread safe, and deserialize()
+ * must accept every array that serialize() has produced, including arrays
+ * written by earlier runs.
+ *
+ * @see Serializers
+ */
+public interface Serializer<E> {
+
+    /**
+     * Returns the stored form of the object, which is never null.
+     *
+     * @throws SerializationException if the object cannot be serialized
+     */
+    byte[] serialize(E object);
+
+    /**
+     * Returns the object whose stored form is bytes.
+     *
+     * @throws SerializationException if the bytes cannot be read
+     */
+    E deserialize(byte[] bytes);
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The built-in Serializers. The codecs for strings, byte arrays and boxed
+ * primitives store only the value itself, without the class descriptor that
+ * Java serialization adds to every object.
+ */
+public final class Serializers {
+
+    /**
+     * Stores strings as UTF-8.
+     */
+    public static final Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public byte[] serialize(String object) {
+            return object.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Stores byte arrays as they are. The arrays are not copied, so they must
+     * not be modified after they are added to a collection.
+     */
+    public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+        @Override
+        public byte[] serialize(byte[] object) {
+            return object;
+        }
+
+        @Override
+        public byte[] deserialize(byte[] bytes) {
+            return bytes;
+        }
+    };
+
+    public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+        @Override
+        public byte[] serialize(Integer object) {
+            return ByteBuffer.allocate(4).putInt(object).array();
+        }
+
+        @Override
+        public Integer deserialize(byte[] bytes) {
+            return wrap(bytes, 4).getInt();
+        }
+    };
+
+    public static final Serializer<Long> LONG = new Serializer<Long>() {
+        @Override
+        public byte[] serialize(Long object) {
+            return ByteBuffer.allocate(8).putLong(object).array();
+        }
+
+        @Override
+        public Long deserialize(byte[] bytes) {
+            return wrap(bytes, 8).getLong();
+        }
+    };
+
+    public static final Serializer<Short> SHORT = new Serializer<Short>() {
+        @Override
+        public byte[] serialize(Short object) {
+            return ByteBuffer.allocate(2).putShort(object).array();
+        }
+
+        @Override
+        public Short deserialize(byte[] bytes) {
+            return wrap(bytes, 2).getShort();
+        }
+    };
+
+    public static final Serializer<Byte> BYTE = new Serializer<Byte>() {
+        @Override
+        public byte[] serialize(Byte object) {
+            return new byte[]{object};
+        }
+
+        @Override
+        public Byte deserialize(byte[] bytes) {
+            return wrap(bytes, 1).get();
+        }
+    };
+
+    public static final Serializer<Character> CHARACTER = new Serializer<Character>() {
+        @Override
+        public byte[] serialize(Character object) {
+            return ByteBuffer.allocate(2).putChar(object).array();
+        }
+
+        @Override
+        public Character deserialize(byte[] bytes) {
+            return wrap(bytes, 2).getChar();
+        }
+    };
+
+    public static final Serializer<Boolean> BOOLEAN = new Serializer<Boolean>() {
+        @Override
+        public byte[] serialize(Boolean object) {
+            return new byte[]{(byte) (object ? 1 : 0)};
+        }
+
+        @Override
+        public Boolean deserialize(byte[] bytes) {
+            return wrap(bytes, 1).get() != 0;
+        }
+    };
+
+    public static final Serializer<Float> FLOAT = new Serializer<Float>() {
+        @Override
+        public byte[] serialize(Float object) {
+            return ByteBuffer.allocate(4).putFloat(object).array();
+        }
+
+        @Override
+        public Float deserialize(byte[] bytes) {
+            return wrap(bytes, 4).getFloat();
+        }
+    };
+
+    public static final Serializer<Double> DOUBLE = new Serializer<Double>() {
+        @Override
+        public byte[] serialize(Double object) {
+            return ByteBuffer.allocate(8).putDouble(object).array();
+        }
+
+        @Override
+        public Double deserialize(byte[] bytes) {
+            return wrap(bytes, 8).getDouble();
+        }
+    };
+
+    private static final Serializer<Object> JAVA = new JavaSerializer<>();
+
+    private Serializers() {
+    }
+
+    /**
+     * Returns the Java serialization Serializer.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> Serializer<E> java() {
+        return (Serializer<E>) JAVA;
+    }
+
+    /**
+     * Returns the built-in Serializer for exactly the given class, or the Java
+     * serialization Serializer if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> Serializer<E> forClass(Class<E> type) {
+        Serializer<?>[] serializers = {STRING, BYTES, INTEGER, LONG, SHORT, BYTE, CHARACTER, BOOLEAN, FLOAT, DOUBLE};
+        Class<?>[] types = {String.class, byte[].class, Integer.class, Long.class, Short.class, Byte.class,
+            Character.class, Boolean.class, Float.class, Double.class};
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == type) {
+                return (Serializer<E>) serializers[i];
+            }
+        }
+        return java();
+    }
+
+    private static ByteBuffer wrap(byte[] bytes, int length) {
+        if (bytes.length != length) {
+            throw new SerializationException(String.format("Expected %d bytes but found %d.", length, bytes.length));
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+}
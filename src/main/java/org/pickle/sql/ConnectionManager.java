@@ -5,8 +5,18 @@ package org.pickle.sql;
 
 import java.io.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import org.apache.log4j.Logger;
 import org.h2.jdbcx.JdbcDataSource;
 import org.h2.tools.DeleteDbFiles;
@@ -19,14 +29,87 @@ import org.pickle.Disposable;
  * This class creates or opens an H2 database and provides access to a JDBC
  * Connection to the database. The connection is automatically closed on
  * finalize(), but calling dispose() is preferable.
+ *
+ * Writes made through the ConnectionManager variants of {@link JdbcTemplate}
+ * are committed according to the manager's {@link Durability}. With
+ * GROUP_COMMIT and ASYNC, a background thread commits all pending writes once
+ * per commit window. Callers that must not return before their writes are
+ * durable call {@link #awaitCommit()} after releasing any locks of their own,
+ * so that writes from other threads can join the same commit.
+ *
+ * A thread may group writes into a transaction with
+ * {@link JdbcTemplate#openTransaction}. The thread holds the write lock for
+ * the whole transaction, so other threads' writes wait for it to end. All
+ * threads share one Connection for writes.
+ *
+ * Queries made through the ConnectionManager variant of
+ * {@link JdbcTemplate#executeQuery} run in parallel on a pool of read-only
+ * connections to the same database, which see only committed data. A query
+ * runs on the write connection instead when the calling thread is writing or
+ * in a transaction, or while deferred writes are pending, so that every query
+ * sees the writes that completed before it started.
+ *
+ * Each connection keeps its PreparedStatements in a cache of up to
+ * {@link #STATEMENT_CACHE_SIZE} statements, so that the SQL run by the
+ * collections is not parsed and planned again on every call.
  */
 public class ConnectionManager implements Disposable {
     private static final Logger log = Logger.getLogger(ConnectionManager.class);
+
+    /**
+     * The default time, in milliseconds, that GROUP_COMMIT and ASYNC collect
+     * writes before committing them.
+     */
+    public static final long DEFAULT_COMMIT_WINDOW_MILLIS = 2;
+
+    /**
+     * The default maximum number of pooled read connections.
+     */
+    public static final int DEFAULT_READ_CONNECTIONS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The maximum number of PreparedStatements cached for each connection.
+     */
+    public static final int STATEMENT_CACHE_SIZE = 32;
+
     private final String dbName = "pickle";
     private final File dataDir;
     private final String createSql;
     private final String jdbcUrl;
+    private final Durability durability;
+    private final long commitWindowMillis;
+    private final int readConnections;
     private Connection connection;
+    // The write connection's statements, used only by the thread holding the write lock.
+    private StatementCache writeStatements;
+    // Idle read connections, and the number opened, which never exceeds readConnections.
+    private final BlockingQueue<StatementCache> idleReaders = new LinkedBlockingQueue<>();
+    private int openReaders;
+    private volatile boolean open;
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    // Held while a statement executes and while pending writes are committed, so that a group commit
+    // never splits a statement from the counter updates made in its JdbcTemplate.updated().
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition writesPending = commitLock.newCondition();
+    private final Condition writesCommitted = commitLock.newCondition();
+    private final Condition closed = commitLock.newCondition();
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+    // Sequence numbers of the last deferred write and of the last write covered by a commit.
+    private long writeSeq;
+    private long commitSeq;
+    // The failed group commits by the last ticket they covered, so that every waiter is told of its failure.
+    private final TreeMap<Long, FailedCommit> commitFailures = new TreeMap<>();
+    private Thread committer;
+    private volatile boolean closing;
+    // Guarded by the write lock, which the thread running a transaction holds throughout.
+    private int transactionDepth;
+    private boolean rollbackOnly;
+    // Actions waiting for the transaction to commit; see afterCommit().
+    private final List<Runnable> commitActions = new ArrayList<>();
+    private final List<Runnable> rollbackListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Opens an H2 database located in dataDir. If the database does not exist,
@@ -37,9 +120,50 @@ public class ConnectionManager implements Disposable {
      * @param createSql the SQL creation script
      */
     public ConnectionManager(File dataDir, String createSql) {
+        this(dataDir, createSql, Durability.SYNC, DEFAULT_COMMIT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Opens an H2 database located in dataDir, committing writes according to
+     * the given durability mode.
+     *
+     * @param dataDir the base directory of the database
+     * @param createSql the SQL creation script
+     * @param durability when writes are committed
+     * @param commitWindowMillis how long GROUP_COMMIT and ASYNC collect writes
+     * before committing them
+     */
+    public ConnectionManager(File dataDir, String createSql, Durability durability, long commitWindowMillis) {
+        this(dataDir, createSql, durability, commitWindowMillis, DEFAULT_READ_CONNECTIONS);
+    }
+
+    /**
+     * Opens an H2 database located in dataDir, committing writes according to
+     * the given durability mode and running queries on up to readConnections
+     * pooled connections.
+     *
+     * @param dataDir the base directory of the database
+     * @param createSql the SQL creation script
+     * @param durability when writes are committed
+     * @param commitWindowMillis how long GROUP_COMMIT and ASYNC collect writes
+     * before committing them
+     * @param readConnections the maximum number of pooled read connections, or
+     * zero to run every query on the write connection
+     */
+    public ConnectionManager(File dataDir, String createSql, Durability durability, long commitWindowMillis,
+            int readConnections) {
+        if (commitWindowMillis < 0) {
+            throw new IllegalArgumentException("Commit window must not be negative: " + commitWindowMillis);
+        }
+        if (readConnections < 0) {
+            throw new IllegalArgumentException("Read connections must not be negative: " + readConnections);
+        }
         this.dataDir = dataDir;
         this.createSql = createSql;
         this.jdbcUrl = String.format("jdbc:h2:%s/%s", dataDir.getAbsolutePath(), dbName);
+        this.durability = durability;
+        this.commitWindowMillis = commitWindowMillis;
+        this.readConnections = readConnections;
         init();
 
         JdbcTemplate.executeUpdate(connection, createSql);
@@ -51,16 +175,316 @@ public class ConnectionManager implements Disposable {
                     String.format("'%s' is not a writable directory or does not exist.", dataDir));
         } else {
             try {
-                JdbcDataSource ds = new JdbcDataSource();
-                ds.setURL(jdbcUrl);
-                ds.setUser("sa");
-                ds.setPassword("");
-                connection = ds.getConnection();
+                connection = connect();
                 log.info("Opened database connection to "+jdbcUrl);
                 connection.setAutoCommit(false);
+                writeStatements = new StatementCache(connection, STATEMENT_CACHE_SIZE, statementHits,
+                        statementMisses);
             } catch (SQLException e) {
                 throw new DatabaseException("Unable to connect to H2 database at: " + jdbcUrl, e);
             }
+            open = true;
+            if (durability != Durability.SYNC) {
+                closing = false;
+                committer = new Thread("pickle-committer " + jdbcUrl) {
+                    @Override
+                    public void run() {
+                        commitLoop();
+                    }
+                };
+                committer.setDaemon(true);
+                committer.start();
+            }
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL(jdbcUrl);
+        ds.setUser("sa");
+        ds.setPassword("");
+        return ds.getConnection();
+    }
+
+    /**
+     * Returns the durability mode of writes made through this manager.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Blocks until every write made by the calling thread through this manager
+     * has been committed. This returns immediately unless the durability mode
+     * is GROUP_COMMIT, since SYNC writes are already committed and ASYNC writes
+     * are never waited for.
+     *
+     * @throws DatabaseException if the group commit covering the calling
+     * thread's writes failed and they were rolled back
+     */
+    public void awaitCommit() {
+        Long ticket = lastWrite.get();
+        if (ticket == null) {
+            return;
+        }
+        lastWrite.remove();
+        if (durability != Durability.GROUP_COMMIT) {
+            return;
+        }
+        commitLock.lock();
+        try {
+            while (commitSeq < ticket) {
+                writesCommitted.awaitUninterruptibly();
+            }
+            Map.Entry<Long, FailedCommit> failed = commitFailures.ceilingEntry(ticket);
+            if (failed != null && ticket > failed.getValue().from) {
+                throw failed.getValue().failure;
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Commits all pending GROUP_COMMIT or ASYNC writes immediately.
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            long target;
+            commitLock.lock();
+            try {
+                target = writeSeq;
+                if (target == commitSeq) {
+                    return;
+                }
+            } finally {
+                commitLock.unlock();
+            }
+            DatabaseException failure = null;
+            try {
+                connection.commit();
+            } catch (SQLException e) {
+                failure = new DatabaseException("Unable to commit pending writes to: " + jdbcUrl, e);
+                log.error(failure.getMessage(), e);
+                try {
+                    connection.rollback();
+                } catch (SQLException rollbackException) {
+                    log.warn("Pending writes could not be rolled back.", rollbackException);
+                }
+                runRollbackListeners();
+            }
+            commitLock.lock();
+            try {
+                if (failure != null && durability == Durability.GROUP_COMMIT) {
+                    commitFailures.put(target, new FailedCommit(commitSeq, failure));
+                }
+                commitSeq = target;
+                writesCommitted.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Acquires the lock held while a statement is executed and committed.
+     */
+    void lockWrites() {
+        writeLock.lock();
+    }
+
+    void unlockWrites() {
+        writeLock.unlock();
+    }
+
+    /**
+     * Returns true if the calling thread has an open transaction on this
+     * manager.
+     */
+    public boolean isInTransaction() {
+        return writeLock.isHeldByCurrentThread() && transactionDepth > 0;
+    }
+
+    /**
+     * Registers an action run after a transaction or a failed group commit is
+     * rolled back, so that state mirrored in memory, such as a
+     * {@link Counter}, can be reloaded. Listeners run while the write lock is
+     * held, possibly on the committer thread.
+     */
+    public void addRollbackListener(Runnable listener) {
+        rollbackListeners.add(listener);
+    }
+
+    /**
+     * Opens or joins the calling thread's transaction, holding the write lock
+     * until it ends. Pending deferred writes of other threads are committed
+     * first so that a rollback cannot undo them.
+     */
+    void beginTransaction() {
+        writeLock.lock();
+        if (transactionDepth++ == 0) {
+            rollbackOnly = false;
+            flush();
+        }
+    }
+
+    void commitTransaction() {
+        checkTransaction();
+        try {
+            if (--transactionDepth > 0) {
+                return;
+            }
+            if (rollbackOnly) {
+                rollback();
+                throw new DatabaseException("Transaction was rolled back by a nested transaction.");
+            }
+            try {
+                written(connection);
+            } catch (SQLException e) {
+                rollback();
+                throw new DatabaseException("Unable to commit transaction to: " + jdbcUrl, e);
+            }
+            List<Runnable> actions = new ArrayList<>(commitActions);
+            commitActions.clear();
+            for (Runnable action : actions) {
+                runCommitAction(action);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void rollbackTransaction() {
+        checkTransaction();
+        try {
+            if (--transactionDepth > 0) {
+                rollbackOnly = true;
+            } else {
+                rollback();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void checkTransaction() {
+        if (!isInTransaction()) {
+            throw new IllegalStateException("No transaction is open on this thread.");
+        }
+    }
+
+    private void rollback() {
+        rollbackOnly = false;
+        commitActions.clear();
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            log.warn("A transaction could not be rolled back.", e);
+        }
+        runRollbackListeners();
+    }
+
+    private void runRollbackListeners() {
+        for (Runnable listener : rollbackListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                // The rollback has happened; a listener must not stop the others or the commit bookkeeping.
+                log.error("A rollback listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Runs an action once the write just recorded by {@link #written} has
+     * been committed, or handed to the committer with GROUP_COMMIT and ASYNC.
+     * Within a transaction the action waits until the outermost transaction
+     * commits, and is dropped if it is rolled back. The calling thread must
+     * hold the write lock, which it keeps while the action runs, so that the
+     * action cannot interleave with the rollback listeners.
+     */
+    void afterCommit(Runnable action) {
+        if (transactionDepth > 0) {
+            commitActions.add(action);
+        } else {
+            runCommitAction(action);
+        }
+    }
+
+    private void runCommitAction(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            // The write has been committed; a failed action must not stop the others.
+            log.error("A commit action failed.", e);
+        }
+    }
+
+    /**
+     * Records a successful write by the calling thread, which must hold the
+     * write lock, and commits it unless the commit is deferred or the write is
+     * part of a transaction, which commits when it ends.
+     */
+    void written(Connection connection) throws SQLException {
+        if (transactionDepth > 0) {
+            return;
+        }
+        if (durability == Durability.SYNC) {
+            connection.commit();
+        } else {
+            commitLock.lock();
+            try {
+                lastWrite.set(++writeSeq);
+                writesPending.signal();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            commitLock.lock();
+            try {
+                while (writeSeq == commitSeq && !closing) {
+                    writesPending.awaitUninterruptibly();
+                }
+                if (writeSeq == commitSeq) {
+                    return;
+                }
+                // Let further writes join this commit until the window ends or dispose() is called.
+                long nanos = TimeUnit.MILLISECONDS.toNanos(commitWindowMillis);
+                while (nanos > 0 && !closing) {
+                    nanos = closed.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Committer interrupted; committing pending writes early.", e);
+            } finally {
+                commitLock.unlock();
+            }
+            flush();
+        }
+    }
+
+    private void stopCommitter() {
+        if (committer != null) {
+            commitLock.lock();
+            try {
+                closing = true;
+                writesPending.signal();
+                closed.signal();
+            } finally {
+                commitLock.unlock();
+            }
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer = null;
         }
     }
 
@@ -70,11 +494,7 @@ public class ConnectionManager implements Disposable {
             dispose();
             File tempFile = File.createTempFile(dataDir.getName(),"-pickle.sql.gz");
             long initialSize = getDirectorySize(dataDir);
-            try (FileOutputStream file = new FileOutputStream(tempFile)) {
-                GZIPOutputStream out = new GZIPOutputStream(file);
-                Script.execute(jdbcUrl, "sa", "", out);
-                out.close();
-            }
+            Script.process(jdbcUrl, "sa", "", tempFile.getAbsolutePath(), "", "COMPRESSION GZIP");
             DeleteDbFiles.execute(dataDir.getAbsolutePath(), dbName, true);
             init();
             FileInputStream fileIn = new FileInputStream(tempFile);
@@ -115,12 +535,131 @@ public class ConnectionManager implements Disposable {
     }
 
     /**
-     * Closes the JDBC Connection. This ConnectionManager becomes unusable.
+     * Returns the statement cache of the write connection if the calling
+     * thread holds the write lock, and so has the connection's statements to
+     * itself, or null otherwise.
+     */
+    StatementCache writeStatements() {
+        return writeLock.isHeldByCurrentThread() ? writeStatements : null;
+    }
+
+    /**
+     * Returns the number of statements found in the statement caches of this
+     * manager's connections.
+     */
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    /**
+     * Returns the number of statements prepared because they were not in the
+     * statement cache of their connection.
+     */
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    /**
+     * Checks out a pooled read connection, with its statement cache, for a
+     * query by the calling thread, opening one if fewer than the maximum are
+     * open and waiting for one to be returned otherwise. Returns null if the
+     * query must run on the write connection: when the pool is empty, when the
+     * thread holds the write lock because it is writing or in a transaction,
+     * or while deferred writes, which other connections cannot see, are
+     * pending.
+     *
+     * @return the connection's statements, to be passed to
+     * {@link #returnReader}, or null
+     */
+    StatementCache borrowReader() {
+        if (readConnections == 0 || !open || writeLock.isHeldByCurrentThread()) {
+            return null;
+        }
+        if (durability != Durability.SYNC) {
+            commitLock.lock();
+            try {
+                if (writeSeq != commitSeq) {
+                    return null;
+                }
+            } finally {
+                commitLock.unlock();
+            }
+        }
+        StatementCache reader = idleReaders.poll();
+        if (reader != null) {
+            return reader;
+        }
+        synchronized (idleReaders) {
+            if (openReaders < readConnections) {
+                try {
+                    Connection readConnection = connect();
+                    readConnection.setReadOnly(true);
+                    reader = new StatementCache(readConnection, STATEMENT_CACHE_SIZE, statementHits,
+                            statementMisses);
+                } catch (SQLException e) {
+                    throw new DatabaseException("Unable to connect to H2 database at: " + jdbcUrl, e);
+                }
+                openReaders++;
+                return reader;
+            }
+        }
+        try {
+            // Stop waiting if the manager is disposed; the query then fails on the closed write connection.
+            while (open) {
+                reader = idleReaders.poll(100, TimeUnit.MILLISECONDS);
+                if (reader != null) {
+                    return reader;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a connection to: " + jdbcUrl, e);
+        }
+    }
+
+    /**
+     * Returns a connection checked out by {@link #borrowReader} to the pool,
+     * closing it if this manager has been disposed.
+     */
+    void returnReader(StatementCache reader) {
+        if (open) {
+            idleReaders.add(reader);
+            if (open) {
+                return;
+            }
+            // Disposed concurrently; fall through to close whatever is idle.
+        }
+        closeReaders();
+    }
+
+    private void closeReaders() {
+        StatementCache reader;
+        while ((reader = idleReaders.poll()) != null) {
+            synchronized (idleReaders) {
+                openReaders--;
+            }
+            reader.clear();
+            try {
+                reader.getConnection().close();
+            } catch (SQLException e) {
+                log.warn("Failed to close read connection to "+jdbcUrl, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the JDBC Connections. This ConnectionManager becomes unusable.
      */
     @Override
     public void dispose() {
+        open = false;
+        closeReaders();
+        stopCommitter();
+        flush();
         try {
             if (!connection.isClosed()) {
+                writeStatements.clear();
                 connection.close();
                 log.info("Closed database connection to "+jdbcUrl);
             }
@@ -139,4 +678,18 @@ public class ConnectionManager implements Disposable {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A group commit that failed, rolling back the writes with tickets after
+     * from up to the ticket it is stored under.
+     */
+    private static final class FailedCommit {
+        final long from;
+        final DatabaseException failure;
+
+        FailedCommit(long from, DatabaseException failure) {
+            this.from = from;
+            this.failure = failure;
+        }
+    }
+}
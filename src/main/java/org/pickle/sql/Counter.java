@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.sql;
+
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named count that is persisted in the COUNTER table and mirrored in memory,
+ * so that a collection's size can be read without scanning its table.
+ *
+ * The persisted value must change in the same transaction as the rows it
+ * counts. Callers do this in two steps: {@link #persist} is called from
+ * {@link JdbcTemplate#updated(int)} with the number of affected rows, and
+ * {@link #add} applies the same delta to the in-memory value from
+ * {@link JdbcTemplate#committed(int)}, once the statement has been committed:
+ * <pre><code>
+ * JdbcTemplate.executeUpdate(cm, "delete from queue where id = ?", new JdbcTemplate() {
+ *   public void statement(PreparedStatement ps) throws SQLException {
+ *     ps.setLong(1, id);
+ *   }
+ *   public void updated(int count) {
+ *     counter.persist(this, -count);
+ *   }
+ *   public void committed(int count) {
+ *     counter.add(-count);
+ *   }
+ * });
+ * </code></pre>
+ * When a transaction holding such changes is rolled back, {@link #reload}
+ * restores the in-memory value from the database.
+ */
+public class Counter {
+
+    private static final String CREATE_TABLE_SQL
+            = "CREATE TABLE IF NOT EXISTS COUNTER (NAME VARCHAR(64) PRIMARY KEY, VAL BIGINT NOT NULL)";
+    private static final String SELECT_VALUE_SQL = "SELECT VAL FROM COUNTER WHERE NAME = ?";
+    private static final String INSERT_VALUE_SQL = "INSERT INTO COUNTER (NAME, VAL) VALUES (?, ?)";
+    private static final String ADD_VALUE_SQL = "UPDATE COUNTER SET VAL = VAL + ? WHERE NAME = ?";
+
+    private final String name;
+    private final AtomicLong value;
+
+    /**
+     * Loads the named count, creating the COUNTER table if necessary. If the
+     * count has never been stored, for example because the database predates
+     * the COUNTER table, it is initialized once by running countSql.
+     *
+     * @param connection the connection to the database holding the counted rows
+     * @param name the name of the count
+     * @param countSql a query whose single result is the current number of rows
+     */
+    public Counter(Connection connection, final String name, String countSql) {
+        this.name = name;
+        JdbcTemplate.executeUpdate(connection, CREATE_TABLE_SQL);
+        Long stored = load(connection);
+        if (stored == null) {
+            final long count = (Long) JdbcTemplate.executeQuery(connection, countSql, new JdbcTemplate() {
+                @Override
+                public Object results(ResultSet rs) throws SQLException {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            });
+            JdbcTemplate.executeUpdate(connection, INSERT_VALUE_SQL, new JdbcTemplate() {
+                @Override
+                public void statement(PreparedStatement ps) throws SQLException {
+                    ps.setString(1, name);
+                    ps.setLong(2, count);
+                }
+            });
+            stored = count;
+        }
+        value = new AtomicLong(stored);
+    }
+
+    private Long load(Connection connection) {
+        return (Long) JdbcTemplate.executeQuery(connection, SELECT_VALUE_SQL, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setString(1, name);
+            }
+
+            @Override
+            public Object results(ResultSet rs) throws SQLException {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        });
+    }
+
+    /**
+     * Replaces the in-memory count with the persisted one, after a transaction
+     * whose changes were already added in memory has been rolled back.
+     */
+    public void reload(Connection connection) {
+        Long stored = load(connection);
+        if (stored != null) {
+            value.set(stored);
+        }
+    }
+
+    /**
+     * Returns the in-memory count.
+     */
+    public long get() {
+        return value.get();
+    }
+
+    /**
+     * Returns the in-memory count, capped at Integer.MAX_VALUE as required by
+     * Collection.size() and Map.size().
+     */
+    public int intValue() {
+        return (int) Math.min(value.get(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds delta to the persisted count within the transaction in progress on
+     * the template's connection, using the connection's statement cache when
+     * the template's statement did. The change is neither committed nor
+     * rolled back here.
+     *
+     * @param template the template whose {@link JdbcTemplate#updated(int)}
+     * is running
+     * @throws DatabaseException if the count could not be updated, which causes
+     * an enclosing JdbcTemplate.executeUpdate() to roll back
+     */
+    public void persist(JdbcTemplate template, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        PreparedStatement ps = null;
+        boolean failed = false;
+        try {
+            ps = template.prepare(ADD_VALUE_SQL);
+            ps.setLong(1, delta);
+            ps.setString(2, name);
+            if (ps.executeUpdate() != 1) {
+                throw new DatabaseException("Counter does not exist: " + name);
+            }
+        } catch (SQLException e) {
+            failed = true;
+            throw new DatabaseException("Unable to update counter: " + name, e);
+        } finally {
+            if (ps != null) {
+                template.release(ADD_VALUE_SQL, ps, failed);
+            }
+        }
+    }
+
+    /**
+     * Adds delta to the in-memory count once the matching {@link #persist}
+     * has been committed. With a ConnectionManager this must be called while
+     * its write lock is held, as JdbcTemplate.committed() is, so that it
+     * cannot be lost to a concurrent {@link #reload}.
+     */
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.sql;
+
+/**
+ * Determines when the writes made through a {@link ConnectionManager} are
+ * committed, trading a window of possible loss after a crash for throughput.
+ *
+ * The crash semantics below refer to process crashes. H2 itself writes
+ * committed data to its file in the background, so an operating system or
+ * power failure may additionally lose the last few hundred milliseconds of
+ * commits in every mode.
+ *
+ * For a {@link org.pickle.store.LogQueueStore}, a batch of elements offered
+ * together is all or nothing after a process crash in every mode. After an
+ * operating system or power failure it is all or nothing only with SYNC,
+ * which forces the batch to the disk before making it visible; in the other
+ * modes the disk may keep the write that makes the batch visible without
+ * the records themselves, so that only the records before the first torn one
+ * survive.
+ */
+public enum Durability {
+
+    /**
+     * Every operation commits before it returns. An operation that returned
+     * survives a crash; an operation that was in progress is rolled back.
+     */
+    SYNC,
+
+    /**
+     * Operations from concurrent threads are collected and committed together
+     * once per commit window. Each operation still waits for the commit that
+     * covers it before returning, so an operation that returned survives a
+     * crash, exactly as with SYNC. Operations waiting for their commit when
+     * the crash occurs are rolled back as a group.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Operations return immediately and are committed in the background once
+     * per commit window. A crash loses the operations acknowledged within the
+     * last commit window. A queue element polled in that window reappears at
+     * the head, and an offered element disappears.
+     */
+    ASYNC
+}
@@ -4,6 +4,8 @@
 package org.pickle.sql;
 
 import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -32,11 +34,34 @@ import org.apache.log4j.Logger;
  *     }
  *   });
  * </code></pre>
+ *
+ * Updates made through a ConnectionManager are normally committed one by one.
+ * A thread may instead group any number of them into one unit of work with
+ * {@link #openTransaction}, {@link #commitTransaction} and
+ * {@link #rollbackTransaction}:
+ * <pre><code>
+ * JdbcTemplate.openTransaction(cm);
+ * boolean done = false;
+ * try {
+ *   ... executeUpdate(cm, ...) ...
+ *   done = true;
+ * } finally {
+ *   if (!done) {
+ *     JdbcTemplate.rollbackTransaction();
+ *   }
+ * }
+ * JdbcTemplate.commitTransaction();
+ * </code></pre>
  */
 public class JdbcTemplate {
     private static final Logger log = Logger.getLogger(JdbcTemplate.class);
 
+    // The ConnectionManagers on which each thread has open transactions, innermost first.
+    private static final ThreadLocal<Deque<ConnectionManager>> transactions = new ThreadLocal<>();
+
     private String sql;
+    private Connection connection;
+    private StatementCache cache;
 
     /**
      * Called by JdbcTemplate.executeUpdate() and JdbcTemplate.executeQuery()
@@ -68,6 +93,21 @@ public class JdbcTemplate {
     public void updated(int count) {
     }
 
+    /**
+     * Called by JdbcTemplate.executeUpdate() and JdbcTemplate.executeBatch()
+     * with the same count as {@link #updated(int)} once the statement has been
+     * committed. With a ConnectionManager this is once the statement has been
+     * handed to the manager's {@link Durability}, or, within a transaction,
+     * once the transaction has; the manager's write lock is still held, so
+     * that state mirrored in memory, such as a {@link Counter}, cannot be
+     * changed here while a rollback listener reloads it. This method is not
+     * called if the statement or its transaction is rolled back.
+     *
+     * @param count the number of affected rows
+     */
+    public void committed(int count) {
+    }
+
     /**
      * Returns the SQL string currently being executed.
      */
@@ -75,6 +115,33 @@ public class JdbcTemplate {
         return sql;
     }
 
+    /**
+     * Returns the Connection on which the SQL string is currently being
+     * executed. Statements executed on it from {@link #updated(int)} take part
+     * in the same transaction.
+     */
+    protected final Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Prepares a further statement on {@link #getConnection()}, such as one
+     * run from {@link #updated(int)}, taking it from the connection's
+     * statement cache when the current statement came from there. The
+     * statement must be handed back with {@link #release}.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(connection, cache, sql);
+    }
+
+    /**
+     * Closes a statement from {@link #prepare(String)} unless it is cached,
+     * evicting it if it failed with an SQLException.
+     */
+    void release(String sql, PreparedStatement statement, boolean failed) {
+        release(cache, sql, statement, failed);
+    }
+
     /**
      * Executes a SQL statement with the default JdbcTemplate instance.
      */
@@ -86,21 +153,48 @@ public class JdbcTemplate {
      * Executes a SQL statement using a JdbcTemplate.
      */
     public static void executeUpdate(Connection connection, String sql, JdbcTemplate template) {
-        template.sql = sql;
-        PreparedStatement statement = null;
+        update(null, connection, null, sql, template, false);
+    }
+
+    /**
+     * Executes a SQL statement using a JdbcTemplate on the ConnectionManager's
+     * connection. The statement is committed according to the manager's
+     * {@link Durability}; with GROUP_COMMIT the caller should call
+     * {@link ConnectionManager#awaitCommit()} once it has released its own locks.
+     */
+    public static void executeUpdate(ConnectionManager cm, String sql, JdbcTemplate template) {
+        cm.lockWrites();
         try {
-            statement = connection.prepareStatement(sql);
-            template.statement(statement);
-            template.updated(statement.executeUpdate());
-            connection.commit();
-        } catch (SQLException e) {
-            rollback(connection);
-            throw new DatabaseException("Unable to execute SQL statement: " + sql, e);
-        } catch (RuntimeException e) {
-            rollback(connection);
-            throw e;
+            update(cm, cm.getConnection(), cm.writeStatements(), sql, template, false);
         } finally {
-            close(null, statement);
+            cm.unlockWrites();
+        }
+    }
+
+    /**
+     * Executes a SQL statement as a JDBC batch using a JdbcTemplate. The
+     * template's statement() method should assign placeholder values and call
+     * PreparedStatement.addBatch() once for each row. All rows are committed
+     * together; if any row fails, the whole batch is rolled back. The template's
+     * updated() method receives the total number of affected rows.
+     */
+    public static void executeBatch(Connection connection, String sql, JdbcTemplate template) {
+        update(null, connection, null, sql, template, true);
+    }
+
+    /**
+     * Executes a SQL statement as a JDBC batch using a JdbcTemplate on the
+     * ConnectionManager's connection, committed according to the manager's
+     * {@link Durability}.
+     *
+     * @see #executeBatch(Connection, String, JdbcTemplate)
+     */
+    public static void executeBatch(ConnectionManager cm, String sql, JdbcTemplate template) {
+        cm.lockWrites();
+        try {
+            update(cm, cm.getConnection(), cm.writeStatements(), sql, template, true);
+        } finally {
+            cm.unlockWrites();
         }
     }
 
@@ -108,31 +202,186 @@ public class JdbcTemplate {
      * Executes a SQL query using a JdbcTemplate.
      */
     public static Object executeQuery(Connection connection, String sql, JdbcTemplate template) {
+        return query(connection, null, sql, template);
+    }
+
+    /**
+     * Executes a SQL query using a JdbcTemplate on one of the
+     * ConnectionManager's pooled read connections, so that queries from
+     * different threads run in parallel. The query sees every write made
+     * through the manager that completed before it started, and, when the
+     * calling thread is in a transaction, the transaction's own writes.
+     * Statements are taken from the connection's statement cache.
+     */
+    public static Object executeQuery(ConnectionManager cm, String sql, JdbcTemplate template) {
+        StatementCache reader = cm.borrowReader();
+        if (reader == null) {
+            return query(cm.getConnection(), cm.writeStatements(), sql, template);
+        }
+        try {
+            return query(reader.getConnection(), reader, sql, template);
+        } finally {
+            cm.returnReader(reader);
+        }
+    }
+
+    /**
+     * Executes a query, taking its statement from the cache unless it is null.
+     */
+    private static Object query(Connection connection, StatementCache cache, String sql, JdbcTemplate template) {
         template.sql = sql;
+        template.connection = connection;
+        template.cache = cache;
         PreparedStatement statement = null;
         ResultSet results = null;
+        boolean failed = false;
         try {
-            statement = connection.prepareStatement(sql);
+            statement = prepare(connection, cache, sql);
             template.statement(statement);
             results = statement.executeQuery();
             return template.results(results);
         } catch (SQLException e) {
+            failed = true;
             throw new DatabaseException("Unable to execute SQL query: " + sql, e);
         } finally {
-            close(results, statement);
+            close(results, null);
+            release(cache, sql, statement, failed);
         }
     }
 
+    /**
+     * Executes a statement or batch and commits it, either directly when cm is
+     * null or through the ConnectionManager's durability mode. The statement
+     * is taken from the cache unless it is null.
+     */
+    private static void update(ConnectionManager cm, Connection connection, StatementCache cache, String sql,
+            JdbcTemplate template, boolean batch) {
+        template.sql = sql;
+        template.connection = connection;
+        template.cache = cache;
+        // With a deferred commit or an open transaction, other statements may be pending in the same
+        // transaction, so a failure must only undo this statement.
+        boolean deferred = cm != null && (cm.getDurability() != Durability.SYNC || cm.isInTransaction());
+        Savepoint savepoint = null;
+        PreparedStatement statement = null;
+        boolean failed = false;
+        int count = 0;
+        try {
+            if (deferred) {
+                savepoint = connection.setSavepoint();
+            }
+            statement = prepare(connection, cache, sql);
+            template.statement(statement);
+            if (batch) {
+                for (int rows : statement.executeBatch()) {
+                    // Drivers may report SUCCESS_NO_INFO (-2) instead of a row count.
+                    count += rows > 0 ? rows : 0;
+                }
+            } else {
+                count = statement.executeUpdate();
+            }
+            template.updated(count);
+            if (cm != null) {
+                cm.written(connection);
+            } else {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            failed = true;
+            rollback(connection, deferred, savepoint);
+            throw new DatabaseException(
+                    (batch ? "Unable to execute SQL batch: " : "Unable to execute SQL statement: ") + sql, e);
+        } catch (RuntimeException e) {
+            rollback(connection, deferred, savepoint);
+            throw e;
+        } finally {
+            release(cache, sql, statement, failed);
+        }
+        if (cm != null) {
+            cm.afterCommit(committed(template, count));
+        } else {
+            template.committed(count);
+        }
+    }
+
+    private static Runnable committed(final JdbcTemplate template, final int count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                template.committed(count);
+            }
+        };
+    }
+
+    private static PreparedStatement prepare(Connection connection, StatementCache cache, String sql)
+            throws SQLException {
+        return cache != null ? cache.prepare(sql) : connection.prepareStatement(sql);
+    }
+
+    /**
+     * Closes an uncached statement, and evicts a cached one whose execution
+     * failed with an SQLException.
+     */
+    private static void release(StatementCache cache, String sql, PreparedStatement statement, boolean failed) {
+        if (cache == null) {
+            close(null, statement);
+        } else if (failed && statement != null) {
+            cache.evict(sql);
+        }
+    }
+
+    /**
+     * Opens a transaction on the ConnectionManager for the calling thread.
+     * Until the matching {@link #commitTransaction()} or
+     * {@link #rollbackTransaction()}, updates the thread makes through the
+     * manager join the transaction instead of being committed, and updates by
+     * other threads wait. Transactions on the same manager may be nested; the
+     * outermost one commits or rolls back the work of all of them. Transactions
+     * on different managers are committed separately, innermost first.
+     */
     public static void openTransaction(ConnectionManager cm) {
-        // TODO: Store connection in thread local
+        cm.beginTransaction();
+        Deque<ConnectionManager> open = transactions.get();
+        if (open == null) {
+            open = new ArrayDeque<>();
+            transactions.set(open);
+        }
+        open.push(cm);
     }
 
+    /**
+     * Commits the calling thread's innermost transaction according to its
+     * manager's {@link Durability}. With GROUP_COMMIT the caller should call
+     * {@link ConnectionManager#awaitCommit()} once it has released its own locks.
+     *
+     * @throws DatabaseException if the commit failed, or a nested transaction
+     * was rolled back, and the transaction has been rolled back
+     * @throws IllegalStateException if the thread has no open transaction
+     */
     public static void commitTransaction() {
-        // TODO: Commit
+        closeTransaction().commitTransaction();
     }
 
+    /**
+     * Rolls back the calling thread's innermost transaction. A nested
+     * transaction marks the outermost one to be rolled back when it ends.
+     *
+     * @throws IllegalStateException if the thread has no open transaction
+     */
     public static void rollbackTransaction() {
-        // TODO: Rollback
+        closeTransaction().rollbackTransaction();
+    }
+
+    private static ConnectionManager closeTransaction() {
+        Deque<ConnectionManager> open = transactions.get();
+        if (open == null || open.isEmpty()) {
+            throw new IllegalStateException("No transaction is open on this thread.");
+        }
+        ConnectionManager cm = open.pop();
+        if (open.isEmpty()) {
+            transactions.remove();
+        }
+        return cm;
     }
 
     private static void close(ResultSet results, Statement statement) {
@@ -152,6 +401,18 @@ public class JdbcTemplate {
         }
     }
 
+    private static void rollback(Connection connection, boolean deferred, Savepoint savepoint) {
+        if (!deferred) {
+            rollback(connection);
+        } else if (savepoint != null) {
+            try {
+                connection.rollback(savepoint);
+            } catch (SQLException e) {
+                log.warn("A Connection transaction could not be rolled back to its savepoint.", e);
+            }
+        }
+    }
+
     private static void rollback(Connection connection) {
         try {
             connection.rollback();
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.sql;
+
+import java.sql.*;
+import org.apache.log4j.Logger;
+
+/**
+ * Upgrades tables created by earlier versions of pickle.
+ */
+public final class Schema {
+
+    private static final Logger log = Logger.getLogger(Schema.class);
+
+    private static final String SELECT_DATA_TYPE_SQL
+            = "SELECT DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS "
+            + "WHERE TABLE_SCHEMA = CURRENT_SCHEMA AND TABLE_NAME = ? AND COLUMN_NAME = ?";
+    private static final String TO_BINARY_SQL = "ALTER TABLE %s ALTER COLUMN \"%s\" VARBINARY NOT NULL";
+
+    private Schema() {
+    }
+
+    /**
+     * Returns true if the table has the column.
+     *
+     * @param connection the connection to the database holding the table
+     * @param table the name of the table
+     * @param column the name of the column
+     */
+    public static boolean hasColumn(Connection connection, String table, String column) {
+        return dataType(connection, table, column) != null;
+    }
+
+    /**
+     * Converts the given OTHER columns of the table to VARBINARY. H2 stores
+     * OTHER values as their Java serialization, which the conversion keeps, so
+     * the values can be read with a {@link org.pickle.serial.JavaSerializer}.
+     * Columns that are already binary are left alone.
+     *
+     * @param connection the connection to the database holding the table
+     * @param table the name of the table
+     * @param columns the names of the columns to convert
+     */
+    public static void convertToBinary(Connection connection, String table, String... columns) {
+        for (String column : columns) {
+            if ("JAVA_OBJECT".equals(dataType(connection, table, column))) {
+                log.info(String.format("Converting %s.%s from OTHER to VARBINARY", table, column));
+                JdbcTemplate.executeUpdate(connection, String.format(TO_BINARY_SQL, table, column));
+            }
+        }
+    }
+
+    /**
+     * Returns the type of the column, or null if the table has no such column.
+     */
+    private static String dataType(Connection connection, final String table, final String column) {
+        return (String) JdbcTemplate.executeQuery(connection, SELECT_DATA_TYPE_SQL, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setString(1, table);
+                ps.setString(2, column);
+            }
+
+            @Override
+            public Object results(ResultSet rs) throws SQLException {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.sql;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * The PreparedStatements of one Connection, keyed by SQL text and evicted in
+ * least-recently-used order, so that the small fixed set of statements run by
+ * the collections is parsed and planned once per connection.
+ *
+ * A cache is not thread-safe. The ConnectionManager only hands it to a thread
+ * that has the connection to itself: a pooled read connection while it is
+ * checked out, or the write connection while the write lock is held.
+ */
+final class StatementCache {
+    private static final Logger log = Logger.getLogger(StatementCache.class);
+
+    private final Connection connection;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * @param connection the connection whose statements are cached
+     * @param capacity the maximum number of statements kept open
+     * @param hits counts statements found in the cache
+     * @param misses counts statements prepared on the connection
+     */
+    StatementCache(Connection connection, final int capacity, AtomicLong hits, AtomicLong misses) {
+        this.connection = connection;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the statement for sql with its parameters and batch cleared,
+     * preparing it if it is not cached.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            hits.incrementAndGet();
+            // A previous use may have failed part way through binding or batching.
+            statement.clearParameters();
+            statement.clearBatch();
+            return statement;
+        }
+        misses.incrementAndGet();
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+        return statement;
+    }
+
+    /**
+     * Closes and forgets the statement for sql, after it failed in a way that
+     * may have left it unusable.
+     */
+    void evict(String sql) {
+        PreparedStatement statement = statements.remove(sql);
+        if (statement != null) {
+            close(statement);
+        }
+    }
+
+    /**
+     * Closes every cached statement.
+     */
+    void clear() {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            log.warn("A cached Statement could not be closed.", e);
+        }
+    }
+}
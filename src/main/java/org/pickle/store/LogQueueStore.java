@@ -0,0 +1,644 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.pickle.serial.Serializer;
+import org.pickle.serial.Serializers;
+import org.pickle.sql.DatabaseException;
+import org.pickle.sql.Durability;
+
+/**
+ * A QueueStore that appends elements to a log of segment files, for queues
+ * that do not need the indexes and transactions of a database.
+ *
+ * Elements are converted by the store's {@link Serializer} and appended to
+ * the last segment through its file channel; each segment is pre-allocated to
+ * the segment size and named after the ID of its first element, and IDs are
+ * consecutive. The head is read
+ * through memory-mapped segments. Removing the head only advances the head ID
+ * in the checkpoint file, and segments whose elements have all been removed
+ * are deleted as whole files, so the store never needs compacting. Elements
+ * removed from the middle of the queue by an iterator are recorded in the
+ * removed file until the head passes them.
+ *
+ * Every write reaches the operating system before the operation returns, so a
+ * process crash loses nothing in any durability mode. The durability mode
+ * decides when writes are forced to the disk, which protects them from an
+ * operating system or power failure: SYNC forces every write before it
+ * returns, GROUP_COMMIT forces once for all of the concurrent callers waiting
+ * in {@link #awaitCommit()}, and ASYNC leaves it to the operating system. On
+ * open, records torn by a failure are found by their CRCs and discarded.
+ */
+public class LogQueueStore<E extends Serializable> implements QueueStore<E> {
+
+    private static final Logger log = Logger.getLogger(LogQueueStore.class);
+
+    /**
+     * The default size in bytes of a segment file. Elements larger than a
+     * segment get a segment of their own.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String REMOVED = "removed";
+    // The checkpoint is written alternately to two slots of [sequence, head ID, CRC], so that a
+    // torn write leaves the previous checkpoint intact.
+    private static final int CHECKPOINT_SLOT_BYTES = 32;
+    private static final int CHECKPOINT_BYTES = 20;
+
+    private final File dir;
+    private final Durability durability;
+    private final int segmentSize;
+    private final Serializer<E> serializer;
+    // Guards all of the fields below.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Serializes forcing in GROUP_COMMIT, so that one force covers every thread waiting for it.
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final TreeSet<Long> removed = new TreeSet<>();
+    private final Set<FileChannel> dirty = new HashSet<>();
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+    private RandomAccessFile checkpointFile;
+    private RandomAccessFile removedFile;
+    private long checkpointSeq;
+    // The ID of the oldest element, or of the next element appended if the store is empty.
+    private long headId;
+    private long writeSeq;
+    private volatile long forcedSeq;
+
+    public LogQueueStore(File dir) {
+        this(dir, Durability.SYNC, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public LogQueueStore(File dir, Durability durability, int segmentSize) {
+        this(dir, durability, segmentSize, Serializers.<E>java());
+    }
+
+    /**
+     * Opens the log in dir, creating the directory if necessary.
+     *
+     * @param dir the directory holding the segment files
+     * @param durability when writes are forced to the disk
+     * @param segmentSize the size in bytes of new segment files
+     * @param serializer converts elements to and from the stored bytes
+     */
+    public LogQueueStore(File dir, Durability durability, int segmentSize, Serializer<E> serializer) {
+        if (segmentSize <= Segment.HEADER_BYTES) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.durability = durability;
+        this.segmentSize = segmentSize;
+        this.serializer = serializer;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new DatabaseException("Unable to create directory " + dir);
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            close();
+            throw new DatabaseException("Unable to open log at " + dir, e);
+        }
+    }
+
+    private void open() throws IOException {
+        checkpointFile = new RandomAccessFile(new File(dir, CHECKPOINT), "rw");
+        removedFile = new RandomAccessFile(new File(dir, REMOVED), "rw");
+        headId = readCheckpoint();
+
+        String[] names = dir.list();
+        Arrays.sort(names);
+        List<File> files = new ArrayList<>();
+        for (String name : names) {
+            if (Segment.isSegment(name)) {
+                files.add(new File(dir, name));
+            }
+        }
+        for (int i = 0; i < files.size(); i++) {
+            // Only the last two segments can hold records torn by a crash, since a batch that
+            // needs a new segment is made visible by the last write to the one before it.
+            Segment segment = Segment.open(files.get(i), i >= files.size() - 2);
+            Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (last != null && segment.getFirstId() != last.getNextId()) {
+                log.warn("Discarding segments from incomplete write starting at " + files.get(i));
+                for (int j = i; j < files.size(); j++) {
+                    if (j > i) {
+                        segment = Segment.open(files.get(j), false);
+                    }
+                    segment.delete();
+                }
+                break;
+            }
+            segments.put(segment.getFirstId(), segment);
+        }
+
+        if (segments.isEmpty()) {
+            headId = Math.max(headId, 1);
+        } else if (headId == 0 || headId < segments.firstKey()) {
+            headId = segments.firstKey();
+        } else if (headId > nextId()) {
+            // The checkpoint survived a failure that the appends it covers did not.
+            log.warn("Head " + headId + " is past the end of the log at " + dir);
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+        }
+        if (segments.isEmpty()) {
+            Segment segment = Segment.create(dir, headId, segmentSize);
+            segments.put(segment.getFirstId(), segment);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (removedFile.length() / 8 * 8));
+        FileChannel channel = removedFile.getChannel();
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+        }
+        buffer.flip();
+        while (buffer.remaining() >= 8) {
+            long id = buffer.getLong();
+            if (id >= headId && id < nextId()) {
+                removed.add(id);
+            }
+        }
+        advanceHead(headId);
+        deleteConsumedSegments();
+    }
+
+    private long readCheckpoint() throws IOException {
+        long id = 0;
+        FileChannel channel = checkpointFile.getChannel();
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_BYTES);
+            channel.read(buffer, slot * CHECKPOINT_SLOT_BYTES);
+            if (buffer.hasRemaining()) {
+                continue;
+            }
+            buffer.flip();
+            long seq = buffer.getLong(0);
+            if (Segment.crc(buffer, 0, 16) == buffer.getInt(16) && seq > checkpointSeq) {
+                checkpointSeq = seq;
+                id = buffer.getLong(8);
+            }
+        }
+        return id;
+    }
+
+    private void writeCheckpoint(long id) throws IOException {
+        long seq = checkpointSeq + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_BYTES);
+        buffer.putLong(seq).putLong(id).putInt(Segment.crc(buffer, 0, 16)).flip();
+        FileChannel channel = checkpointFile.getChannel();
+        long position = (seq % 2) * CHECKPOINT_SLOT_BYTES;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        checkpointSeq = seq;
+        dirty.add(channel);
+    }
+
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return nextId() - headId - removed.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void append(E object) {
+        appendAll(Collections.singletonList(object));
+    }
+
+    @Override
+    public void appendAll(List<? extends E> objects) {
+        List<byte[]> payloads = new ArrayList<>(objects.size());
+        for (E object : objects) {
+            payloads.add(serializer.serialize(object));
+        }
+        if (payloads.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            appendRecords(payloads);
+            written();
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to append to log at " + dir, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the records for the payloads after the last record. When there
+     * are several, the length of the first is written last, so that a crash
+     * before the write completes leaves none of them readable.
+     */
+    private void appendRecords(List<byte[]> payloads) throws IOException {
+        int count = payloads.size();
+        Segment[] targets = new Segment[count];
+        int[] positions = new int[count];
+        List<Segment> created = new ArrayList<>();
+        Segment segment = segments.lastEntry().getValue();
+        long firstId = segment.getNextId();
+        int position = segment.getWritePosition();
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = payloads.get(i).length;
+                if (!segment.fits(position, length)) {
+                    segment = Segment.create(dir, firstId + i,
+                            Math.max(segmentSize, Segment.HEADER_BYTES + length));
+                    created.add(segment);
+                    position = 0;
+                }
+                targets[i] = segment;
+                positions[i] = position;
+                position += Segment.HEADER_BYTES + length;
+            }
+            for (int i = 0; i < count;) {
+                int end = i;
+                int bytes = 0;
+                while (end < count && targets[end] == targets[i]) {
+                    bytes += Segment.HEADER_BYTES + payloads.get(end).length;
+                    end++;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(bytes);
+                for (int j = i; j < end; j++) {
+                    byte[] payload = payloads.get(j);
+                    ByteBuffer wrapped = ByteBuffer.wrap(payload);
+                    buffer.putInt(j == 0 && count > 1 ? 0 : payload.length)
+                            .putInt(Segment.crc(wrapped, 0, payload.length))
+                            .putLong(firstId + j)
+                            .put(payload);
+                }
+                buffer.flip();
+                targets[i].write(buffer, positions[i]);
+                dirty.add(targets[i].getChannel());
+                i = end;
+            }
+            if (count > 1) {
+                if (durability == Durability.SYNC) {
+                    force(new ArrayList<>(dirty));
+                }
+                ByteBuffer length = ByteBuffer.allocate(4);
+                length.putInt(payloads.get(0).length).flip();
+                targets[0].write(length, positions[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Segment unused : created) {
+                dirty.remove(unused.getChannel());
+                unused.delete();
+            }
+            throw e;
+        }
+        for (Segment added : created) {
+            segments.put(added.getFirstId(), added);
+        }
+        for (int i = 0; i < count; i++) {
+            targets[i].appended(positions[i], payloads.get(i).length);
+        }
+    }
+
+    @Override
+    public List<QueueEntry<E>> read(long afterId, long lastId, int max, long maxBytes) {
+        List<byte[]> payloads = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        lock.lock();
+        try {
+            long id = Math.max(afterId + 1, headId);
+            long end = lastId < nextId() ? lastId + 1 : nextId();
+            Segment segment = null;
+            int position = 0;
+            long total = 0;
+            while (id < end && payloads.size() < max) {
+                if (segment == null || id >= segment.getNextId()) {
+                    segment = segments.floorEntry(id).getValue();
+                    position = segment.locate(id);
+                }
+                int length = segment.lengthAt(position);
+                if (!removed.contains(id)) {
+                    if (!payloads.isEmpty() && total + length > maxBytes) {
+                        break;
+                    }
+                    payloads.add(segment.payloadAt(position));
+                    ids.add(id);
+                    total += length;
+                }
+                position += Segment.HEADER_BYTES + length;
+                id++;
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to read log at " + dir, e);
+        } finally {
+            lock.unlock();
+        }
+        List<QueueEntry<E>> entries = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            entries.add(new QueueEntry<>(ids.get(i), serializer.deserialize(payloads.get(i)),
+                    payloads.get(i).length));
+        }
+        return entries;
+    }
+
+    @Override
+    public long firstId() {
+        lock.lock();
+        try {
+            for (long id = headId; id < nextId(); id++) {
+                if (!removed.contains(id)) {
+                    return id;
+                }
+            }
+            return -1L;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long lastId() {
+        lock.lock();
+        try {
+            for (long id = nextId() - 1; id >= headId; id--) {
+                if (!removed.contains(id)) {
+                    return id;
+                }
+            }
+            return -1L;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeHead(long firstId, long lastId, int count) {
+        lock.lock();
+        try {
+            int live = (int) (lastId - firstId + 1)
+                    - (lastId < firstId ? 0 : removed.subSet(firstId, true, lastId, true).size());
+            if (firstId < headId || lastId >= nextId() || live != count) {
+                throw new DatabaseException(String.format(
+                        "Expected to remove %d objects from %d to %d but the head is %d.",
+                        count, firstId, lastId, headId));
+            }
+            if (firstId == headId) {
+                advanceHead(lastId + 1);
+            } else {
+                List<Long> ids = new ArrayList<>(count);
+                for (long id = firstId; id <= lastId; id++) {
+                    if (!removed.contains(id)) {
+                        ids.add(id);
+                    }
+                }
+                tombstone(ids);
+            }
+            written();
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to remove head of log at " + dir, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int removeAll(List<Long> ids) {
+        lock.lock();
+        try {
+            List<Long> live = new ArrayList<>(ids.size());
+            for (long id : new TreeSet<>(ids)) {
+                if (id >= headId && id < nextId() && !removed.contains(id)) {
+                    live.add(id);
+                }
+            }
+            if (!live.isEmpty()) {
+                tombstone(live);
+                written();
+            }
+            return live.size();
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to remove " + ids.size() + " objects from log at " + dir, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(long id) {
+        return removeAll(Collections.singletonList(id)) > 0;
+    }
+
+    /**
+     * Records the removal of the given live elements, which may be anywhere in
+     * the log, and moves the head past any of them at the head.
+     */
+    private void tombstone(List<Long> ids) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * ids.size());
+        for (long id : ids) {
+            buffer.putLong(id);
+        }
+        buffer.flip();
+        FileChannel channel = removedFile.getChannel();
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        dirty.add(channel);
+        removed.addAll(ids);
+        advanceHead(headId);
+    }
+
+    /**
+     * Moves the head to id, past any removed elements, and deletes the
+     * segments and removal records left behind.
+     */
+    private void advanceHead(long id) throws IOException {
+        removed.headSet(id).clear();
+        while (removed.remove(id)) {
+            id++;
+        }
+        if (id != headId || checkpointSeq == 0) {
+            writeCheckpoint(id);
+            headId = id;
+        }
+        if (removed.isEmpty() && removedFile.length() > 0) {
+            removedFile.setLength(0);
+        }
+        deleteConsumedSegments();
+    }
+
+    private void deleteConsumedSegments() throws IOException {
+        while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= headId) {
+            Segment segment = segments.pollFirstEntry().getValue();
+            dirty.remove(segment.getChannel());
+            if (!segment.delete()) {
+                log.warn("Unable to delete consumed segment of log at " + dir);
+            }
+        }
+    }
+
+    private long nextId() {
+        return segments.lastEntry().getValue().getNextId();
+    }
+
+    /**
+     * Records a write by the calling thread, forcing it in SYNC mode. Called
+     * while holding the lock.
+     */
+    private void written() throws IOException {
+        lastWrite.set(++writeSeq);
+        if (durability == Durability.SYNC) {
+            force(new ArrayList<>(dirty));
+            dirty.clear();
+            forcedSeq = writeSeq;
+        }
+    }
+
+    private static void force(List<FileChannel> channels) throws IOException {
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was consumed and deleted.
+            }
+        }
+    }
+
+    /**
+     * Forces the files written so far without holding the lock, so that
+     * appends and reads continue meanwhile.
+     */
+    private void forceDirty() {
+        long seq;
+        List<FileChannel> channels;
+        lock.lock();
+        try {
+            seq = writeSeq;
+            channels = new ArrayList<>(dirty);
+            dirty.clear();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            force(channels);
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                dirty.addAll(channels);
+            } finally {
+                lock.unlock();
+            }
+            throw new DatabaseException("Unable to force log at " + dir, e);
+        }
+        forcedSeq = Math.max(forcedSeq, seq);
+    }
+
+    /**
+     * In GROUP_COMMIT mode, forces the calling thread's writes to the disk
+     * unless another thread already has.
+     */
+    @Override
+    public void awaitCommit() {
+        Long seq = lastWrite.get();
+        if (durability != Durability.GROUP_COMMIT || seq == null || seq <= forcedSeq) {
+            return;
+        }
+        forceLock.lock();
+        try {
+            if (seq > forcedSeq) {
+                forceDirty();
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        forceLock.lock();
+        try {
+            forceDirty();
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * Does nothing, since consumed segments are deleted as they are passed.
+     */
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public long getStorageSize() {
+        lock.lock();
+        try {
+            long size = checkpointFile.length() + removedFile.length();
+            for (Segment segment : segments.values()) {
+                size += segment.getCapacity();
+            }
+            return size;
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to size log at " + dir, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the operator. The log has no transactions, so the operations of the
+     * operator are not undone if it throws a RuntimeException, which is logged
+     * and discarded as by {@link SqlQueueStore#inTransaction}.
+     */
+    @Override
+    public boolean inTransaction(Runnable operator) {
+        try {
+            operator.run();
+            return true;
+        } catch (RuntimeException e) {
+            log.log(Level.DEBUG, "Operator failed; log writes are not rolled back", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        flush();
+        lock.lock();
+        try {
+            close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.error("Unable to close segment of log at " + dir, e);
+            }
+        }
+        segments.clear();
+        for (RandomAccessFile file : new RandomAccessFile[]{checkpointFile, removedFile}) {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                log.error("Unable to close log at " + dir, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.store;
+
+/**
+ * An element read from a {@link QueueStore}, together with the ID that orders
+ * it in the queue and its stored size.
+ */
+public final class QueueEntry<E> {
+
+    private final long id;
+    private final E object;
+    private final long bytes;
+
+    public QueueEntry(long id, E object, long bytes) {
+        this.id = id;
+        this.object = object;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the ID of the element. IDs increase in insertion order.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public E getObject() {
+        return object;
+    }
+
+    /**
+     * Returns the number of bytes the element occupies in the store.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
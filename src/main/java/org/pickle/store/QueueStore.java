@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.store;
+
+import java.util.List;
+import org.pickle.Disposable;
+
+/**
+ * The storage engine below a {@link org.pickle.util.PersistentQueue}. A store
+ * keeps elements in insertion order, identified by IDs that increase in that
+ * order, and knows nothing of blocking, capacity or read-ahead, which are
+ * handled by the queue.
+ *
+ * The queue calls append methods while holding its put lock, head reads and
+ * removals, including {@link #removeAll}, while holding its take lock, and
+ * {@link #remove(long)} while holding both, so a store must allow an append
+ * to run concurrently with a read or a head removal.
+ */
+public interface QueueStore<E> extends Disposable {
+
+    /**
+     * Returns the number of elements in the store without scanning it.
+     */
+    long size();
+
+    /**
+     * Appends the object at the tail.
+     */
+    void append(E object);
+
+    /**
+     * Appends the objects at the tail in order, all or nothing.
+     */
+    void appendAll(List<? extends E> objects);
+
+    /**
+     * Reads up to max elements whose IDs are greater than afterId, in ID order.
+     * Reading stops before the element that would take the total size of the
+     * returned elements past maxBytes, except that the first element is always
+     * returned.
+     *
+     * @param afterId the ID to read after, or -1 to read from the head
+     * @param max the maximum number of elements to read
+     * @param maxBytes the maximum total size of the elements to read
+     */
+    default List<QueueEntry<E>> read(long afterId, int max, long maxBytes) {
+        return read(afterId, Long.MAX_VALUE, max, maxBytes);
+    }
+
+    /**
+     * Reads up to max elements whose IDs are greater than afterId and no
+     * greater than lastId, as by {@link #read(long, int, long)}.
+     *
+     * @param afterId the ID to read after, or -1 to read from the head
+     * @param lastId the greatest ID to read, or Long.MAX_VALUE
+     * @param max the maximum number of elements to read
+     * @param maxBytes the maximum total size of the elements to read
+     */
+    List<QueueEntry<E>> read(long afterId, long lastId, int max, long maxBytes);
+
+    /**
+     * Returns the ID of the oldest element, or -1 if the store is empty.
+     */
+    long firstId();
+
+    /**
+     * Returns the ID of the newest element, or -1 if the store is empty.
+     */
+    long lastId();
+
+    /**
+     * Removes the count elements with IDs from firstId to lastId inclusive,
+     * which must be the only elements in that range. The range is normally at
+     * the head of the store, but may follow elements that a lease has hidden
+     * from the queue.
+     *
+     * @throws org.pickle.sql.DatabaseException if the range holds a different
+     * number of elements, in which case nothing is removed
+     */
+    void removeHead(long firstId, long lastId, int count);
+
+    /**
+     * Removes the elements with the given IDs from anywhere in the store.
+     *
+     * @return the number of elements that existed and were removed
+     */
+    int removeAll(List<Long> ids);
+
+    /**
+     * Removes the element with the given ID from anywhere in the store.
+     *
+     * @return true if the element existed
+     */
+    boolean remove(long id);
+
+    /**
+     * Blocks until the calling thread's writes are as durable as the store
+     * promises. Called without holding any of the queue's locks.
+     */
+    void awaitCommit();
+
+    /**
+     * Makes all pending writes durable now.
+     */
+    void flush();
+
+    /**
+     * Registers an action run when writes the store has already reported as
+     * done are rolled back, as when a GROUP_COMMIT or ASYNC commit fails, so
+     * that the queue can discard what it read ahead. The action runs while the
+     * store's writes are locked, so it must not wait for the queue's locks.
+     * Stores that never roll back completed writes ignore it.
+     */
+    default void addRollbackListener(Runnable listener) {
+    }
+
+    /**
+     * Reclaims the space of removed elements, if the store needs to.
+     */
+    void compact();
+
+    /**
+     * Returns the number of bytes of files used by the store.
+     */
+    long getStorageSize();
+
+    /**
+     * Runs the operator as one unit of work, if the store supports
+     * multi-operation transactions. A RuntimeException thrown by the operator
+     * is logged and discarded.
+     *
+     * @return true if the operator completed and its work was committed, false
+     * if it threw and its work, where supported, was rolled back
+     */
+    boolean inTransaction(Runnable operator);
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.store;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+import org.pickle.sql.DatabaseException;
+
+/**
+ * One pre-allocated file of a {@link LogQueueStore}, holding the records with
+ * consecutive IDs starting at the ID in its name. Each record is a header of
+ * payload length, CRC-32 of the payload and ID, followed by the payload. The
+ * unwritten remainder of the file is zero, so a zero length marks the end.
+ *
+ * Records are written through the file channel and read through a read-only
+ * mapping of the whole file. Segments are not thread safe; the store guards
+ * them with its lock.
+ */
+final class Segment {
+
+    static final int HEADER_BYTES = 16;
+    // The position of every INDEX_STRIDE-th record is kept, so that locating a
+    // record skips at most INDEX_STRIDE - 1 headers.
+    private static final int INDEX_STRIDE = 64;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private final long firstId;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int capacity;
+    private MappedByteBuffer map;
+    private final List<Integer> index = new ArrayList<>();
+    private int writePosition;
+    private long nextId;
+
+    private Segment(File file, long firstId, RandomAccessFile raf) throws IOException {
+        this.file = file;
+        this.firstId = firstId;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.capacity = (int) raf.length();
+        this.nextId = firstId;
+    }
+
+    /**
+     * Creates an empty segment of the given size for records from firstId.
+     */
+    static Segment create(File dir, long firstId, int size) throws IOException {
+        File file = new File(dir, String.format("%s%020d%s", PREFIX, firstId, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            return new Segment(file, firstId, raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment and finds its last record. If verify is true,
+     * every payload is checked against its CRC and the segment is truncated
+     * before the first record that was torn by a crash; otherwise only the IDs
+     * in the headers are checked. Either way the file is zeroed after the
+     * last record found.
+     */
+    static Segment open(File file, boolean verify) throws IOException {
+        long firstId = Long.parseLong(file.getName().substring(PREFIX.length(),
+                file.getName().length() - SUFFIX.length()));
+        Segment segment = new Segment(file, firstId, new RandomAccessFile(file, "rw"));
+        try {
+            segment.recover(verify);
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            segment.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the file name is that of a segment.
+     */
+    static boolean isSegment(String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+                && name.length() == PREFIX.length() + 20 + SUFFIX.length();
+    }
+
+    private void recover(boolean verify) throws IOException {
+        ByteBuffer buffer = map();
+        int position = 0;
+        while (position + HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > capacity - position - HEADER_BYTES
+                    || buffer.getLong(position + 8) != nextId
+                    || (verify && crc(buffer, position + HEADER_BYTES, length) != buffer.getInt(position + 4))) {
+                break;
+            }
+            appended(position, length);
+            position = writePosition;
+        }
+        if (position < capacity) {
+            // Zero the whole tail, not just the header where recovery stopped: the rest of a batch
+            // whose first length was never written would otherwise line up with the records
+            // appended next, with valid CRCs and IDs, and be read back on the following open.
+            channel.truncate(position);
+            raf.setLength(capacity);
+            channel.force(true);
+            map = null;
+        }
+    }
+
+    long getFirstId() {
+        return firstId;
+    }
+
+    /**
+     * Returns the ID the next record appended to this segment must have.
+     */
+    long getNextId() {
+        return nextId;
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns true if a record with a payload of the given length fits at
+     * position.
+     */
+    boolean fits(int position, int length) {
+        return (long) position + HEADER_BYTES + length <= capacity;
+    }
+
+    /**
+     * Writes the buffer at position without changing which records the
+     * segment holds; call {@link #appended} once the records are complete.
+     */
+    void write(ByteBuffer buffer, int position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Records that the record with ID {@link #getNextId()} and the given
+     * payload length has been written at position.
+     */
+    void appended(int position, int length) {
+        if ((nextId - firstId) % INDEX_STRIDE == 0) {
+            index.add(position);
+        }
+        writePosition = position + HEADER_BYTES + length;
+        nextId++;
+    }
+
+    /**
+     * Returns the position of the record with the given ID, which must be in
+     * this segment.
+     */
+    int locate(long id) throws IOException {
+        int k = (int) ((id - firstId) / INDEX_STRIDE);
+        int position = index.get(k);
+        ByteBuffer buffer = map();
+        for (long current = firstId + (long) k * INDEX_STRIDE; current < id; current++) {
+            position += HEADER_BYTES + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the payload length of the record at position.
+     */
+    int lengthAt(int position) throws IOException {
+        return map().getInt(position);
+    }
+
+    /**
+     * Returns the payload of the record at position, checking its CRC.
+     */
+    byte[] payloadAt(int position) throws IOException {
+        ByteBuffer buffer = map();
+        byte[] payload = new byte[buffer.getInt(position)];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + HEADER_BYTES);
+        slice.get(payload);
+        if (crc(ByteBuffer.wrap(payload), 0, payload.length) != buffer.getInt(position + 4)) {
+            throw new DatabaseException(String.format("Corrupt record %d in %s",
+                    buffer.getLong(position + 8), file));
+        }
+        return payload;
+    }
+
+    void close() throws IOException {
+        map = null;
+        raf.close();
+    }
+
+    /**
+     * Closes and deletes the segment file.
+     *
+     * @return false if the file could not be deleted, for example because the
+     * platform does not allow mapped files to be deleted
+     */
+    boolean delete() throws IOException {
+        close();
+        return file.delete();
+    }
+
+    static int crc(ByteBuffer buffer, int position, int length) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + position, length);
+        } else {
+            byte[] bytes = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(position);
+            slice.get(bytes);
+            crc.update(bytes, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private ByteBuffer map() throws IOException {
+        if (map == null) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+        }
+        return map;
+    }
+}
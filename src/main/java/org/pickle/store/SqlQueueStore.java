@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.store;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.pickle.serial.Serializer;
+import org.pickle.serial.Serializers;
+import org.pickle.sql.*;
+
+/**
+ * A QueueStore that keeps elements in the QUEUE table of an H2 database, with
+ * the element count kept in the COUNTER table. Elements are stored as VARBINARY
+ * in the form produced by the store's {@link Serializer}; QUEUE tables from
+ * earlier versions, which used an OTHER column, are converted when opened.
+ */
+public class SqlQueueStore<E extends Serializable> implements QueueStore<E> {
+
+    private static final Logger log = Logger.getLogger(SqlQueueStore.class);
+
+    static final class SQL {
+
+        public static final String CREATE_TABLE
+                = "CREATE TABLE IF NOT EXISTS QUEUE (ID IDENTITY PRIMARY KEY, OBJECT VARBINARY NOT NULL)";
+        public static final String INSERT_OBJECT = "INSERT INTO QUEUE (OBJECT) VALUES (?)";
+        public static final String SELECT_OBJECTS_BETWEEN
+                = "SELECT ID, OBJECT, OCTET_LENGTH(OBJECT) FROM QUEUE WHERE ID > ? AND ID <= ? ORDER BY ID LIMIT ?";
+        public static final String SELECT_FIRST_ID = "SELECT MIN(ID) FROM QUEUE";
+        public static final String SELECT_LAST_ID = "SELECT MAX(ID) FROM QUEUE";
+        public static final String DELETE_OBJECT_RANGE = "DELETE FROM QUEUE WHERE ID BETWEEN ? AND ?";
+        public static final String COUNT_OBJECTS = "SELECT COUNT(ID) FROM QUEUE";
+        public static final String DELETE_OBJECT = "DELETE FROM QUEUE WHERE ID = ?";
+        public static final String SHUTDOWN_COMPACT = "SHUTDOWN COMPACT";
+    }
+
+    private volatile ConnectionManager cm;
+    private final Counter counter;
+    private final Serializer<E> serializer;
+
+    public SqlQueueStore(File dataDir) {
+        this(dataDir, Serializers.<E>java());
+    }
+
+    public SqlQueueStore(File dataDir, Serializer<E> serializer) {
+        this(dataDir, Durability.SYNC, ConnectionManager.DEFAULT_COMMIT_WINDOW_MILLIS, serializer);
+    }
+
+    public SqlQueueStore(File dataDir, Durability durability, long commitWindowMillis) {
+        this(dataDir, durability, commitWindowMillis, Serializers.<E>java());
+    }
+
+    /**
+     * Opens the QUEUE table of the H2 database in dataDir.
+     *
+     * @param dataDir the base directory of the database
+     * @param durability when writes are committed
+     * @param commitWindowMillis how long GROUP_COMMIT and ASYNC collect writes
+     * before committing them
+     * @param serializer converts elements to and from the stored bytes
+     */
+    public SqlQueueStore(File dataDir, Durability durability, long commitWindowMillis,
+            Serializer<E> serializer) {
+        this(dataDir, durability, commitWindowMillis, serializer, ConnectionManager.DEFAULT_READ_CONNECTIONS);
+    }
+
+    /**
+     * Opens the QUEUE table of the H2 database in dataDir, reading through up
+     * to readConnections pooled connections so that iterators and the head of
+     * the queue can be read in parallel.
+     *
+     * @param dataDir the base directory of the database
+     * @param durability when writes are committed
+     * @param commitWindowMillis how long GROUP_COMMIT and ASYNC collect writes
+     * before committing them
+     * @param serializer converts elements to and from the stored bytes
+     * @param readConnections the maximum number of pooled read connections
+     */
+    public SqlQueueStore(final File dataDir, Durability durability, long commitWindowMillis,
+            Serializer<E> serializer, int readConnections) {
+        this.serializer = serializer;
+        cm = new ConnectionManager(dataDir, SQL.CREATE_TABLE, durability, commitWindowMillis, readConnections);
+        Schema.convertToBinary(cm.getConnection(), "QUEUE", "OBJECT");
+        counter = new Counter(cm.getConnection(), "QUEUE", SQL.COUNT_OBJECTS);
+        cm.addRollbackListener(new Runnable() {
+            @Override
+            public void run() {
+                counter.reload(cm.getConnection());
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                ConnectionManager manager = cm;
+                if (manager == null) {
+                    return;
+                }
+                log.info("Compacting database at " + dataDir);
+                try {
+                    manager.flush();
+                    manager.getConnection().createStatement().execute(SQL.SHUTDOWN_COMPACT);
+                } catch (SQLException | DatabaseException ex) {
+                    log.error(ex.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public long size() {
+        return counter.get();
+    }
+
+    @Override
+    public void append(final E object) {
+        final byte[] bytes = serializer.serialize(object);
+        JdbcTemplate.executeUpdate(cm, SQL.INSERT_OBJECT, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setBytes(1, bytes);
+            }
+
+            @Override
+            public void updated(int count) {
+                counter.persist(this, count);
+            }
+
+            @Override
+            public void committed(int count) {
+                counter.add(count);
+            }
+        });
+    }
+
+    @Override
+    public void appendAll(final List<? extends E> objects) {
+        final List<byte[]> batch = new ArrayList<>(objects.size());
+        for (E object : objects) {
+            batch.add(serializer.serialize(object));
+        }
+        JdbcTemplate.executeBatch(cm, SQL.INSERT_OBJECT, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                for (byte[] bytes : batch) {
+                    ps.setBytes(1, bytes);
+                    ps.addBatch();
+                }
+            }
+
+            @Override
+            public void updated(int count) {
+                counter.persist(this, objects.size());
+            }
+
+            @Override
+            public void committed(int count) {
+                counter.add(objects.size());
+            }
+        });
+    }
+
+    @Override
+    public List<QueueEntry<E>> read(final long afterId, final long lastId, final int max, final long maxBytes) {
+        final List<Long> ids = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        JdbcTemplate.executeQuery(cm, SQL.SELECT_OBJECTS_BETWEEN, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setLong(1, afterId);
+                ps.setLong(2, lastId);
+                ps.setInt(3, max);
+            }
+
+            @Override
+            public Object results(ResultSet rs) throws SQLException {
+                long total = 0;
+                while (rs.next()) {
+                    long bytes = rs.getLong(3);
+                    if (!payloads.isEmpty() && total + bytes > maxBytes) {
+                        break;
+                    }
+                    ids.add(rs.getLong(1));
+                    payloads.add(rs.getBytes(2));
+                    total += bytes;
+                }
+                return null;
+            }
+        });
+        List<QueueEntry<E>> entries = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] bytes = payloads.get(i);
+            entries.add(new QueueEntry<>(ids.get(i), serializer.deserialize(bytes), bytes.length));
+        }
+        return entries;
+    }
+
+    @Override
+    public long firstId() {
+        return selectId(SQL.SELECT_FIRST_ID);
+    }
+
+    @Override
+    public long lastId() {
+        return selectId(SQL.SELECT_LAST_ID);
+    }
+
+    private long selectId(String sql) {
+        return (Long) JdbcTemplate.executeQuery(cm, sql, new JdbcTemplate() {
+            @Override
+            public Object results(ResultSet rs) throws SQLException {
+                if (!rs.next()) {
+                    return -1L;
+                }
+                long id = rs.getLong(1);
+                return rs.wasNull() ? -1L : id;
+            }
+        });
+    }
+
+    @Override
+    public void removeHead(final long firstId, final long lastId, final int count) {
+        // The count check rejects a range that holds rows other than those being removed.
+        JdbcTemplate.executeUpdate(cm, SQL.DELETE_OBJECT_RANGE, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setLong(1, firstId);
+                ps.setLong(2, lastId);
+            }
+
+            @Override
+            public void updated(int deleted) {
+                if (deleted != count) {
+                    throw new DatabaseException(String.format(
+                            "Expected to delete %d objects but deleted %d.", count, deleted));
+                }
+                counter.persist(this, -deleted);
+            }
+
+            @Override
+            public void committed(int deleted) {
+                counter.add(-deleted);
+            }
+        });
+    }
+
+    @Override
+    public int removeAll(final List<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        final int[] deleted = new int[1];
+        JdbcTemplate.executeBatch(cm, SQL.DELETE_OBJECT, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                for (long id : ids) {
+                    ps.setLong(1, id);
+                    ps.addBatch();
+                }
+            }
+
+            @Override
+            public void updated(int count) {
+                deleted[0] = count;
+                counter.persist(this, -count);
+            }
+
+            @Override
+            public void committed(int count) {
+                counter.add(-count);
+            }
+        });
+        return deleted[0];
+    }
+
+    @Override
+    public boolean remove(final long id) {
+        final int[] deleted = new int[1];
+        JdbcTemplate.executeUpdate(cm, SQL.DELETE_OBJECT, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setLong(1, id);
+            }
+
+            @Override
+            public void updated(int count) {
+                deleted[0] = count;
+                counter.persist(this, -count);
+            }
+
+            @Override
+            public void committed(int count) {
+                counter.add(-count);
+            }
+        });
+        return deleted[0] > 0;
+    }
+
+    @Override
+    public void awaitCommit() {
+        cm.awaitCommit();
+    }
+
+    @Override
+    public void flush() {
+        cm.flush();
+    }
+
+    @Override
+    public void addRollbackListener(Runnable listener) {
+        cm.addRollbackListener(listener);
+    }
+
+    @Override
+    public void compact() {
+        cm.compact();
+    }
+
+    @Override
+    public long getStorageSize() {
+        return cm.getDatabaseSize();
+    }
+
+    /**
+     * Executes a block of code within a transaction associated with this
+     * store. If the operator is run without an exception, the transaction is
+     * committed. If the operator throws a RuntimeException, the transaction is
+     * rolled back. Writes made by the calling thread through this store, or
+     * through other stores sharing the database, join the transaction.
+     */
+    @Override
+    public boolean inTransaction(Runnable operator) {
+        JdbcTemplate.openTransaction(cm);
+        boolean done = false;
+        try {
+            operator.run();
+            done = true;
+        } catch (RuntimeException e) {
+            log.log(Level.DEBUG, "Rolling back transaction due to exception", e);
+        } finally {
+            if (!done) {
+                JdbcTemplate.rollbackTransaction();
+            }
+        }
+        if (done) {
+            JdbcTemplate.commitTransaction();
+        }
+        return done;
+    }
+
+    @Override
+    public void dispose() {
+        cm.dispose();
+        cm = null;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Splits the rows of a persistent collection by ID range so that a parallel
+ * stream can read and deserialize them on several threads. Each spliterator
+ * covers the IDs after afterId up to lastId and reads its range a page at a
+ * time, so memory is bounded by the page size.
+ *
+ * The range is fixed when the spliterator is created, so rows added later are
+ * not seen, and rows removed meanwhile may or may not be. Sizes are estimated
+ * from the width of each range, since removals leave gaps in the IDs, so the
+ * spliterator is not SIZED.
+ *
+ * @param <R> the type of the rows read
+ * @param <T> the type of the elements made from them
+ */
+abstract class IdRangeSpliterator<R, T> implements Spliterator<T> {
+
+    // A range narrower than this many pages of IDs is not split further.
+    private static final int MIN_SPLIT_PAGES = 2;
+
+    private final int pageSize;
+    private final ArrayDeque<R> page = new ArrayDeque<>();
+    // The ID of the last row read; the IDs after it up to lastId remain to be read.
+    private long afterId;
+    private final long lastId;
+    private long estimate;
+
+    /**
+     * @param afterId the ID before the first row to cover
+     * @param lastId the ID of the last row to cover
+     * @param estimate the estimated number of rows in the range
+     * @param pageSize the maximum number of rows read at a time
+     */
+    IdRangeSpliterator(long afterId, long lastId, long estimate, int pageSize) {
+        this.afterId = afterId;
+        this.lastId = lastId;
+        this.estimate = estimate;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Reads up to max rows with IDs after afterId up to lastId, in ID order.
+     */
+    abstract List<R> read(long afterId, long lastId, int max);
+
+    abstract long idOf(R row);
+
+    abstract T elementOf(R row);
+
+    /**
+     * Creates a spliterator of the same kind over another range.
+     */
+    abstract IdRangeSpliterator<R, T> split(long afterId, long lastId, long estimate);
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (page.isEmpty() && afterId < lastId) {
+            List<R> rows = read(afterId, lastId, pageSize);
+            if (rows.isEmpty()) {
+                afterId = lastId;
+            } else {
+                page.addAll(rows);
+                afterId = idOf(page.peekLast());
+            }
+        }
+        R row = page.pollFirst();
+        if (row == null) {
+            estimate = 0;
+            return false;
+        }
+        estimate = Math.max(estimate - 1, page.size());
+        action.accept(elementOf(row));
+        return true;
+    }
+
+    /**
+     * Splits off the first half of the unread range. A spliterator holding a
+     * page of unconsumed rows is not split, since they precede the rest of its
+     * range.
+     */
+    @Override
+    public Spliterator<T> trySplit() {
+        long width = lastId - afterId;
+        if (!page.isEmpty() || width < (long) MIN_SPLIT_PAGES * pageSize) {
+            return null;
+        }
+        long mid = afterId + width / 2;
+        long prefixEstimate = estimate / 2;
+        Spliterator<T> prefix = split(afterId, mid, prefixEstimate);
+        afterId = mid;
+        estimate -= prefixEstimate;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | CONCURRENT;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+/**
+ * An in-memory map from the 128-bit key digests of a PersistentMap to the IDs
+ * of the rows holding them, so that lookups can skip the KEY_DIGEST index
+ * query. The entries are stored unboxed in one long array with open
+ * addressing and linear probing; an ID of 0, which H2 never assigns, marks a
+ * free slot.
+ *
+ * Writers update the index while they hold the map's write lock, before
+ * they commit, so it may briefly reflect a write that is then rolled back;
+ * the map rebuilds it after a rollback.
+ *
+ * Once the index would need more than maxBytes it is abandoned:
+ * {@link #get} returns {@link #UNKNOWN} from then on and the caller falls
+ * back to querying the database.
+ */
+final class KeyIndex {
+
+    /**
+     * Returned by {@link #get} for a digest that is not indexed.
+     */
+    static final long ABSENT = 0;
+
+    /**
+     * Returned by {@link #get} once the index has been abandoned.
+     */
+    static final long UNKNOWN = -1;
+
+    private static final int MIN_CAPACITY = 16;
+    // Each entry is the digest's high and low halves followed by the row ID.
+    private static final int ENTRY_LONGS = 3;
+
+    private final long maxBytes;
+    // At most half of the entries are in use.
+    private long[] slots;
+    private int size;
+    private boolean abandoned;
+
+    /**
+     * @param expectedSize the number of IDs the index is expected to hold
+     * @param maxBytes the maximum size of the index's array
+     */
+    KeyIndex(int expectedSize, long maxBytes) {
+        this.maxBytes = maxBytes;
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2L * expectedSize && capacity < (1 << 28)) {
+            capacity <<= 1;
+        }
+        if (bytesFor(capacity) > maxBytes) {
+            abandoned = true;
+        } else {
+            slots = new long[ENTRY_LONGS * capacity];
+        }
+    }
+
+    /**
+     * Returns the ID of the row whose key has the digest, {@link #ABSENT} if
+     * there is none, or {@link #UNKNOWN} if the index has been abandoned.
+     */
+    synchronized long get(long high, long low) {
+        if (abandoned) {
+            return UNKNOWN;
+        }
+        int i = find(high, low);
+        return slots[ENTRY_LONGS * i + 2];
+    }
+
+    /**
+     * Indexes the row holding the key with the digest, growing the index or
+     * abandoning it if it would exceed maxBytes.
+     */
+    synchronized void put(long high, long low, long id) {
+        if (abandoned) {
+            return;
+        }
+        int i = find(high, low);
+        if (slots[ENTRY_LONGS * i + 2] == ABSENT) {
+            if (2 * (size + 1) > capacity()) {
+                if (bytesFor(2 * capacity()) > maxBytes) {
+                    abandon();
+                    return;
+                }
+                resize(2 * capacity());
+                i = find(high, low);
+            }
+            size++;
+        }
+        set(i, high, low, id);
+    }
+
+    /**
+     * Removes the digest if it is indexed.
+     */
+    synchronized void remove(long high, long low) {
+        if (abandoned) {
+            return;
+        }
+        int mask = capacity() - 1;
+        int i = find(high, low);
+        if (slots[ENTRY_LONGS * i + 2] == ABSENT) {
+            return;
+        }
+        // Shift later entries of the same probe run back so that none is left
+        // beyond a free slot from its home.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (slots[ENTRY_LONGS * j + 2] == ABSENT) {
+                break;
+            }
+            int k = home(slots[ENTRY_LONGS * j + 1], mask);
+            if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                set(i, slots[ENTRY_LONGS * j], slots[ENTRY_LONGS * j + 1], slots[ENTRY_LONGS * j + 2]);
+                i = j;
+            }
+        }
+        set(i, 0, 0, ABSENT);
+        size--;
+    }
+
+    synchronized void clear() {
+        if (!abandoned) {
+            slots = new long[ENTRY_LONGS * MIN_CAPACITY];
+            size = 0;
+        }
+    }
+
+    synchronized boolean isAbandoned() {
+        return abandoned;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the size in bytes of the index's array.
+     */
+    synchronized long getMemoryUsage() {
+        return abandoned ? 0 : bytesFor(capacity());
+    }
+
+    private void abandon() {
+        abandoned = true;
+        slots = null;
+        size = 0;
+    }
+
+    private int capacity() {
+        return slots.length / ENTRY_LONGS;
+    }
+
+    /**
+     * Returns the slot holding the digest or, if it is not indexed, the free
+     * slot where it belongs.
+     */
+    private int find(long high, long low) {
+        int mask = capacity() - 1;
+        int i = home(low, mask);
+        while (slots[ENTRY_LONGS * i + 2] != ABSENT
+                && (slots[ENTRY_LONGS * i] != high || slots[ENTRY_LONGS * i + 1] != low)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void set(int i, long high, long low, long id) {
+        slots[ENTRY_LONGS * i] = high;
+        slots[ENTRY_LONGS * i + 1] = low;
+        slots[ENTRY_LONGS * i + 2] = id;
+    }
+
+    private void resize(int capacity) {
+        long[] old = slots;
+        slots = new long[ENTRY_LONGS * capacity];
+        for (int i = 0; i < old.length; i += ENTRY_LONGS) {
+            if (old[i + 2] != ABSENT) {
+                set(find(old[i], old[i + 1]), old[i], old[i + 1], old[i + 2]);
+            }
+        }
+    }
+
+    private static int home(long low, int mask) {
+        // The digest is already uniformly distributed, so its low bits serve.
+        return (int) low & mask;
+    }
+
+    private static long bytesFor(int capacity) {
+        return 8L * ENTRY_LONGS * capacity;
+    }
+}
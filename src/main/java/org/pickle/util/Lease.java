@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.util.*;
+import org.pickle.store.QueueEntry;
+
+/**
+ * Elements leased from the head of a PersistentQueue by
+ * {@link PersistentQueue#lease}. The elements stay in the queue's store but
+ * are hidden from other consumers until the lease is acknowledged, which
+ * removes them, or released or expired, which returns them to the head.
+ */
+public final class Lease<E> {
+
+    private final PersistentQueue<?> queue;
+    private final List<E> objects;
+    // Guarded by the queue's take lock. Entries removed through an iterator are dropped.
+    final List<QueueEntry<E>> entries;
+    final long deadlineNanos;
+    // Guarded by the queue's take lock. False once the lease is acknowledged, released or expired.
+    boolean active = true;
+
+    Lease(PersistentQueue<?> queue, List<QueueEntry<E>> entries, long deadlineNanos) {
+        this.queue = queue;
+        this.entries = entries;
+        this.deadlineNanos = deadlineNanos;
+        List<E> list = new ArrayList<>(entries.size());
+        for (QueueEntry<E> entry : entries) {
+            list.add(entry.getObject());
+        }
+        this.objects = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns the leased elements, oldest first.
+     */
+    public List<E> getObjects() {
+        return objects;
+    }
+
+    /**
+     * Returns the number of nanoseconds until the lease expires, measured as by
+     * System.nanoTime(), which is negative once it has expired.
+     */
+    public long getRemainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    boolean isFrom(PersistentQueue<?> queue) {
+        return this.queue == queue;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The serialized values of recently read PersistentMap entries, keyed by the
+ * digests of their serialized keys, so that keys the map stores as one entry
+ * share one cached value whatever their equals() and hashCode() methods say.
+ * Values are evicted in least-recently-used order once there are more than
+ * maxEntries of them or their total size exceeds maxBytes. They are kept
+ * serialized so that each get() still returns its own copy, as it does when
+ * read from the database.
+ *
+ * Writers bracket their changes with {@link #beginWrite} and
+ * {@link #endWrite}, which invalidate the affected keys. A reader that missed
+ * takes a {@link #stamp()} before querying the database, and its result is
+ * only cached if no write began or ended in the meantime, so a value read
+ * before a write commits never outlives it in the cache.
+ */
+final class NearCache {
+
+    private final LinkedHashMap<ByteBuffer, byte[]> values = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxEntries;
+    private long maxBytes;
+    private long bytes;
+    // Changes whenever a write begins or ends, invalidating stamps taken before it.
+    private long version;
+    // The number of writes begun and not yet ended, during which nothing is cached.
+    private int writers;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Returns the cached value of the key with the digest, or null if it is
+     * not cached.
+     */
+    synchronized byte[] get(byte[] digest) {
+        if (maxEntries == 0) {
+            return null;
+        }
+        byte[] value = values.get(ByteBuffer.wrap(digest));
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a stamp to pass to {@link #put} for a value about to be read
+     * from the database.
+     */
+    synchronized long stamp() {
+        return version;
+    }
+
+    /**
+     * Caches a value read from the database, unless a write has begun or ended
+     * since the stamp was taken or the value alone exceeds maxBytes.
+     */
+    synchronized void put(byte[] digest, byte[] value, long stamp) {
+        if (maxEntries == 0 || writers > 0 || stamp != version || value.length > maxBytes) {
+            return;
+        }
+        byte[] previous = values.put(ByteBuffer.wrap(digest), value);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += value.length;
+        trim();
+    }
+
+    /**
+     * Invalidates the key with the digest, or every key if it is null, before
+     * it is changed in the database, and stops values being cached until the
+     * matching {@link #endWrite}.
+     */
+    synchronized void beginWrite(byte[] digest) {
+        writers++;
+        version++;
+        invalidate(digest);
+    }
+
+    /**
+     * Invalidates the key with the digest, or every key if it is null, again
+     * once its change has been committed or rolled back.
+     */
+    synchronized void endWrite(byte[] digest) {
+        writers--;
+        version++;
+        invalidate(digest);
+    }
+
+    /**
+     * Sets the limits, evicting values as necessary to meet them.
+     *
+     * @param maxEntries the maximum number of values cached, or 0 to disable
+     * the cache
+     * @param maxBytes the maximum total size of the values cached
+     */
+    synchronized void setLimits(int maxEntries, long maxBytes) {
+        if (maxEntries < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Near-cache limits must not be negative.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void invalidate(byte[] digest) {
+        if (digest == null) {
+            values.clear();
+            bytes = 0;
+        } else {
+            byte[] value = values.remove(ByteBuffer.wrap(digest));
+            if (value != null) {
+                bytes -= value.length;
+            }
+        }
+    }
+
+    private void trim() {
+        Iterator<byte[]> eldest = values.values().iterator();
+        while (values.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+}
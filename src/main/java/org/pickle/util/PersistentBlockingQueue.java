@@ -5,76 +5,416 @@ package org.pickle.util;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
 import java.io.*;
+import org.pickle.serial.Serializer;
+import org.pickle.sql.ConnectionManager;
+import org.pickle.sql.Durability;
+import org.pickle.store.QueueStore;
+import org.pickle.store.SqlQueueStore;
 
+/**
+ * A PersistentQueue that blocks consumers while it is empty and, if it has a
+ * capacity, blocks producers while it is full.
+ *
+ * The capacity may be given as a number of elements, as a number of bytes of
+ * database files, or both. The byte limit is checked against
+ * {@link #getDatabaseSize()}, which H2 does not shrink when elements are
+ * removed; removed space is reused by later offers and only returned to the
+ * file system by {@link #compact()}. So that producers cannot block forever on
+ * space that is free but not yet reclaimed, the byte limit never rejects an
+ * element while the queue is empty.
+ *
+ * Waiting producers and consumers park on Conditions of the queue's put and
+ * take locks rather than on a monitor, so callers running on virtual threads
+ * do not pin their carrier threads while they wait.
+ *
+ * Leased elements count against the capacity until they are acknowledged.
+ * Consumers waiting for elements also wake when a lease expires.
+ */
 public class PersistentBlockingQueue<E extends Serializable> extends PersistentQueue<E>
     implements BlockingQueue<E> {
-      
-  private int size;
   
+  private final int capacity;
+  private final long maxBytes;
+  private final Condition notEmpty = takeLock.newCondition();
+  private final Condition notFull = putLock.newCondition();
+      
   public PersistentBlockingQueue(File dataDir) {
-    super(dataDir);
-    size = size();
+    this(dataDir, Integer.MAX_VALUE);
+  }
+  
+  public PersistentBlockingQueue(File dataDir, Durability durability) {
+    this(dataDir, durability, ConnectionManager.DEFAULT_COMMIT_WINDOW_MILLIS);
+  }
+  
+  public PersistentBlockingQueue(File dataDir, Durability durability, long commitWindowMillis) {
+    this(new SqlQueueStore<E>(dataDir, durability, commitWindowMillis), Integer.MAX_VALUE, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Creates an unbounded queue storing elements in the form produced by the
+   * given serializer.
+   */
+  public PersistentBlockingQueue(File dataDir, Serializer<E> serializer) {
+    this(new SqlQueueStore<>(dataDir, serializer));
+  }
+  
+  /**
+   * Creates an unbounded queue over the given storage engine.
+   */
+  public PersistentBlockingQueue(QueueStore<E> store) {
+    this(store, Integer.MAX_VALUE, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Creates a queue over the given storage engine that holds at most capacity
+   * elements.
+   */
+  public PersistentBlockingQueue(QueueStore<E> store, int capacity) {
+    this(store, capacity, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Creates a queue over the given storage engine that holds at most capacity
+   * elements and stops accepting elements once the store's files reach
+   * maxBytes.
+   *
+   * @param store the store holding the elements of the queue
+   * @param capacity the maximum number of elements, or Integer.MAX_VALUE
+   * @param maxBytes the storage size at which offers are refused, or Long.MAX_VALUE
+   */
+  public PersistentBlockingQueue(QueueStore<E> store, int capacity, long maxBytes) {
+    super(checkCapacity(capacity, maxBytes, store));
+    this.capacity = capacity;
+    this.maxBytes = maxBytes;
+  }
+  
+  /**
+   * Creates a queue that holds at most capacity elements.
+   */
+  public PersistentBlockingQueue(File dataDir, int capacity) {
+    this(dataDir, capacity, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Creates a queue that holds at most capacity elements and stops accepting
+   * elements once its database files reach maxBytes.
+   */
+  public PersistentBlockingQueue(File dataDir, int capacity, long maxBytes) {
+    this(dataDir, capacity, maxBytes, Durability.SYNC);
+  }
+  
+  /**
+   * Creates a bounded queue whose writes are committed according to the given
+   * durability mode.
+   *
+   * @param dataDir the base directory of the database
+   * @param capacity the maximum number of elements, or Integer.MAX_VALUE
+   * @param maxBytes the database size at which offers are refused, or Long.MAX_VALUE
+   * @param durability when offers and polls are committed
+   */
+  public PersistentBlockingQueue(File dataDir, int capacity, long maxBytes, Durability durability) {
+    this(new SqlQueueStore<E>(dataDir, checkCapacity(capacity, maxBytes, durability),
+        ConnectionManager.DEFAULT_COMMIT_WINDOW_MILLIS), capacity, maxBytes);
   }
   
-  public synchronized int drainTo(Collection<? super E> collection)  {
+  // Validates the capacity before the database is opened, passing value through.
+  private static <T> T checkCapacity(int capacity, long maxBytes, T value) {
+    if (capacity <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+    return value;
+  }
+  
+  public int drainTo(Collection<? super E> collection)  {
     return drainTo(collection, -1);
   }
   
-  public synchronized int drainTo(Collection<? super E> collection, int maxElements)  {
+  public int drainTo(Collection<? super E> collection, int maxElements)  {
     if (collection == this) {
       throw new IllegalArgumentException("A Queue cannot be drained to itself.");
     }
-    // TODO: Test this.
     int numToDrain = maxElements >= 0 ? Math.min(maxElements, size()) : size();
-    for (int i = 0; i < numToDrain; i++) {
-      collection.add(poll());
+    int drained = 0;
+    while (drained < numToDrain) {
+      List<E> batch = pollBatch(Math.min(numToDrain - drained, getBatchSize()));
+      if (batch.isEmpty()) {
+        break;
+      }
+      collection.addAll(batch);
+      drained += batch.size();
     }
-    return numToDrain;
+    return drained;
   }
   
+  // Offers and polls wait for their commit after releasing their lock, so that concurrent
+  // producers and consumers can share a group commit.  As in LinkedBlockingQueue, a thread that
+  // sees further room or further elements passes the signal on to the next waiter.
   @Override
-  public synchronized boolean offer(E object) {
+  public boolean offer(E object) {
     boolean accepted = super.offer(object);
     if (accepted) {
-      size++;
-      notify();
+      signalNotEmpty();
     }
     return accepted;
   }
   
-  public synchronized boolean offer(E object, long timeout, TimeUnit unit) {
-    return offer(object);
+  @Override
+  public boolean offerAll(Collection<? extends E> objects) {
+    try {
+      return super.offerAll(objects);
+    } finally {
+      // A failed batch may still have committed earlier batches.
+      signalNotEmpty();
+    }
+  }
+  
+  public boolean offer(E object, long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    putLock.lockInterruptibly();
+    try {
+      while (!insert(object)) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      if (hasRoomFor(1)) {
+        notFull.signal();
+      }
+    } finally {
+      putLock.unlock();
+    }
+    awaitCommit();
+    signalNotEmpty();
+    return true;
   }
   
-  public synchronized void put(E object) {
-    offer(object);
+  public void put(E object) throws InterruptedException {
+    putLock.lockInterruptibly();
+    try {
+      while (!insert(object)) {
+        notFull.await();
+      }
+      if (hasRoomFor(1)) {
+        notFull.signal();
+      }
+    } finally {
+      putLock.unlock();
+    }
+    awaitCommit();
+    signalNotEmpty();
   }
   
   public int remainingCapacity() {
-    return Integer.MAX_VALUE;
+    if (!hasRoomFor(1)) {
+      return 0;
+    }
+    return capacity == Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(0, capacity - storedSize());
   }
   
   @Override
-  public synchronized E poll() {
+  protected boolean hasRoomFor(int count) {
+    if (count > capacity - storedSize()) {
+      return false;
+    }
+    return maxBytes == Long.MAX_VALUE || storedSize() == 0 || getDatabaseSize() < maxBytes;
+  }
+  
+  @Override
+  public E poll() {
     E object = super.poll();
     if (object != null) {
-      size--;
+      signalNotFull();
     }
     return object;
   }
+  
+  @Override
+  public List<E> pollBatch(int maxElements) {
+    List<E> objects = super.pollBatch(maxElements);
+    if (!objects.isEmpty()) {
+      signalNotFull();
+    }
+    return objects;
+  }
+  
+  @Override
+  boolean removeById(long id) {
+    boolean removed = super.removeById(id);
+    if (removed) {
+      signalNotFull();
+    }
+    return removed;
+  }
+
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {    
+    long nanos = unit.toNanos(timeout);
+    E object;
+    takeLock.lockInterruptibly();
+    try {
+      while ((object = takeHead()) == null) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = awaitNotEmpty(nanos);
+      }
+      if (!isEmpty()) {
+        notEmpty.signal();
+      }
+    } finally {
+      takeLock.unlock();
+    }
+    awaitCommit();
+    signalNotFull();
+    return object;
+  }
 
-  public synchronized E poll(long timeout, TimeUnit unit) throws InterruptedException {    
-    if (size == 0) {
-      unit.timedWait(this, timeout);
+  public E take()  throws InterruptedException {
+    E object;
+    takeLock.lockInterruptibly();
+    try {
+      while ((object = takeHead()) == null) {
+        awaitNotEmpty(Long.MAX_VALUE);
+      }
+      if (!isEmpty()) {
+        notEmpty.signal();
+      }
+    } finally {
+      takeLock.unlock();
     }
-    return poll();
+    awaitCommit();
+    signalNotFull();
+    return object;
   }
 
-  public synchronized E take()  throws InterruptedException {
-    if (size == 0) {
-      wait();
+  /**
+   * Retrieves and removes up to maxElements objects from the head of this
+   * queue, waiting up to the given time for at least one to become available.
+   * Once one is available, this method returns without waiting for more.
+   *
+   * @return the removed objects, which is empty if the time elapsed
+   */
+  public List<E> pollBatch(int maxElements, long timeout, TimeUnit unit) throws InterruptedException {
+    if (maxElements <= 0) {
+      return new ArrayList<E>(0);
+    }
+    long nanos = unit.toNanos(timeout);
+    List<E> objects;
+    takeLock.lockInterruptibly();
+    try {
+      while ((objects = takeHead(maxElements)).isEmpty()) {
+        if (nanos <= 0) {
+          return objects;
+        }
+        nanos = awaitNotEmpty(nanos);
+      }
+      if (!isEmpty()) {
+        notEmpty.signal();
+      }
+    } finally {
+      takeLock.unlock();
+    }
+    awaitCommit();
+    signalNotFull();
+    return objects;
+  }
+
+  /**
+   * Leases up to maxElements objects from the head of this queue, waiting up
+   * to the given time for at least one to become available.
+   *
+   * @param maxElements the maximum number of objects to lease
+   * @param visibilityTimeout how long the lease lasts unless acknowledged or
+   * released
+   * @param timeout how long to wait for an object
+   * @param unit the unit of both timeouts
+   * @return the lease, or null if the time elapsed
+   * @see #lease(int, long, TimeUnit)
+   */
+  public Lease<E> lease(int maxElements, long visibilityTimeout, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    if (maxElements <= 0) {
+      throw new IllegalArgumentException("Lease size must be positive: " + maxElements);
+    }
+    long nanos = unit.toNanos(timeout);
+    Lease<E> lease;
+    takeLock.lockInterruptibly();
+    try {
+      while ((lease = leaseHead(maxElements, unit.toNanos(visibilityTimeout))) == null) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = awaitNotEmpty(nanos);
+      }
+      if (!isEmpty()) {
+        notEmpty.signal();
+      }
+    } finally {
+      takeLock.unlock();
+    }
+    return lease;
+  }
+  
+  @Override
+  public boolean ack(Lease<E> lease) {
+    boolean acked = super.ack(lease);
+    if (acked) {
+      signalNotFull();
+    }
+    return acked;
+  }
+  
+  @Override
+  public boolean nack(Lease<E> lease) {
+    boolean released = super.nack(lease);
+    if (released) {
+      signalNotEmpty();
+    }
+    return released;
+  }
+
+  /**
+   * Waits on notEmpty under the take lock, waking early when the next lease
+   * expires so that its objects can be taken again.
+   *
+   * @return the time remaining, or Long.MAX_VALUE when waiting without limit
+   */
+  private long awaitNotEmpty(long nanos) throws InterruptedException {
+    long expiry = nanosUntilLeaseExpiry();
+    if (nanos == Long.MAX_VALUE && expiry == Long.MAX_VALUE) {
+      notEmpty.await();
+      return Long.MAX_VALUE;
+    }
+    long remaining = notEmpty.awaitNanos(Math.min(nanos, expiry));
+    if (nanos == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return nanos - (Math.min(nanos, expiry) - remaining);
+  }
+
+  /**
+   * Wakes a waiting consumer. Called by producers after releasing the put lock.
+   */
+  private void signalNotEmpty() {
+    takeLock.lock();
+    try {
+      notEmpty.signal();
+    } finally {
+      takeLock.unlock();
+    }
+  }
+  
+  /**
+   * Wakes a waiting producer. Called by consumers after releasing the take lock.
+   */
+  private void signalNotFull() {
+    putLock.lock();
+    try {
+      notFull.signal();
+    } finally {
+      putLock.unlock();
     }
-    return poll();
   }
 }
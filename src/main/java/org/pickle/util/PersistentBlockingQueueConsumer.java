@@ -20,14 +20,26 @@ public abstract class PersistentBlockingQueueConsumer<E extends Serializable>
     private PersistentBlockingQueue<E> queue;
     private boolean disposed;
     private long interval;
+    private long leaseTimeout;
 
     PersistentBlockingQueueConsumer(PersistentBlockingQueue<E> queue) {
         this(queue, 250L);
     }
 
     PersistentBlockingQueueConsumer(PersistentBlockingQueue<E> queue, long pollingInterval) {
+        this(queue, pollingInterval, PersistentBlockingQueueConsumerPool.DEFAULT_LEASE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param queue the queue to consume
+     * @param pollingInterval how long to wait for an object, in milliseconds
+     * @param leaseTimeout how long objectTaken() may take before the object is
+     * delivered again, in milliseconds
+     */
+    PersistentBlockingQueueConsumer(PersistentBlockingQueue<E> queue, long pollingInterval, long leaseTimeout) {
         this.queue = queue;
         this.interval = pollingInterval;
+        this.leaseTimeout = leaseTimeout;
     }
 
     @Override
@@ -39,14 +51,19 @@ public abstract class PersistentBlockingQueueConsumer<E extends Serializable>
     public final void run() {
         while (!disposed) {
             try {
-                final E object = queue.poll(interval, TimeUnit.MILLISECONDS);
-                if (object != null) {
-                    queue.inTransaction(new Runnable() {
-                        public void run() {
-                            objectTaken(object);
-                        }
-                    });
+                Lease<E> lease = queue.lease(1, leaseTimeout, interval, TimeUnit.MILLISECONDS);
+                if (lease == null) {
+                    continue;
+                }
+                try {
+                    objectTaken(lease.getObjects().get(0));
+                } catch (RuntimeException e) {
+                    log.error("Unable to process object.  Returning it to the queue.", e);
+                    queue.nack(lease);
+                    Thread.sleep(interval);
+                    continue;
                 }
+                queue.ack(lease);
             } catch (InterruptedException e) {
                 log.log(Level.DEBUG, "Consumer caught InterruptedException.  Continuing to consume anyway.", e);
             }
@@ -54,7 +71,8 @@ public abstract class PersistentBlockingQueueConsumer<E extends Serializable>
     }
 
     /**
-     * Called by the run() loop whenever a new object is taken from the queue.
+     * Called by the run() loop whenever a new object is leased from the queue.
+     * The object is removed once this method returns.
      * The subclass implementation should process the object accordingly. If an
      * error is encountered which should cause the object to remain on the
      * queue, then this method should throw a RuntimeException of any kind.
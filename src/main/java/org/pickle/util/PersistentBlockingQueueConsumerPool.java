@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+import org.pickle.Disposable;
+
+/**
+ * A pool of worker threads that take batches of objects from a
+ * PersistentBlockingQueue and pass them to {@link #objectsTaken(List)}.
+ *
+ * Idle workers wait on the queue's not-empty condition, so an offered object
+ * is picked up at once. A worker that has taken fewer than the maximum batch
+ * size waits up to the maximum wait for more objects before delivering the
+ * batch; with a maximum wait of zero, batches hold whatever was available.
+ *
+ * Workers are created by the ThreadFactory given to the constructor. Because
+ * the queue's waits use java.util.concurrent locks rather than monitors, a
+ * factory of virtual threads, such as
+ * {@code Thread.ofVirtual().name("consumer-", 0).factory()} on Java 21, can
+ * be used for large numbers of workers.
+ *
+ * Workers lease their batches rather than removing them, so objects stay on
+ * the queue until objectsTaken() returns and are returned to the head if it
+ * throws. A batch that is still being processed when its lease timeout
+ * elapses is delivered again, possibly to another worker.
+ *
+ * {@link #shutdown()} stops workers from taking new batches and lets the
+ * batches in progress finish; {@link #dispose()} also waits for them.
+ * Workers are never interrupted, since interrupting a thread blocked in
+ * database file I/O closes the database file.
+ */
+public abstract class PersistentBlockingQueueConsumerPool<E extends Serializable> implements Disposable {
+
+    private static final Logger log = Logger.getLogger(PersistentBlockingQueueConsumerPool.class);
+
+    /**
+     * How often idle workers check whether the pool has been shut down.
+     */
+    private static final long IDLE_CHECK_MILLIS = 100;
+
+    /**
+     * The default time a batch may take to process before it is delivered again.
+     */
+    public static final long DEFAULT_LEASE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    private final PersistentBlockingQueue<E> queue;
+    private final int workers;
+    private final ThreadFactory threadFactory;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private volatile long leaseTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LEASE_TIMEOUT_MILLIS);
+    private volatile boolean running;
+    private CountDownLatch terminated;
+
+    /**
+     * Creates a pool of daemon platform threads.
+     */
+    public PersistentBlockingQueueConsumerPool(PersistentBlockingQueue<E> queue, int workers,
+            int maxBatchSize, long maxWait, TimeUnit unit) {
+        this(queue, workers, maxBatchSize, maxWait, unit, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pickle-consumer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param queue the queue to consume
+     * @param workers the number of worker threads
+     * @param maxBatchSize the maximum number of objects passed to one call of
+     * objectsTaken()
+     * @param maxWait how long a worker waits to fill a batch once it has taken
+     * an object
+     * @param unit the unit of maxWait
+     * @param threadFactory creates the worker threads
+     */
+    public PersistentBlockingQueueConsumerPool(PersistentBlockingQueue<E> queue, int workers,
+            int maxBatchSize, long maxWait, TimeUnit unit, ThreadFactory threadFactory) {
+        if (workers <= 0 || maxBatchSize <= 0 || maxWait < 0) {
+            throw new IllegalArgumentException("Workers and batch size must be positive and wait not negative.");
+        }
+        this.queue = queue;
+        this.workers = workers;
+        this.threadFactory = threadFactory;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * Sets how long a batch may take to process before its lease expires and it
+     * is delivered again. Applies to batches taken after the call.
+     */
+    public void setLeaseTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Lease timeout must be positive: " + timeout);
+        }
+        leaseTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Starts the workers.
+     *
+     * @throws IllegalStateException if the pool has already been started
+     */
+    public synchronized void start() {
+        if (terminated != null) {
+            throw new IllegalStateException("Consumer pool already started.");
+        }
+        running = true;
+        terminated = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work();
+                    } finally {
+                        terminated.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the workers from taking further objects. Batches already taken
+     * are still passed to objectsTaken().
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * Waits for the workers to finish after {@link #shutdown()}.
+     *
+     * @return true if every worker finished within the timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = terminated;
+        }
+        return latch == null || latch.await(timeout, unit);
+    }
+
+    /**
+     * Shuts the pool down and waits for the batches in progress to finish.
+     */
+    @Override
+    public void dispose() {
+        shutdown();
+        try {
+            awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                long leaseNanos = leaseTimeoutNanos;
+                Lease<E> first = queue.lease(maxBatchSize, leaseNanos,
+                        TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<Lease<E>> leases = new ArrayList<>();
+                leases.add(first);
+                int size = first.getObjects().size();
+                long deadline = System.nanoTime() + maxWaitNanos;
+                long nanos = maxWaitNanos;
+                while (size < maxBatchSize && nanos > 0) {
+                    Lease<E> more = queue.lease(maxBatchSize - size, leaseNanos, nanos, TimeUnit.NANOSECONDS);
+                    if (more == null) {
+                        break;
+                    }
+                    leases.add(more);
+                    size += more.getObjects().size();
+                    nanos = deadline - System.nanoTime();
+                }
+                deliver(leases, size);
+            } catch (InterruptedException e) {
+                log.debug("Consumer interrupted.  Continuing to consume anyway.", e);
+            } catch (RuntimeException e) {
+                log.error("Unable to take objects from queue.", e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS));
+            }
+        }
+    }
+
+    private void deliver(List<Lease<E>> leases, int size) {
+        List<E> batch = new ArrayList<>(size);
+        for (Lease<E> lease : leases) {
+            batch.addAll(lease.getObjects());
+        }
+        try {
+            objectsTaken(batch);
+        } catch (RuntimeException e) {
+            log.error("Unable to process " + batch.size() + " objects.  Returning them to the queue.", e);
+            for (Lease<E> lease : leases) {
+                queue.nack(lease);
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS));
+            return;
+        }
+        for (Lease<E> lease : leases) {
+            if (!queue.ack(lease)) {
+                log.warn("Lease expired before " + lease.getObjects().size() + " objects were processed.");
+            }
+        }
+    }
+
+    /**
+     * Called by a worker with each batch of objects taken from the queue, in
+     * queue order. Batches are delivered concurrently by different workers.
+     * If processing fails and the objects should remain on the queue, this
+     * method should throw a RuntimeException of any kind; the objects are
+     * then returned to the head of the queue.
+     *
+     * @param objects between one and the maximum batch size objects
+     */
+    protected abstract void objectsTaken(List<E> objects);
+}
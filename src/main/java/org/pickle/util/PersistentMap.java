@@ -4,150 +4,1664 @@
 package org.pickle.util;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 import org.pickle.Disposable;
+import org.pickle.serial.SerializationException;
+import org.pickle.serial.Serializer;
+import org.pickle.serial.Serializers;
 import org.pickle.sql.*;
 
 /**
- * TODO: Finish this class.
+ * A Map whose entries are stored in an embedded H2 database, so that it can
+ * hold more than fits in memory and survives restarts. Each entry is a row
+ * holding the serialized key and value, found through a unique index on a
+ * 128-bit digest of the serialized key; only the size is kept in memory. Null
+ * keys and values are not supported.
+ *
+ * Keys are matched by their serialized form rather than by equals() and
+ * hashCode(), so lookups do not depend on hash codes that vary between runs,
+ * but keys that are equal must serialize to the same bytes. This holds for
+ * strings, boxed primitives, enums and most value classes. Key classes stored
+ * with Java serialization must declare a fixed serialVersionUID, since the
+ * computed default changes when the class is recompiled and would leave the
+ * stored entries unreachable.
+ *
+ * The views returned by {@link #entrySet()}, {@link #keySet()} and
+ * {@link #values()} read the table a page at a time and write removals and
+ * {@link Map.Entry#setValue} through to the database.
  */
 public class PersistentMap<K extends Serializable, V extends Serializable>
-             extends AbstractMap<K, V> implements Disposable {
+             extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Disposable {
   
+  private static final Logger log = Logger.getLogger(PersistentMap.class);
+  
+  // KEY and VALUE are keywords in H2 2.x, so they are quoted.
   private static final String CREATE_TABLE_SQL =
       "CREATE TABLE IF NOT EXISTS MAP (" +
       "  ID            IDENTITY  PRIMARY KEY," +
-      "  KEY_HASHCODE  INT       NOT NULL," +
-      "  KEY           OTHER     NOT NULL," +
-      "  VALUE         OTHER     NOT NULL)";
+      "  KEY_DIGEST    BINARY(16) NOT NULL," +
+      "  \"KEY\"         VARBINARY NOT NULL," +
+      "  \"VALUE\"       VARBINARY NOT NULL)";
+  
+  private static final String CREATE_INDEX_SQL =
+      "CREATE UNIQUE INDEX IF NOT EXISTS MAP_KEY_DIGEST ON MAP (KEY_DIGEST)";
   
-  private static final String INSERT_ENTRY_SQL = "INSERT INTO MAP (KEY_HASHCODE, KEY, VALUE) VALUES (?, ?, ?)";
+  private static final String INSERT_ENTRY_SQL = "INSERT INTO MAP (KEY_DIGEST, \"KEY\", \"VALUE\") VALUES (?, ?, ?)";
 
-  private static final String UPDATE_ENTRY_SQL = "UPDATE MAP SET VALUE = ? WHERE ID = ?";
+  private static final String UPDATE_ENTRY_SQL = "UPDATE MAP SET \"VALUE\" = ? WHERE ID = ?";
+  
+  private static final String SELECT_ENTRY_BY_KEY_DIGEST_SQL = "SELECT ID, \"VALUE\" FROM MAP WHERE KEY_DIGEST = ?";
+  
+  private static final String SELECT_VALUE_BY_ID_SQL = "SELECT \"VALUE\" FROM MAP WHERE ID = ?";
+  
+  private static final String SELECT_ID_BY_KEY_DIGEST_SQL = "SELECT ID FROM MAP WHERE KEY_DIGEST = ?";
+  
+  private static final String SELECT_IDS_AND_KEY_DIGESTS_SQL = "SELECT ID, KEY_DIGEST FROM MAP";
+  
+  private static final String SELECT_IDS_BY_KEY_DIGESTS_SQL =
+    "SELECT ID, KEY_DIGEST FROM MAP WHERE KEY_DIGEST = ANY(?)";
+  
+  private static final String SELECT_VALUES_BY_KEY_DIGESTS_SQL =
+    "SELECT KEY_DIGEST, \"VALUE\" FROM MAP WHERE KEY_DIGEST = ANY(?)";
   
-  private static final String SELECT_ENTRY_BY_KEY_HASHCODE_SQL =
-    "SELECT ID, KEY, VALUE FROM MAP WHERE KEY_HASHCODE = ?";
+  private static final String MERGE_ENTRY_SQL =
+    "MERGE INTO MAP (KEY_DIGEST, \"KEY\", \"VALUE\") KEY (KEY_DIGEST) VALUES (?, ?, ?)";
   
-  private static final String COUNT_ENTRIES_BY_KEY_HASHCODE_SQL = "SELECT COUNT(ID) FROM MAP WHERE KEY_HASHCODE = ?";
+  private static final String SELECT_ENTRIES_BETWEEN_SQL =
+    "SELECT ID, \"KEY\", \"VALUE\" FROM MAP WHERE ID > ? AND ID <= ? ORDER BY ID LIMIT ?";
+  
+  private static final String SELECT_ID_RANGE_SQL = "SELECT MIN(ID), MAX(ID) FROM MAP";
+  
+  private static final String DELETE_ENTRY_SQL = "DELETE FROM MAP WHERE ID = ?";
+  
+  private static final String DELETE_ENTRIES_SQL = "DELETE FROM MAP WHERE KEY_DIGEST = ANY(?)";
+  
+  private static final String DELETE_OTHER_ENTRIES_SQL = "DELETE FROM MAP WHERE NOT (ID = ANY(?))";
+  
+  private static final String DELETE_ALL_ENTRIES_SQL = "DELETE FROM MAP";
   
   private static final String COUNT_ENTRIES_SQL = "SELECT COUNT(ID) FROM MAP";
   
+  // Upgrades a table that located keys by KEY_HASHCODE, an INT holding key.hashCode().
+  private static final String ADD_KEY_DIGEST_SQL = "ALTER TABLE MAP ADD COLUMN IF NOT EXISTS KEY_DIGEST BINARY(16)";
+  
+  private static final String SELECT_UNDIGESTED_KEYS_SQL = "SELECT ID, \"KEY\" FROM MAP WHERE KEY_DIGEST IS NULL";
+  
+  private static final String SET_KEY_DIGEST_SQL = "UPDATE MAP SET KEY_DIGEST = ? WHERE ID = ?";
+  
+  private static final String DELETE_DUPLICATE_KEYS_SQL =
+    "DELETE FROM MAP WHERE ID NOT IN (SELECT MAX(ID) FROM MAP GROUP BY KEY_DIGEST)";
+  
+  private static final String REQUIRE_KEY_DIGEST_SQL = "ALTER TABLE MAP ALTER COLUMN KEY_DIGEST SET NOT NULL";
+  
+  private static final String DROP_KEY_HASHCODE_INDEX_SQL = "DROP INDEX IF EXISTS MAP_KEY_HASHCODE";
+  
+  private static final String DROP_KEY_HASHCODE_SQL = "ALTER TABLE MAP DROP COLUMN IF EXISTS KEY_HASHCODE";
+  
+  private static final String KEY_DIGEST_ALGORITHM = "SHA-256";
+  
+  private static final int KEY_DIGEST_BYTES = 16;
+  
+  private static final int UPGRADE_BATCH_SIZE = 1000;
+  
+  private static final ThreadLocal<MessageDigest> keyDigests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance(KEY_DIGEST_ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        // Every Java platform is required to support SHA-256.
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+  
+  /**
+   * The default maximum number of entries read at a time by the views.
+   */
+  public static final int DEFAULT_ITERATOR_PAGE_SIZE = 256;
+  
+  /**
+   * The default maximum number of keys handled by one statement and
+   * transaction of getAll(), putAll() and removeAll().
+   */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  
+  // The number of locks serializing compute() and merge() calls, a power of two.
+  private static final int LOCK_STRIPES = 64;
+  
   private ConnectionManager cm;
+  private Counter counter;
+  private final Serializer<K> keySerializer;
+  private final Serializer<V> valueSerializer;
+  private volatile int iteratorPageSize = DEFAULT_ITERATOR_PAGE_SIZE;
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+  private final Set<Map.Entry<K, V>> entrySetView = new EntrySet();
+  private final Set<K> keySetView = new KeySet();
+  private final Collection<V> valuesView = new Values();
+  private final NearCache nearCache = new NearCache();
+  private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+  // Null unless enabled by setKeyIndexLimit(); replaced when rebuilt.
+  private volatile KeyIndex keyIndex;
+  private volatile long keyIndexLimit;
   
   public PersistentMap(File dataDir) {
-    cm = new ConnectionManager(dataDir, CREATE_TABLE_SQL);
+    this(dataDir, Serializers.<K>java(), Serializers.<V>java());
+  }
+  
+  /**
+   * Opens the map stored in dataDir, storing keys and values in the form
+   * produced by the given serializers. A MAP table from an earlier version,
+   * which used OTHER columns, is converted to VARBINARY and can be read with
+   * Java serialization. One that located keys by their hash codes is given
+   * key digests; if the same key was stored more than once, because its hash
+   * code changed between runs, only its latest entry is kept.
+   *
+   * @param dataDir the base directory of the database
+   * @param keySerializer converts keys to and from the stored bytes
+   * @param valueSerializer converts values to and from the stored bytes
+   * @see Serializers
+   */
+  public PersistentMap(File dataDir, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+    this(dataDir, keySerializer, valueSerializer, ConnectionManager.DEFAULT_READ_CONNECTIONS);
+  }
+  
+  /**
+   * Opens the map stored in dataDir, running lookups on up to
+   * readConnections pooled connections so that they proceed in parallel with
+   * each other and with writes.
+   *
+   * @param dataDir the base directory of the database
+   * @param keySerializer converts keys to and from the stored bytes
+   * @param valueSerializer converts values to and from the stored bytes
+   * @param readConnections the maximum number of pooled read connections, or
+   * zero to run lookups on the write connection
+   */
+  public PersistentMap(File dataDir, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+      int readConnections) {
+    this.keySerializer = keySerializer;
+    this.valueSerializer = valueSerializer;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    cm = new ConnectionManager(dataDir, CREATE_TABLE_SQL, Durability.SYNC,
+        ConnectionManager.DEFAULT_COMMIT_WINDOW_MILLIS, readConnections);
+    Schema.convertToBinary(cm.getConnection(), "MAP", "KEY", "VALUE");
+    counter = new Counter(cm.getConnection(), "MAP", COUNT_ENTRIES_SQL);
+    if (Schema.hasColumn(cm.getConnection(), "MAP", "KEY_HASHCODE")) {
+      upgradeToKeyDigests(cm.getConnection());
+    }
+    JdbcTemplate.executeUpdate(cm.getConnection(), CREATE_INDEX_SQL);
+    cm.addRollbackListener(new Runnable() {
+      public void run() {
+        counter.reload(cm.getConnection());
+        // The index may hold the changes that were rolled back.
+        if (keyIndex != null) {
+          keyIndex = buildKeyIndex(keyIndexLimit);
+        }
+      }
+    });
   }
   
   public void dispose() {
     cm.dispose();
   }
   
+  /**
+   * Rewrites the database to return the space of removed entries to the file
+   * system. The database is closed while it is rewritten, so the map must
+   * not be used by other threads until this method returns.
+   */
+  public void compact() {
+    nearCache.beginWrite(null);
+    try {
+      cm.compact();
+    } finally {
+      nearCache.endWrite(null);
+    }
+  }
+  
+  /**
+   * Returns the size in bytes of the files holding this map.
+   */
+  public long getDatabaseSize() {
+    return cm.getDatabaseSize();
+  }
+  
+  /**
+   * Executes a block of code within a transaction associated with this map.
+   * Any number of puts made by the operator are committed together. If the
+   * operator throws a RuntimeException, the transaction is rolled back and
+   * the exception is logged, as by {@link PersistentQueue#inTransaction}.
+   *
+   * @param operator the Runnable containing the code to run within a
+   * transaction
+   * @return true if the operator completed and its work was committed
+   */
+  public boolean inTransaction(Runnable operator) {
+    // The keys written are not tracked, so the whole near-cache is invalidated.
+    nearCache.beginWrite(null);
+    try {
+      JdbcTemplate.openTransaction(cm);
+      boolean done = false;
+      try {
+        operator.run();
+        done = true;
+      } catch (RuntimeException e) {
+        log.log(Level.DEBUG, "Rolling back transaction due to exception", e);
+      } finally {
+        if (!done) {
+          JdbcTemplate.rollbackTransaction();
+        }
+      }
+      if (done) {
+        JdbcTemplate.commitTransaction();
+      }
+      return done;
+    } finally {
+      nearCache.endWrite(null);
+    }
+  }
+  
   @Override
   public int size() {
-    // TODO: The map size can probably be tracked and stored internally.
-    //       Then this query would only need to be called upon construction.
-    return (Integer) JdbcTemplate.executeQuery(cm.getConnection(), COUNT_ENTRIES_SQL, new JdbcTemplate() {
-      public Object results(ResultSet rs) throws SQLException {
-        return rs.next() ? rs.getInt(1) : 0;
+    return counter.intValue();
+  }
+  
+  /**
+   * Associates the value with the key. The lookup of the previous value and
+   * the insert or update run as one transaction, using the index on the key's
+   * digest.
+   */
+  @Override
+  public V put(K key, V value) {
+    if (key == null || value == null) {
+      throw new IllegalArgumentException("null is not supported.");
+    }
+    final byte[] valueBytes = valueSerializer.serialize(value);
+    byte[] previous = update(keySerializer.serialize(key), new Update() {
+      public byte[] apply(byte[] current) {
+        return valueBytes;
       }
     });
+    return previous != null ? valueSerializer.deserialize(previous) : null;
   }
   
+  /**
+   * Associates the value with the key unless it already has a value, as one
+   * transaction.
+   */
   @Override
-  @SuppressWarnings("unchecked")
-  public V put(final K key, final V value) {
+  public V putIfAbsent(K key, V value) {
     if (key == null || value == null) {
       throw new IllegalArgumentException("null is not supported.");
     }
-    V prevValue = null;
-    if (containsKey(key)) {
-      Object[] idAndPrevValue = getIdAndValue(key);
-      final long id = (Long) idAndPrevValue[0]; 
-      prevValue = (V) idAndPrevValue[1];
-      JdbcTemplate.executeUpdate(cm.getConnection(), UPDATE_ENTRY_SQL, new JdbcTemplate() {
-        public void statement(PreparedStatement ps) throws SQLException {
-          ps.setObject(1, value, Types.JAVA_OBJECT);
-          ps.setObject(2, id, Types.BIGINT);
-        }
-      });
+    final byte[] valueBytes = valueSerializer.serialize(value);
+    byte[] previous = update(keySerializer.serialize(key), new Update() {
+      public byte[] apply(byte[] current) {
+        return current != null ? current : valueBytes;
+      }
+    });
+    return previous != null ? valueSerializer.deserialize(previous) : null;
+  }
+  
+  /**
+   * Replaces the value of the key if it has one, as one transaction.
+   */
+  @Override
+  public V replace(K key, V value) {
+    if (key == null || value == null) {
+      throw new IllegalArgumentException("null is not supported.");
     }
-    else {
-      JdbcTemplate.executeUpdate(cm.getConnection(), INSERT_ENTRY_SQL, new JdbcTemplate() {
-        public void statement(PreparedStatement ps) throws SQLException {
-          ps.setObject(1, key.hashCode(), Types.INTEGER);
-          ps.setObject(2, key, Types.JAVA_OBJECT);
-          ps.setObject(3, value, Types.JAVA_OBJECT);
-        }
-      });
+    final byte[] valueBytes = valueSerializer.serialize(value);
+    byte[] previous = update(keySerializer.serialize(key), new Update() {
+      public byte[] apply(byte[] current) {
+        return current != null ? valueBytes : null;
+      }
+    });
+    return previous != null ? valueSerializer.deserialize(previous) : null;
+  }
+  
+  /**
+   * Replaces the value of the key if it equals oldValue, as one transaction.
+   */
+  @Override
+  public boolean replace(K key, final V oldValue, V newValue) {
+    if (key == null || oldValue == null || newValue == null) {
+      throw new IllegalArgumentException("null is not supported.");
     }
-    return prevValue;
+    final byte[] valueBytes = valueSerializer.serialize(newValue);
+    final boolean[] replaced = new boolean[1];
+    update(keySerializer.serialize(key), new Update() {
+      public byte[] apply(byte[] current) {
+        replaced[0] = current != null && oldValue.equals(valueSerializer.deserialize(current));
+        return replaced[0] ? valueBytes : current;
+      }
+    });
+    return replaced[0];
   }
   
+  /**
+   * Computes a new value for the key from its current value, or null if it
+   * has none, and stores it or, if it is null, removes the key. The function
+   * runs outside the database's write lock, so it may be called again if
+   * another thread changes the entry in the meantime; calls for keys in the
+   * same lock stripe wait for one another.
+   */
   @Override
-  public boolean containsKey(final Object key) {
-    return (Boolean) JdbcTemplate.executeQuery(cm.getConnection(), COUNT_ENTRIES_BY_KEY_HASHCODE_SQL,
-      new JdbcTemplate() {
-        public void statement(PreparedStatement ps) throws SQLException {
-          ps.setObject(1, key.hashCode(), Types.INTEGER);
+  public V compute(K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return recompute(key, new BiFunction<K, V, V>() {
+      public V apply(K key, V current) {
+        return remappingFunction.apply(key, current);
+      }
+    });
+  }
+  
+  /**
+   * Stores the value computed for the key if it has no value, as
+   * {@link #compute} does.
+   */
+  @Override
+  public V computeIfAbsent(K key, final Function<? super K, ? extends V> mappingFunction) {
+    return recompute(key, new BiFunction<K, V, V>() {
+      public V apply(K key, V current) {
+        return current != null ? current : mappingFunction.apply(key);
+      }
+    });
+  }
+  
+  /**
+   * Replaces or removes the value of the key if it has one, as
+   * {@link #compute} does.
+   */
+  @Override
+  public V computeIfPresent(K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return recompute(key, new BiFunction<K, V, V>() {
+      public V apply(K key, V current) {
+        return current != null ? remappingFunction.apply(key, current) : null;
+      }
+    });
+  }
+  
+  /**
+   * Stores the value for the key if it has none, or else the result of
+   * combining it with the current value, as {@link #compute} does.
+   */
+  @Override
+  public V merge(K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    if (value == null) {
+      throw new IllegalArgumentException("null is not supported.");
+    }
+    return recompute(key, new BiFunction<K, V, V>() {
+      public V apply(K key, V current) {
+        return current != null ? remappingFunction.apply(current, value) : value;
+      }
+    });
+  }
+  
+  /**
+   * Returns true if the map holds the key. With the key index enabled this
+   * needs no query.
+   *
+   * @see #setKeyIndexLimit(long)
+   */
+  @Override
+  public boolean containsKey(Object key) {
+    if (key == null) {
+      return false;
+    }
+    KeyIndex index = keyIndex;
+    if (index != null) {
+      byte[] digest = digestOf(key);
+      if (digest == null) {
+        return false;
+      }
+      long id = index.get(high(digest), low(digest));
+      if (id != KeyIndex.UNKNOWN) {
+        return id != KeyIndex.ABSENT;
+      }
+    }
+    return read(key) != null;
+  }
+
+  /**
+   * Returns the value for the key, from the near-cache if it is enabled and
+   * holds the key.
+   *
+   * @see #setNearCacheLimits(int, long)
+   */
+  @Override
+  public V get(Object key) {
+    if (key == null) {
+      return null;
+    }
+    byte[] value = read(key);
+    return value != null ? valueSerializer.deserialize(value) : null;
+  }
+
+  /**
+   * Removes the mapping for the key. The lookup and the delete run as one
+   * transaction.
+   */
+  @Override
+  public V remove(Object key) {
+    byte[] keyBytes = key != null ? keyBytesOf(key) : null;
+    if (keyBytes == null) {
+      return null;
+    }
+    byte[] previous = update(keyBytes, new Update() {
+      public byte[] apply(byte[] current) {
+        return null;
+      }
+    });
+    return previous != null ? valueSerializer.deserialize(previous) : null;
+  }
+
+  /**
+   * Removes the key if its value equals value, as one transaction.
+   */
+  @Override
+  public boolean remove(Object key, final Object value) {
+    byte[] keyBytes = key != null && value != null ? keyBytesOf(key) : null;
+    if (keyBytes == null) {
+      return false;
+    }
+    final boolean[] removed = new boolean[1];
+    update(keyBytes, new Update() {
+      public byte[] apply(byte[] current) {
+        removed[0] = current != null && value.equals(valueSerializer.deserialize(current));
+        return removed[0] ? null : current;
+      }
+    });
+    return removed[0];
+  }
+
+  @Override
+  public void clear() {
+    nearCache.beginWrite(null);
+    try {
+      JdbcTemplate.openTransaction(cm);
+      boolean done = false;
+      try {
+        delete(DELETE_ALL_ENTRIES_SQL, null);
+        KeyIndex index = keyIndex;
+        if (index != null) {
+          index.clear();
         }
-        public Object results(ResultSet rs) throws SQLException {
-          int count = 0;
-          if (rs.next()) {
-            count = rs.getInt(1);
-          }
-          return count > 0;
+        done = true;
+      } finally {
+        if (!done) {
+          JdbcTemplate.rollbackTransaction();
         }
-      });
+      }
+      JdbcTemplate.commitTransaction();
+    } finally {
+      nearCache.endWrite(null);
+    }
   }
 
+  /**
+   * Returns a view of the map's entries. Iterating over it reads the table
+   * in ID order a page at a time, so that the map need not fit in memory;
+   * entries put after the iteration starts may or may not be seen. Removal
+   * through the iterator and {@link Map.Entry#setValue} write through to the
+   * database.
+   */
   @Override
-  @SuppressWarnings("unchecked")
-  public V get(final Object key) {
-    return (V) getIdAndValue(key)[1];
+  public Set<Map.Entry<K, V>> entrySet() {
+    return entrySetView;
   }
 
+  /**
+   * Returns a view of the map's keys, read a page at a time like
+   * {@link #entrySet()}. Its removeAll() deletes the matching rows with one
+   * statement per batch, as {@link #removeAll(Collection)} does, and its
+   * retainAll() with a single statement.
+   */
   @Override
-  public V remove(Object key) {
-    throw new UnsupportedOperationException();
+  public Set<K> keySet() {
+    return keySetView;
+  }
+
+  /**
+   * Returns a view of the map's values, read a page at a time like
+   * {@link #entrySet()}.
+   */
+  @Override
+  public Collection<V> values() {
+    return valuesView;
   }
 
-  public Set<Map.Entry<K,V>> entrySet() {
-    throw new UnsupportedOperationException();
+  /**
+   * Enables an in-memory cache of recently read values, so that get() and
+   * containsKey() for hot keys are answered without a query. Values are
+   * evicted in least-recently-used order beyond either limit, and a key is
+   * invalidated whenever it is written through this map.
+   *
+   * @param maxEntries the maximum number of values cached, or 0 to disable
+   * the cache, which is the default
+   * @param maxBytes the maximum total size of the serialized values cached
+   */
+  public void setNearCacheLimits(int maxEntries, long maxBytes) {
+    nearCache.setLimits(maxEntries, maxBytes);
   }
-  
+
   /**
-   * Returns the ID and value (in a two-element array) for the given key.
+   * Returns the number of lookups answered by the near-cache.
    */
-  private Object[] getIdAndValue(final Object key) {
-    return (Object[]) JdbcTemplate.executeQuery(cm.getConnection(), SELECT_ENTRY_BY_KEY_HASHCODE_SQL,
-      new JdbcTemplate() {
-        public void statement(PreparedStatement ps) throws SQLException {
-          ps.setObject(1, key.hashCode(), Types.INTEGER);
-        }
-        public Object results(ResultSet rs) throws SQLException {
-          long id = -1;
-          Object value = null;
-          if (rs.next()) {
-            id = rs.getLong(1);
-            value = rs.getObject(3);
-            // If there is more than one result for this hashcode, keys must be compared the brute-force way
-            // using Object.equals().
-            if (rs.next()) {
-              id = -1;
-              value = null;
-              rs.beforeFirst();
-              while (rs.next() && value == null) {
-                Object candidateKey = rs.getObject(2);
-                if (key.equals(candidateKey)) {
-                  id = rs.getLong(1);
-                  value = rs.getObject(3);
-                }
-              }
+  public long getNearCacheHits() {
+    return nearCache.getHits();
+  }
+
+  /**
+   * Returns the number of lookups the enabled near-cache could not answer.
+   */
+  public long getNearCacheMisses() {
+    return nearCache.getMisses();
+  }
+
+  /**
+   * Returns the number of values evicted from the near-cache to meet its
+   * limits.
+   */
+  public long getNearCacheEvictions() {
+    return nearCache.getEvictions();
+  }
+
+  /**
+   * Returns the number of statements taken from the statement caches of the
+   * map's connections.
+   *
+   * @see ConnectionManager#getStatementCacheHits()
+   */
+  public long getStatementCacheHits() {
+    return cm.getStatementCacheHits();
+  }
+
+  /**
+   * Returns the number of statements the map's connections had to prepare.
+   *
+   * @see ConnectionManager#getStatementCacheMisses()
+   */
+  public long getStatementCacheMisses() {
+    return cm.getStatementCacheMisses();
+  }
+
+  /**
+   * Enables an in-memory index from key digests to row IDs, built now by
+   * scanning the table and maintained by every write through this map. With
+   * it, containsKey() needs no query and get() reads its row by primary key.
+   * If the index would grow beyond maxBytes it is dropped with a warning and
+   * lookups query the database as before.
+   *
+   * @param maxBytes the maximum size of the index, or 0 to disable it, which
+   * is the default
+   * @return true if the index is enabled
+   */
+  public boolean setKeyIndexLimit(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative.");
+    }
+    keyIndexLimit = maxBytes;
+    if (maxBytes == 0) {
+      keyIndex = null;
+      return false;
+    }
+    rebuildKeyIndex();
+    return keyIndex != null;
+  }
+
+  /**
+   * Returns the size in bytes of the key index, or 0 if it is disabled.
+   *
+   * @see #setKeyIndexLimit(long)
+   */
+  public long getKeyIndexMemoryUsage() {
+    KeyIndex index = keyIndex;
+    return index != null ? index.getMemoryUsage() : 0;
+  }
+
+  public int getIteratorPageSize() {
+    return iteratorPageSize;
+  }
+
+  /**
+   * Sets the maximum number of entries read from the database at a time by
+   * iterators and spliterators of the views created afterwards.
+   */
+  public void setIteratorPageSize(int iteratorPageSize) {
+    if (iteratorPageSize <= 0) {
+      throw new IllegalArgumentException("iteratorPageSize must be positive.");
+    }
+    this.iteratorPageSize = iteratorPageSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets the maximum number of keys handled by one statement of getAll(),
+   * and by one batch and commit of putAll() and removeAll().
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive.");
+    }
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns the entries for those of the keys that are in the map, in the
+   * order of the keys. Keys not in the near-cache are read with one query
+   * per batch.
+   *
+   * @see #setBatchSize(int)
+   */
+  @SuppressWarnings("unchecked")
+  public Map<K, V> getAll(Collection<? extends K> keys) {
+    long stamp = nearCache.stamp();
+    // Missing values are null until they are read.
+    Map<K, V> result = new LinkedHashMap<K, V>();
+    final Map<ByteBuffer, K> unread = new HashMap<ByteBuffer, K>();
+    for (K key : keys) {
+      if (key == null || result.containsKey(key)) {
+        continue;
+      }
+      byte[] digest = digest(keySerializer.serialize(key));
+      byte[] value = nearCache.get(digest);
+      if (value != null) {
+        result.put(key, valueSerializer.deserialize(value));
+      } else {
+        result.put(key, null);
+        unread.put(ByteBuffer.wrap(digest), key);
+      }
+    }
+    List<ByteBuffer> digests = new ArrayList<ByteBuffer>(unread.keySet());
+    for (int from = 0; from < digests.size(); from += batchSize) {
+      final byte[][] batch = toArray(digests.subList(from, Math.min(from + batchSize, digests.size())));
+      Map<ByteBuffer, byte[]> values = (Map<ByteBuffer, byte[]>) JdbcTemplate.executeQuery(cm,
+        SELECT_VALUES_BY_KEY_DIGESTS_SQL, new JdbcTemplate() {
+          public void statement(PreparedStatement ps) throws SQLException {
+            ps.setArray(1, getConnection().createArrayOf("VARBINARY", batch));
+          }
+          public Object results(ResultSet rs) throws SQLException {
+            Map<ByteBuffer, byte[]> values = new HashMap<ByteBuffer, byte[]>();
+            while (rs.next()) {
+              values.put(ByteBuffer.wrap(rs.getBytes(1)), rs.getBytes(2));
             }
+            return values;
           }
-          return new Object[] { id, value };
-        }
-      });
+        });
+      for (Map.Entry<ByteBuffer, byte[]> value : values.entrySet()) {
+        K key = unread.get(value.getKey());
+        nearCache.put(value.getKey().array(), value.getValue(), stamp);
+        result.put(key, valueSerializer.deserialize(value.getValue()));
+      }
+    }
+    result.values().removeAll(Collections.singleton(null));
+    return result;
+  }
+
+  /**
+   * Associates each value with its key. The entries are written in batches
+   * of MERGE statements, each committed as one transaction; if a batch
+   * fails, the batches before it stay written.
+   *
+   * @see #setBatchSize(int)
+   */
+  @Override
+  public void putAll(Map<? extends K, ? extends V> m) {
+    List<byte[][]> batch = new ArrayList<byte[][]>();
+    for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      if (entry.getKey() == null || entry.getValue() == null) {
+        throw new IllegalArgumentException("null is not supported.");
+      }
+      byte[] keyBytes = keySerializer.serialize(entry.getKey());
+      batch.add(new byte[][] {digest(keyBytes), keyBytes, valueSerializer.serialize(entry.getValue())});
+      if (batch.size() >= batchSize) {
+        putBatch(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      putBatch(batch);
+    }
+  }
+
+  /**
+   * Removes the entries for the keys, deleting them in batches that are
+   * each committed as one transaction.
+   *
+   * @return the number of entries removed
+   * @see #setBatchSize(int)
+   */
+  public int removeAll(Collection<?> keys) {
+    List<byte[]> digests = digestsOf(keys);
+    int removed = 0;
+    for (int from = 0; from < digests.size(); from += batchSize) {
+      removed += removeBatch(digests.subList(from, Math.min(from + batchSize, digests.size())));
+    }
+    return removed;
+  }
+
+  /**
+   * The ID and serialized value of a stored entry.
+   */
+  private static final class StoredEntry {
+    final long id;
+    final byte[] value;
+
+    StoredEntry(long id, byte[] value) {
+      this.id = id;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Returns the serialized value for the key from the near-cache or, failing
+   * that, the database, caching it if the near-cache is enabled.
+   */
+  private byte[] read(Object key) {
+    byte[] digest = digestOf(key);
+    if (digest == null) {
+      return null;
+    }
+    byte[] value = nearCache.get(digest);
+    if (value == null) {
+      long stamp = nearCache.stamp();
+      StoredEntry entry = find(digest);
+      if (entry == null) {
+        return null;
+      }
+      value = entry.value;
+      nearCache.put(digest, value, stamp);
+    }
+    return value;
+  }
+  
+  /**
+   * Returns the stored entry for the key with the given digest, or null if
+   * there is none. The row is found through the in-memory key index when it
+   * is enabled, or else the unique KEY_DIGEST index.
+   */
+  private StoredEntry find(final byte[] digest) {
+    KeyIndex index = keyIndex;
+    final long indexedId = index != null ? index.get(high(digest), low(digest)) : KeyIndex.UNKNOWN;
+    if (indexedId == KeyIndex.ABSENT) {
+      return null;
+    }
+    if (indexedId != KeyIndex.UNKNOWN) {
+      return (StoredEntry) JdbcTemplate.executeQuery(cm, SELECT_VALUE_BY_ID_SQL, new JdbcTemplate() {
+        public void statement(PreparedStatement ps) throws SQLException {
+          ps.setLong(1, indexedId);
+        }
+        public Object results(ResultSet rs) throws SQLException {
+          return rs.next() ? new StoredEntry(indexedId, rs.getBytes(1)) : null;
+        }
+      });
+    }
+    return (StoredEntry) JdbcTemplate.executeQuery(cm, SELECT_ENTRY_BY_KEY_DIGEST_SQL, new JdbcTemplate() {
+      public void statement(PreparedStatement ps) throws SQLException {
+        ps.setBytes(1, digest);
+      }
+      public Object results(ResultSet rs) throws SQLException {
+        return rs.next() ? new StoredEntry(rs.getLong(1), rs.getBytes(2)) : null;
+      }
+    });
+  }
+  
+  /**
+   * Returns the digest of the key's serialized form, or null if the object
+   * cannot be a key of this map.
+   */
+  private byte[] digestOf(Object key) {
+    byte[] keyBytes = keyBytesOf(key);
+    return keyBytes != null ? digest(keyBytes) : null;
+  }
+  
+  /**
+   * Returns the key's serialized form, or null if the object cannot be a key
+   * of this map.
+   */
+  @SuppressWarnings("unchecked")
+  private byte[] keyBytesOf(Object key) {
+    try {
+      return keySerializer.serialize((K) key);
+    } catch (ClassCastException | SerializationException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Returns the digest stored in KEY_DIGEST for a serialized key: the first
+   * 128 bits of its SHA-256 hash, which unlike Object.hashCode() is the same
+   * in every run and, in practice, differs for every distinct key.
+   */
+  static byte[] digest(byte[] keyBytes) {
+    return Arrays.copyOf(keyDigests.get().digest(keyBytes), KEY_DIGEST_BYTES);
+  }
+  
+  static long high(byte[] digest) {
+    return ByteBuffer.wrap(digest).getLong(0);
+  }
+  
+  private static long low(byte[] digest) {
+    return ByteBuffer.wrap(digest).getLong(8);
+  }
+  
+  /**
+   * Replaces the KEY_HASHCODE column of a table from an earlier version with
+   * KEY_DIGEST. Each step can be repeated, so an upgrade interrupted by a
+   * crash is finished the next time the map is opened.
+   */
+  private void upgradeToKeyDigests(Connection connection) {
+    log.info("Adding key digests to MAP");
+    JdbcTemplate.executeUpdate(connection, ADD_KEY_DIGEST_SQL);
+    JdbcTemplate.executeQuery(connection, SELECT_UNDIGESTED_KEYS_SQL, new JdbcTemplate() {
+      public Object results(ResultSet rs) throws SQLException {
+        try (PreparedStatement update = getConnection().prepareStatement(SET_KEY_DIGEST_SQL)) {
+          int batched = 0;
+          while (rs.next()) {
+            update.setBytes(1, digest(rs.getBytes(2)));
+            update.setLong(2, rs.getLong(1));
+            update.addBatch();
+            if (++batched % UPGRADE_BATCH_SIZE == 0) {
+              update.executeBatch();
+            }
+          }
+          update.executeBatch();
+        }
+        getConnection().commit();
+        return null;
+      }
+    });
+    // A key whose hash code changed between runs may have been stored more than once.
+    final int[] deleted = new int[1];
+    JdbcTemplate.executeUpdate(connection, DELETE_DUPLICATE_KEYS_SQL, new JdbcTemplate() {
+      public void updated(int count) {
+        deleted[0] = count;
+        counter.persist(this, -count);
+      }
+      public void committed(int count) {
+        counter.add(-count);
+      }
+    });
+    if (deleted[0] > 0) {
+      log.warn(String.format("Removed %d older entries for keys stored more than once", deleted[0]));
+    }
+    JdbcTemplate.executeUpdate(connection, REQUIRE_KEY_DIGEST_SQL);
+    JdbcTemplate.executeUpdate(connection, DROP_KEY_HASHCODE_INDEX_SQL);
+    JdbcTemplate.executeUpdate(connection, DROP_KEY_HASHCODE_SQL);
+  }
+  
+  /**
+   * Returns the ID of the row just inserted for the key digest within the
+   * calling thread's transaction.
+   */
+  private long insertedId(final byte[] digest) {
+    return (Long) JdbcTemplate.executeQuery(cm, SELECT_ID_BY_KEY_DIGEST_SQL, new JdbcTemplate() {
+      public void statement(PreparedStatement ps) throws SQLException {
+        ps.setBytes(1, digest);
+      }
+      public Object results(ResultSet rs) throws SQLException {
+        if (!rs.next()) {
+          throw new DatabaseException("The inserted entry was not found.");
+        }
+        return rs.getLong(1);
+      }
+    });
+  }
+  
+  /**
+   * Adds a row to the key index, dropping the index if that takes it beyond
+   * its limit.
+   */
+  private void index(KeyIndex index, byte[] digest, long id) {
+    index.put(high(digest), low(digest), id);
+    if (index.isAbandoned() && keyIndex == index) {
+      log.warn(String.format("The key index exceeded %d bytes and has been disabled.", keyIndexLimit));
+      keyIndex = null;
+    }
+  }
+  
+  /**
+   * Replaces the key index with one built from the table, holding the write
+   * lock so that no write is missed.
+   */
+  private void rebuildKeyIndex() {
+    JdbcTemplate.openTransaction(cm);
+    boolean done = false;
+    try {
+      keyIndex = buildKeyIndex(keyIndexLimit);
+      done = true;
+    } finally {
+      if (!done) {
+        JdbcTemplate.rollbackTransaction();
+      }
+    }
+    JdbcTemplate.commitTransaction();
+  }
+  
+  /**
+   * Builds a key index from the table. The caller must hold the write lock.
+   *
+   * @return the index, or null if it would exceed maxBytes
+   */
+  private KeyIndex buildKeyIndex(long maxBytes) {
+    final KeyIndex index = new KeyIndex(size(), maxBytes);
+    if (!index.isAbandoned()) {
+      JdbcTemplate.executeQuery(cm.getConnection(), SELECT_IDS_AND_KEY_DIGESTS_SQL, new JdbcTemplate() {
+        public Object results(ResultSet rs) throws SQLException {
+          while (rs.next() && !index.isAbandoned()) {
+            byte[] digest = rs.getBytes(2);
+            index.put(high(digest), low(digest), rs.getLong(1));
+          }
+          return null;
+        }
+      });
+    }
+    if (index.isAbandoned()) {
+      log.warn(String.format("The key index would exceed %d bytes and has been disabled.", maxBytes));
+      return null;
+    }
+    return index;
+  }
+  
+  /**
+   * Chooses the new serialized value of an entry from its current one, within
+   * the transaction that writes it.
+   */
+  private interface Update {
+    /**
+     * @param current the current value, or null if the key is absent
+     * @return the new value, null to remove the key, or current to leave the
+     * entry unchanged
+     */
+    byte[] apply(byte[] current);
+  }
+  
+  /**
+   * Reads the entry for the key and writes the value chosen by update, as
+   * one transaction, which holds the write lock and so is atomic with respect
+   * to every other write.
+   *
+   * @return the previous serialized value, or null if the key was absent
+   */
+  private byte[] update(final byte[] keyBytes, Update update) {
+    final byte[] digest = digest(keyBytes);
+    byte[] previous;
+    nearCache.beginWrite(digest);
+    try {
+      JdbcTemplate.openTransaction(cm);
+      boolean done = false;
+      try {
+        StoredEntry entry = find(digest);
+        previous = entry != null ? entry.value : null;
+        final byte[] next = update.apply(previous);
+        if (next == previous) {
+          // Unchanged.
+        } else if (next == null) {
+          deleteEntry(entry.id, digest);
+        } else if (entry != null) {
+          final long id = entry.id;
+          JdbcTemplate.executeUpdate(cm, UPDATE_ENTRY_SQL, new JdbcTemplate() {
+            public void statement(PreparedStatement ps) throws SQLException {
+              ps.setBytes(1, next);
+              ps.setLong(2, id);
+            }
+          });
+        } else {
+          JdbcTemplate.executeUpdate(cm, INSERT_ENTRY_SQL, new JdbcTemplate() {
+            public void statement(PreparedStatement ps) throws SQLException {
+              ps.setBytes(1, digest);
+              ps.setBytes(2, keyBytes);
+              ps.setBytes(3, next);
+            }
+            public void updated(int count) {
+              counter.persist(this, count);
+            }
+            public void committed(int count) {
+              counter.add(count);
+            }
+          });
+          KeyIndex index = keyIndex;
+          if (index != null) {
+            index(index, digest, insertedId(digest));
+          }
+        }
+        done = true;
+      } finally {
+        if (!done) {
+          JdbcTemplate.rollbackTransaction();
+        }
+      }
+      JdbcTemplate.commitTransaction();
+    } finally {
+      nearCache.endWrite(digest);
+    }
+    return previous;
+  }
+  
+  /**
+   * Replaces the value of the key with the one computed from its current
+   * value, retrying if another thread writes the entry between the read and
+   * the write. The function runs with the key's lock stripe held but not the
+   * database's write lock.
+   *
+   * @param function computes the new value from the key and the current
+   * value or null, returning null to remove the key or the current value to
+   * leave it unchanged
+   * @return the new value
+   */
+  private V recompute(K key, BiFunction<K, V, V> function) {
+    if (key == null || function == null) {
+      throw new IllegalArgumentException("null is not supported.");
+    }
+    byte[] keyBytes = keySerializer.serialize(key);
+    byte[] digest = digest(keyBytes);
+    ReentrantLock stripe = stripes[(int) low(digest) & (stripes.length - 1)];
+    stripe.lock();
+    try {
+      while (true) {
+        StoredEntry entry = find(digest);
+        final byte[] expected = entry != null ? entry.value : null;
+        V current = expected != null ? valueSerializer.deserialize(expected) : null;
+        V next = function.apply(key, current);
+        if (next == current) {
+          return current;
+        }
+        final byte[] nextBytes = next != null ? valueSerializer.serialize(next) : null;
+        byte[] previous = update(keyBytes, new Update() {
+          public byte[] apply(byte[] current) {
+            return Arrays.equals(current, expected) ? nextBytes : current;
+          }
+        });
+        if (Arrays.equals(previous, expected)) {
+          return next;
+        }
+      }
+    } finally {
+      stripe.unlock();
+    }
+  }
+  
+  /**
+   * Writes a batch of entries, each given as its key digest, key and value,
+   * as one transaction.
+   */
+  private void putBatch(final List<byte[][]> entries) {
+    final Set<ByteBuffer> added = new LinkedHashSet<ByteBuffer>();
+    nearCache.beginWrite(null);
+    try {
+      JdbcTemplate.openTransaction(cm);
+      boolean done = false;
+      try {
+        List<byte[]> digests = new ArrayList<byte[]>(entries.size());
+        for (byte[][] entry : entries) {
+          digests.add(entry[0]);
+          added.add(ByteBuffer.wrap(entry[0]));
+        }
+        for (byte[] digest : findIds(digests).values()) {
+          added.remove(ByteBuffer.wrap(digest));
+        }
+        JdbcTemplate.executeBatch(cm, MERGE_ENTRY_SQL, new JdbcTemplate() {
+          public void statement(PreparedStatement ps) throws SQLException {
+            for (byte[][] entry : entries) {
+              ps.setBytes(1, entry[0]);
+              ps.setBytes(2, entry[1]);
+              ps.setBytes(3, entry[2]);
+              ps.addBatch();
+            }
+          }
+          public void updated(int count) {
+            counter.persist(this, added.size());
+          }
+          public void committed(int count) {
+            counter.add(added.size());
+          }
+        });
+        KeyIndex index = keyIndex;
+        if (index != null && !added.isEmpty()) {
+          for (Map.Entry<Long, byte[]> entry : findIds(toList(added)).entrySet()) {
+            index(index, entry.getValue(), entry.getKey());
+          }
+        }
+        done = true;
+      } finally {
+        if (!done) {
+          JdbcTemplate.rollbackTransaction();
+        }
+      }
+      JdbcTemplate.commitTransaction();
+    } finally {
+      nearCache.endWrite(null);
+    }
+  }
+  
+  /**
+   * Deletes the entries with the key digests as one transaction.
+   *
+   * @return the number of entries deleted
+   */
+  private int removeBatch(List<byte[]> digests) {
+    int deleted;
+    nearCache.beginWrite(null);
+    try {
+      JdbcTemplate.openTransaction(cm);
+      boolean done = false;
+      try {
+        deleted = delete(DELETE_ENTRIES_SQL, digests.toArray(new byte[digests.size()][]));
+        KeyIndex index = keyIndex;
+        if (index != null && deleted > 0) {
+          for (byte[] digest : digests) {
+            index.remove(high(digest), low(digest));
+          }
+        }
+        done = true;
+      } finally {
+        if (!done) {
+          JdbcTemplate.rollbackTransaction();
+        }
+      }
+      JdbcTemplate.commitTransaction();
+    } finally {
+      nearCache.endWrite(null);
+    }
+    return deleted;
+  }
+  
+  /**
+   * Removes the entries whose keys are not in keys with a single DELETE.
+   *
+   * @return true if any entry was removed
+   */
+  private boolean retainKeys(Collection<?> keys) {
+    int deleted;
+    nearCache.beginWrite(null);
+    try {
+      JdbcTemplate.openTransaction(cm);
+      boolean done = false;
+      try {
+        Set<Long> ids = findIds(digestsOf(keys)).keySet();
+        deleted = delete(DELETE_OTHER_ENTRIES_SQL, ids.toArray(new Long[ids.size()]));
+        if (keyIndex != null && deleted > 0) {
+          rebuildKeyIndex();
+        }
+        done = true;
+      } finally {
+        if (!done) {
+          JdbcTemplate.rollbackTransaction();
+        }
+      }
+      JdbcTemplate.commitTransaction();
+    } finally {
+      nearCache.endWrite(null);
+    }
+    return deleted > 0;
+  }
+  
+  /**
+   * Deletes the row holding the key digest, within one transaction with its
+   * removal from the key index.
+   */
+  private void deleteEntry(long id, byte[] digest) {
+    JdbcTemplate.openTransaction(cm);
+    boolean done = false;
+    try {
+      delete(DELETE_ENTRY_SQL, id);
+      KeyIndex index = keyIndex;
+      if (index != null) {
+        index.remove(high(digest), low(digest));
+      }
+      done = true;
+    } finally {
+      if (!done) {
+        JdbcTemplate.rollbackTransaction();
+      }
+    }
+    JdbcTemplate.commitTransaction();
+  }
+  
+  /**
+   * Deletes rows and updates the counter to match.
+   *
+   * @param sql the DELETE statement
+   * @param parameter the Long ID, Long[] array of IDs or byte[][] array of
+   * key digests bound to the statement's parameter, or null if it has none
+   * @return the number of rows deleted
+   */
+  private int delete(String sql, final Object parameter) {
+    final int[] deleted = new int[1];
+    JdbcTemplate.executeUpdate(cm, sql, new JdbcTemplate() {
+      public void statement(PreparedStatement ps) throws SQLException {
+        if (parameter instanceof Long) {
+          ps.setLong(1, (Long) parameter);
+        } else if (parameter instanceof Long[]) {
+          ps.setArray(1, getConnection().createArrayOf("BIGINT", (Long[]) parameter));
+        } else if (parameter != null) {
+          ps.setArray(1, getConnection().createArrayOf("VARBINARY", (byte[][]) parameter));
+        }
+      }
+      public void updated(int count) {
+        deleted[0] = count;
+        counter.persist(this, -count);
+      }
+      public void committed(int count) {
+        counter.add(-count);
+      }
+    });
+    return deleted[0];
+  }
+  
+  /**
+   * Returns the digests of those objects that can be keys of this map.
+   */
+  private List<byte[]> digestsOf(Collection<?> keys) {
+    List<byte[]> digests = new ArrayList<byte[]>(keys.size());
+    for (Object key : keys) {
+      byte[] digest = key != null ? digestOf(key) : null;
+      if (digest != null) {
+        digests.add(digest);
+      }
+    }
+    return digests;
+  }
+  
+  private static byte[][] toArray(List<ByteBuffer> digests) {
+    byte[][] array = new byte[digests.size()][];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = digests.get(i).array();
+    }
+    return array;
+  }
+  
+  private static List<byte[]> toList(Collection<ByteBuffer> digests) {
+    List<byte[]> list = new ArrayList<byte[]>(digests.size());
+    for (ByteBuffer digest : digests) {
+      list.add(digest.array());
+    }
+    return list;
+  }
+  
+  /**
+   * Returns the IDs of the rows holding any of the key digests, mapped to
+   * the digests, found with one query on the KEY_DIGEST index per batch.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<Long, byte[]> findIds(List<byte[]> digests) {
+    Map<Long, byte[]> ids = new LinkedHashMap<Long, byte[]>();
+    for (int from = 0; from < digests.size(); from += batchSize) {
+      List<byte[]> batch = digests.subList(from, Math.min(from + batchSize, digests.size()));
+      final byte[][] array = batch.toArray(new byte[batch.size()][]);
+      ids.putAll((Map<Long, byte[]>) JdbcTemplate.executeQuery(cm, SELECT_IDS_BY_KEY_DIGESTS_SQL,
+        new JdbcTemplate() {
+          public void statement(PreparedStatement ps) throws SQLException {
+            ps.setArray(1, getConnection().createArrayOf("VARBINARY", array));
+          }
+          public Object results(ResultSet rs) throws SQLException {
+            Map<Long, byte[]> ids = new LinkedHashMap<Long, byte[]>();
+            while (rs.next()) {
+              ids.put(rs.getLong(1), rs.getBytes(2));
+            }
+            return ids;
+          }
+        }));
+    }
+    return ids;
+  }
+  
+  /**
+   * Reads up to max entries with IDs after afterId up to lastId, in ID order.
+   */
+  @SuppressWarnings("unchecked")
+  private List<PersistentEntry> readEntries(final long afterId, final long lastId, final int max) {
+    return (List<PersistentEntry>) JdbcTemplate.executeQuery(cm, SELECT_ENTRIES_BETWEEN_SQL, new JdbcTemplate() {
+      public void statement(PreparedStatement ps) throws SQLException {
+        ps.setLong(1, afterId);
+        ps.setLong(2, lastId);
+        ps.setInt(3, max);
+      }
+      public Object results(ResultSet rs) throws SQLException {
+        List<PersistentEntry> entries = new ArrayList<PersistentEntry>();
+        while (rs.next()) {
+          entries.add(new PersistentEntry(rs.getLong(1), rs.getBytes(2), rs.getBytes(3)));
+        }
+        return entries;
+      }
+    });
+  }
+  
+  /**
+   * Returns a spliterator over the rows present now, splitting by ID range.
+   */
+  private <T> Spliterator<T> spliterator(final Function<PersistentEntry, T> element) {
+    long[] range = (long[]) JdbcTemplate.executeQuery(cm, SELECT_ID_RANGE_SQL, new JdbcTemplate() {
+      public Object results(ResultSet rs) throws SQLException {
+        if (!rs.next()) {
+          return null;
+        }
+        long first = rs.getLong(1);
+        return rs.wasNull() ? null : new long[] {first, rs.getLong(2)};
+      }
+    });
+    if (range == null) {
+      return Spliterators.emptySpliterator();
+    }
+    return new EntrySpliterator<T>(element, range[0] - 1, range[1], size(), iteratorPageSize);
+  }
+  
+  private final Function<PersistentEntry, Map.Entry<K, V>> toEntry =
+    new Function<PersistentEntry, Map.Entry<K, V>>() {
+      public Map.Entry<K, V> apply(PersistentEntry entry) {
+        return entry;
+      }
+    };
+  
+  private final Function<PersistentEntry, K> toKey = new Function<PersistentEntry, K>() {
+    public K apply(PersistentEntry entry) {
+      return entry.getKey();
+    }
+  };
+  
+  private final Function<PersistentEntry, V> toValue = new Function<PersistentEntry, V>() {
+    public V apply(PersistentEntry entry) {
+      return entry.getValue();
+    }
+  };
+  
+  /**
+   * An entry read from the table, which deserializes its key and value when
+   * they are first asked for. setValue() updates the row by ID.
+   */
+  private final class PersistentEntry implements Map.Entry<K, V> {
+    final long id;
+    private final byte[] keyBytes;
+    private byte[] valueBytes;
+    private K key;
+    private V value;
+    
+    PersistentEntry(long id, byte[] keyBytes, byte[] valueBytes) {
+      this.id = id;
+      this.keyBytes = keyBytes;
+      this.valueBytes = valueBytes;
+    }
+    
+    public K getKey() {
+      if (key == null) {
+        key = keySerializer.deserialize(keyBytes);
+      }
+      return key;
+    }
+    
+    public V getValue() {
+      if (value == null) {
+        value = valueSerializer.deserialize(valueBytes);
+      }
+      return value;
+    }
+    
+    /**
+     * @throws IllegalStateException if the entry has been removed from the map
+     */
+    public V setValue(V newValue) {
+      if (newValue == null) {
+        throw new IllegalArgumentException("null is not supported.");
+      }
+      final byte[] bytes = valueSerializer.serialize(newValue);
+      final int[] updated = new int[1];
+      byte[] digest = digest(keyBytes);
+      nearCache.beginWrite(digest);
+      try {
+        JdbcTemplate.executeUpdate(cm, UPDATE_ENTRY_SQL, new JdbcTemplate() {
+          public void statement(PreparedStatement ps) throws SQLException {
+            ps.setBytes(1, bytes);
+            ps.setLong(2, id);
+          }
+          public void updated(int count) {
+            updated[0] = count;
+          }
+        });
+      } finally {
+        nearCache.endWrite(digest);
+      }
+      if (updated[0] == 0) {
+        throw new IllegalStateException("The entry has been removed from the map.");
+      }
+      V previous = getValue();
+      valueBytes = bytes;
+      value = newValue;
+      return previous;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+    }
+    
+    @Override
+    public int hashCode() {
+      return getKey().hashCode() ^ getValue().hashCode();
+    }
+    
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+  
+  /**
+   * Iterates over the rows in ID order, reading a page of them at a time.
+   * remove() deletes the last row returned by ID.
+   */
+  private final class EntryIterator<T> implements Iterator<T> {
+    private final Function<PersistentEntry, T> element;
+    private final int pageSize = iteratorPageSize;
+    private final ArrayDeque<PersistentEntry> page = new ArrayDeque<PersistentEntry>();
+    // The ID of the last row read, and whether there may be rows after it.
+    private long afterId;
+    private boolean more = true;
+    private PersistentEntry current;
+    
+    EntryIterator(Function<PersistentEntry, T> element) {
+      this.element = element;
+    }
+    
+    public boolean hasNext() {
+      if (page.isEmpty() && more) {
+        List<PersistentEntry> entries = readEntries(afterId, Long.MAX_VALUE, pageSize);
+        more = entries.size() == pageSize;
+        if (!entries.isEmpty()) {
+          page.addAll(entries);
+          afterId = page.peekLast().id;
+        }
+      }
+      return !page.isEmpty();
+    }
+    
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      current = page.pollFirst();
+      return element.apply(current);
+    }
+    
+    public void remove() {
+      if (current == null) {
+        throw new IllegalStateException("next() has not been called since the last remove().");
+      }
+      byte[] digest = digest(current.keyBytes);
+      nearCache.beginWrite(digest);
+      try {
+        deleteEntry(current.id, digest);
+      } finally {
+        nearCache.endWrite(digest);
+      }
+      current = null;
+    }
+  }
+  
+  private final class EntrySpliterator<T> extends IdRangeSpliterator<PersistentEntry, T> {
+    private final Function<PersistentEntry, T> element;
+    private final int pageSize;
+    
+    EntrySpliterator(Function<PersistentEntry, T> element, long afterId, long lastId, long estimate,
+        int pageSize) {
+      super(afterId, lastId, estimate, pageSize);
+      this.element = element;
+      this.pageSize = pageSize;
+    }
+    
+    @Override
+    List<PersistentEntry> read(long afterId, long lastId, int max) {
+      return readEntries(afterId, lastId, max);
+    }
+    
+    @Override
+    long idOf(PersistentEntry entry) {
+      return entry.id;
+    }
+    
+    @Override
+    T elementOf(PersistentEntry entry) {
+      return element.apply(entry);
+    }
+    
+    @Override
+    IdRangeSpliterator<PersistentEntry, T> split(long afterId, long lastId, long estimate) {
+      return new EntrySpliterator<T>(element, afterId, lastId, estimate, pageSize);
+    }
+    
+    @Override
+    public int characteristics() {
+      return super.characteristics() | DISTINCT;
+    }
+  }
+  
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+    @Override
+    public int size() {
+      return PersistentMap.this.size();
+    }
+    
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      if (e.getKey() == null || e.getValue() == null) {
+        return false;
+      }
+      byte[] digest = digestOf(e.getKey());
+      StoredEntry entry = digest != null ? find(digest) : null;
+      return entry != null && e.getValue().equals(valueSerializer.deserialize(entry.value));
+    }
+    
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      if (e.getKey() == null || e.getValue() == null) {
+        return false;
+      }
+      return PersistentMap.this.remove(e.getKey(), e.getValue());
+    }
+    
+    @Override
+    public void clear() {
+      PersistentMap.this.clear();
+    }
+    
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new EntryIterator<Map.Entry<K, V>>(toEntry);
+    }
+    
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+      return PersistentMap.this.spliterator(toEntry);
+    }
+  }
+  
+  private final class KeySet extends AbstractSet<K> {
+    @Override
+    public int size() {
+      return PersistentMap.this.size();
+    }
+    
+    @Override
+    public boolean contains(Object o) {
+      return containsKey(o);
+    }
+    
+    @Override
+    public boolean remove(Object o) {
+      return containsKey(o) && PersistentMap.this.remove(o) != null;
+    }
+    
+    @Override
+    public boolean removeAll(Collection<?> c) {
+      return PersistentMap.this.removeAll(c) > 0;
+    }
+    
+    @Override
+    public boolean retainAll(Collection<?> c) {
+      return retainKeys(c);
+    }
+    
+    @Override
+    public void clear() {
+      PersistentMap.this.clear();
+    }
+    
+    @Override
+    public Iterator<K> iterator() {
+      return new EntryIterator<K>(toKey);
+    }
+    
+    @Override
+    public Spliterator<K> spliterator() {
+      return PersistentMap.this.spliterator(toKey);
+    }
+  }
+  
+  private final class Values extends AbstractCollection<V> {
+    @Override
+    public int size() {
+      return PersistentMap.this.size();
+    }
+    
+    @Override
+    public void clear() {
+      PersistentMap.this.clear();
+    }
+    
+    @Override
+    public Iterator<V> iterator() {
+      return new EntryIterator<V>(toValue);
+    }
+    
+    @Override
+    public Spliterator<V> spliterator() {
+      return PersistentMap.this.spliterator(toValue);
+    }
   }
 }
@@ -4,112 +4,848 @@
 package org.pickle.util;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
-import java.sql.*;
-import org.apache.log4j.Level;
-import org.apache.log4j.Logger;
 import org.pickle.Disposable;
-import org.pickle.sql.*;
+import org.pickle.serial.Serializer;
+import org.pickle.sql.ConnectionManager;
+import org.pickle.sql.DatabaseException;
+import org.pickle.sql.Durability;
+import org.pickle.store.*;
 
+/**
+ * A FIFO queue stored in an H2 database or another {@link QueueStore}.
+ *
+ * Like java.util.concurrent.LinkedBlockingQueue, the queue uses two locks:
+ * producers hold the put lock while inserting at the tail and consumers hold
+ * the take lock while removing from the head, so that neither waits for the
+ * other. Removals from the middle of the queue, through an iterator, hold
+ * both.
+ *
+ * Besides polling, consumers may {@link #lease} elements: leased elements are
+ * hidden from other consumers but stay in the store until the lease is
+ * acknowledged with {@link #ack}. A lease that is released with {@link #nack}
+ * or not acknowledged within its timeout returns its elements to the head, in
+ * their original order, to be delivered again. Leases are held in memory, so
+ * after a crash or restart leased elements are simply delivered again; either
+ * way every element is delivered at least once. Leased elements are not
+ * counted by {@link #size()} but are still visited by iterators.
+ */
 public class PersistentQueue<E extends Serializable>
         extends AbstractQueue<E> implements Disposable {
 
-    private static final Logger log = Logger.getLogger(PersistentQueue.class);
+    /**
+     * The default number of elements inserted per commit by {@link #offerAll}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
 
-    static final class SQL {
+    /**
+     * The default maximum number of head elements held in memory by
+     * {@link #peek} and {@link #poll}.
+     */
+    public static final int DEFAULT_PREFETCH_SIZE = 100;
 
-        public static final String CREATE_TABLE
-                = "CREATE TABLE IF NOT EXISTS QUEUE (ID IDENTITY PRIMARY KEY, OBJECT OTHER NOT NULL)";
-        public static final String INSERT_OBJECT = "INSERT INTO QUEUE (OBJECT) VALUES (?)";
-        public static final String SELECT_OLDEST_OBJECT
-                = "SELECT ID, OBJECT FROM QUEUE WHERE ID = (SELECT MIN(ID) FROM QUEUE)";
-        public static final String SELECT_NEXT_ID = "SELECT MIN(ID) FROM (SELECT ID FROM QUEUE WHERE ID > ?)";
-        public static final String DELETE_OLDEST_OBJECT
-                = "DELETE FROM QUEUE WHERE ID = (SELECT MIN(ID) FROM QUEUE)";
-        public static final String COUNT_OBJECTS = "SELECT COUNT(ID) FROM QUEUE";
-        public static final String SELECT_ID = "SELECT ID FROM QUEUE WHERE ID = ?";
-        public static final String SELECT_OBJECT = "SELECT OBJECT FROM QUEUE WHERE ID = ?";
-        public static final String DELETE_OBJECT = "DELETE FROM QUEUE WHERE ID = ?";
-        public static final String SHUTDOWN_COMPACT = "SHUTDOWN COMPACT";
-    }
-    private ConnectionManager cm;
+    /**
+     * The default maximum number of serialized bytes held in memory by the head
+     * prefetch window.
+     */
+    public static final long DEFAULT_PREFETCH_BYTES = 1024 * 1024;
+
+    /**
+     * The default number of elements an iterator reads from the store at a
+     * time.
+     */
+    public static final int DEFAULT_ITERATOR_PAGE_SIZE = 256;
+
+    /** Held by producers while inserting. */
+    final ReentrantLock putLock = new ReentrantLock();
+    /** Held by consumers while reading or removing the head. Guards the prefetch window. */
+    final ReentrantLock takeLock = new ReentrantLock();
+
+    private final QueueStore<E> store;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private int prefetchSize = DEFAULT_PREFETCH_SIZE;
+    private long prefetchBytes = DEFAULT_PREFETCH_BYTES;
+    private volatile int iteratorPageSize = DEFAULT_ITERATOR_PAGE_SIZE;
+    // The oldest unleased elements of the queue, in ID order. Elements are only removed through
+    // this class, so the window is always an exact prefix of the unleased elements of the store.
+    // The window holds every such element once its size reaches their number.
+    private final ArrayDeque<QueueEntry<E>> head = new ArrayDeque<>();
+    private long headBytes;
+    // The ID of the last element read into the window, which may already have been taken from it.
+    private long headTailId = -1L;
+    // Set when the store rolls back writes the window may reflect; the window is cleared before its next use.
+    private volatile boolean headStale;
+    // The leased elements by ID and the active leases by deadline. Leased elements stay in the
+    // store, so the window is a prefix of the store's elements less the leased ones.
+    private final TreeMap<Long, Lease<E>> leased = new TreeMap<>();
+    private final PriorityQueue<Lease<E>> leases = new PriorityQueue<>(11, new Comparator<Lease<E>>() {
+        @Override
+        public int compare(Lease<E> a, Lease<E> b) {
+            return Long.compare(a.deadlineNanos - b.deadlineNanos, 0);
+        }
+    });
+    private volatile int leasedCount;
 
     public PersistentQueue(final File dataDir) {
-        cm = new ConnectionManager(dataDir, SQL.CREATE_TABLE);
-        Runtime.getRuntime().addShutdownHook(new Thread() {
+        this(dataDir, Durability.SYNC);
+    }
+
+    /**
+     * Opens the queue stored in dataDir, storing elements in the form produced
+     * by the given serializer.
+     *
+     * @param dataDir the base directory of the database
+     * @param serializer converts elements to and from the stored bytes
+     * @see org.pickle.serial.Serializers
+     */
+    public PersistentQueue(File dataDir, Serializer<E> serializer) {
+        this(new SqlQueueStore<>(dataDir, serializer));
+    }
+
+    /**
+     * Opens the queue stored in dataDir, committing writes according to the
+     * given durability mode with the default commit window.
+     *
+     * @param dataDir the base directory of the database
+     * @param durability when offers and polls are committed
+     * @see Durability
+     */
+    public PersistentQueue(final File dataDir, Durability durability) {
+        this(dataDir, durability, ConnectionManager.DEFAULT_COMMIT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Opens the queue stored in dataDir, committing writes according to the
+     * given durability mode.
+     *
+     * @param dataDir the base directory of the database
+     * @param durability when offers and polls are committed
+     * @param commitWindowMillis how long GROUP_COMMIT and ASYNC collect writes
+     * before committing them
+     * @see Durability
+     */
+    public PersistentQueue(final File dataDir, Durability durability, long commitWindowMillis) {
+        this(new SqlQueueStore<E>(dataDir, durability, commitWindowMillis));
+    }
+
+    /**
+     * Creates a queue over the given storage engine, which the queue disposes
+     * of when it is disposed.
+     *
+     * @param store the store holding the elements of the queue
+     * @see SqlQueueStore
+     * @see LogQueueStore
+     */
+    public PersistentQueue(QueueStore<E> store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store is required.");
+        }
+        this.store = store;
+        store.addRollbackListener(new Runnable() {
             @Override
             public void run() {
-                log.info("Compacting database at " + dataDir);
-                try {
-                    cm.getConnection().createStatement().execute(SQL.SHUTDOWN_COMPACT);
-                } catch (SQLException ex) {
-                    log.error(ex.getMessage());
-                }
+                // The take lock cannot be waited for while the store's writes are locked.
+                headStale = true;
             }
         });
     }
 
-    public synchronized void compact() {
-        if (this.cm != null) {
-            this.cm.compact();
+    public void compact() {
+        fullyLock();
+        try {
+            clearHead();
+            store.compact();
+        } finally {
+            fullyUnlock();
         }
     }
 
+    /**
+     * Commits any GROUP_COMMIT or ASYNC writes that are still pending.
+     */
+    public void flush() {
+        store.flush();
+    }
+
     @Override
     public void dispose() {
-        cm.dispose();
-        cm = null;
+        fullyLock();
+        try {
+            clearHead();
+            leased.clear();
+            leases.clear();
+            leasedCount = 0;
+            store.dispose();
+        } finally {
+            fullyUnlock();
+        }
     }
 
+    /**
+     * Inserts the object at the tail of this queue, unless the queue has no
+     * room for it. Unless the durability mode is ASYNC, the insert has been
+     * committed when this method returns true.
+     */
     @Override
-    public synchronized boolean offer(final E object) {
+    public boolean offer(E object) {
+        if (!insert(object)) {
+            return false;
+        }
+        awaitCommit();
+        return true;
+    }
+
+    /**
+     * Inserts the object under the put lock without waiting for its commit.
+     *
+     * @return false if the queue has no room for the object
+     */
+    boolean insert(final E object) {
         if (object == null) {
             throw new IllegalArgumentException("null is not supported.");
         }
-        JdbcTemplate.executeUpdate(cm.getConnection(), SQL.INSERT_OBJECT, new JdbcTemplate() {
-            @Override
-            public void statement(PreparedStatement ps) throws SQLException {
-                ps.setObject(1, object, Types.JAVA_OBJECT);
+        putLock.lock();
+        try {
+            if (!hasRoomFor(1)) {
+                return false;
             }
-        });
-        return true;
+            store.append(object);
+            return true;
+        } finally {
+            putLock.unlock();
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    @Override
-    public synchronized E peek() {
-        return (E) JdbcTemplate.executeQuery(cm.getConnection(), SQL.SELECT_OLDEST_OBJECT, new JdbcTemplate() {
-            @Override
-            public Object results(ResultSet rs) throws SQLException {
-                return rs.next() ? rs.getObject(2) : null;
+    /**
+     * Inserts all of the given objects at the tail of this queue, in iteration
+     * order, using batch appends. Objects are committed in batches of
+     * {@link #getBatchSize()} elements. Each batch is all-or-nothing: if an
+     * insert fails, the failing batch is rolled back and a DatabaseException is
+     * thrown, while batches committed before it remain in the queue. If the
+     * queue does not have room for all of the objects, none are inserted.
+     *
+     * @param objects the objects to add
+     * @return true if this queue changed as a result of the call
+     */
+    public boolean offerAll(Collection<? extends E> objects) {
+        try {
+            return insertAll(objects);
+        } finally {
+            awaitCommit();
+        }
+    }
+
+    private boolean insertAll(Collection<? extends E> objects) {
+        if (objects == this) {
+            throw new IllegalArgumentException("A Queue cannot be added to itself.");
+        }
+        for (E object : objects) {
+            if (object == null) {
+                throw new IllegalArgumentException("null is not supported.");
             }
-        });
+        }
+        putLock.lock();
+        try {
+            if (objects.isEmpty() || !hasRoomFor(objects.size())) {
+                return false;
+            }
+            int size = batchSize;
+            final List<E> batch = new ArrayList<>(Math.min(size, objects.size()));
+            for (E object : objects) {
+                batch.add(object);
+                if (batch.size() == size) {
+                    store.appendAll(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                store.appendAll(batch);
+            }
+            return true;
+        } finally {
+            putLock.unlock();
+        }
     }
 
     @Override
-    public synchronized E poll() {
-        E object = peek();
-        if (object != null) {
-            JdbcTemplate.executeUpdate(cm.getConnection(), SQL.DELETE_OLDEST_OBJECT);
+    public boolean addAll(Collection<? extends E> objects) {
+        if (!offerAll(objects) && !objects.isEmpty()) {
+            throw new IllegalStateException("Queue full");
+        }
+        return !objects.isEmpty();
+    }
+
+    /**
+     * Returns true if count more elements may be inserted. This is called while
+     * holding the put lock, immediately before inserting. PersistentQueue
+     * is unbounded; subclasses may override this to impose a capacity.
+     *
+     * @param count the number of elements about to be inserted
+     */
+    protected boolean hasRoomFor(int count) {
+        return true;
+    }
+
+    /**
+     * Returns the size in bytes of the files holding this queue. The H2 store
+     * reuses the space of removed elements but does not return it to the file
+     * system until {@link #compact()} is called.
+     */
+    public long getDatabaseSize() {
+        return store.getStorageSize();
+    }
+
+    /**
+     * Returns the number of elements {@link #offerAll} inserts per commit.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of elements {@link #offerAll} inserts per commit.
+     *
+     * @param batchSize a positive batch size
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the maximum number of head elements read ahead by {@link #peek}
+     * and {@link #poll}.
+     */
+    public int getPrefetchSize() {
+        return prefetchSize;
+    }
+
+    /**
+     * Sets the maximum number of head elements read ahead by {@link #peek} and
+     * {@link #poll}. A size of 1 reads one element at a time.
+     *
+     * @param prefetchSize a positive number of elements
+     */
+    public void setPrefetchSize(int prefetchSize) {
+        if (prefetchSize <= 0) {
+            throw new IllegalArgumentException("Prefetch size must be positive: " + prefetchSize);
+        }
+        takeLock.lock();
+        try {
+            this.prefetchSize = prefetchSize;
+            clearHead();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of elements an iterator reads from the store at a
+     * time.
+     */
+    public int getIteratorPageSize() {
+        return iteratorPageSize;
+    }
+
+    /**
+     * Sets the number of elements an iterator reads from the store at a time.
+     * Each page is also limited to the prefetch byte limit. Applies to
+     * iterators created after the call.
+     *
+     * @param iteratorPageSize a positive number of elements
+     */
+    public void setIteratorPageSize(int iteratorPageSize) {
+        if (iteratorPageSize <= 0) {
+            throw new IllegalArgumentException("Iterator page size must be positive: " + iteratorPageSize);
+        }
+        this.iteratorPageSize = iteratorPageSize;
+    }
+
+    /**
+     * Returns the maximum number of serialized bytes held by the head prefetch
+     * window.
+     */
+    public long getPrefetchBytes() {
+        return prefetchBytes;
+    }
+
+    /**
+     * Sets the maximum number of serialized bytes held by the head prefetch
+     * window. The window always holds at least the head element, however large.
+     *
+     * @param prefetchBytes a positive number of bytes
+     */
+    public void setPrefetchBytes(long prefetchBytes) {
+        if (prefetchBytes <= 0) {
+            throw new IllegalArgumentException("Prefetch bytes must be positive: " + prefetchBytes);
+        }
+        takeLock.lock();
+        try {
+            this.prefetchBytes = prefetchBytes;
+            clearHead();
+        } finally {
+            takeLock.unlock();
         }
-        return object;
     }
 
     @Override
-    public synchronized int size() {
-        // TODO: The queue size can probably be tracked and stored like PersistentBlockingQueue.
-        //       Then this query would only need to be called upon construction.
-        return (Integer) JdbcTemplate.executeQuery(cm.getConnection(), SQL.COUNT_OBJECTS, new JdbcTemplate() {
-            @Override
-            public Object results(ResultSet rs) throws SQLException {
-                return rs.next() ? rs.getInt(1) : 0;
+    public E peek() {
+        takeLock.lock();
+        try {
+            QueueEntry<E> entry = headEntry();
+            return entry != null ? entry.getObject() : null;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue. Unless the durability mode
+     * is ASYNC, the removal has been committed when this method returns.
+     */
+    @Override
+    public E poll() {
+        E object = takeHead();
+        awaitCommit();
+        return object;
+    }
+
+    /**
+     * Removes the head under the take lock without waiting for its commit.
+     *
+     * @return the head, or null if the queue is empty
+     */
+    E takeHead() {
+        takeLock.lock();
+        try {
+            QueueEntry<E> entry = headEntry();
+            if (entry == null) {
+                return null;
             }
-        });
+            store.removeHead(entry.getId(), entry.getId(), 1);
+            headBytes -= head.pollFirst().getBytes();
+            return entry.getObject();
+        } finally {
+            takeLock.unlock();
+        }
     }
 
+    /**
+     * Retrieves and removes up to maxElements objects from the head of this
+     * queue, oldest first. The objects are taken from the prefetch window,
+     * which is refilled from the store as needed, and removed from the store
+     * with a single head removal unless leased elements lie between them.
+     *
+     * @param maxElements the maximum number of objects to remove
+     * @return the removed objects, which is empty if this queue is empty
+     */
+    public List<E> pollBatch(int maxElements) {
+        List<E> objects = takeHead(maxElements);
+        awaitCommit();
+        return objects;
+    }
+
+    /**
+     * Removes up to maxElements from the head under the take lock without
+     * waiting for their commit.
+     */
+    List<E> takeHead(int maxElements) {
+        takeLock.lock();
+        try {
+            return takeRows(maxElements);
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private List<E> takeRows(int maxElements) {
+        List<QueueEntry<E>> entries = pollEntries(maxElements);
+        if (entries.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        long firstId = entries.get(0).getId();
+        long lastId = entries.get(entries.size() - 1).getId();
+        try {
+            if (leased.subMap(firstId, true, lastId, true).isEmpty()) {
+                store.removeHead(firstId, lastId, entries.size());
+            } else {
+                store.removeAll(idsOf(entries));
+            }
+        } catch (RuntimeException e) {
+            clearHead();
+            throw e;
+        }
+        List<E> objects = new ArrayList<>(entries.size());
+        for (QueueEntry<E> entry : entries) {
+            objects.add(entry.getObject());
+        }
+        return objects;
+    }
+
+    /**
+     * Takes up to maxElements entries from the prefetch window, refilling it as
+     * needed, without removing them from the store.
+     */
+    private List<QueueEntry<E>> pollEntries(int maxElements) {
+        if (maxElements <= 0) {
+            return new ArrayList<>(0);
+        }
+        discardStaleHead();
+        expireLeases();
+        List<QueueEntry<E>> entries = new ArrayList<>();
+        while (entries.size() < maxElements) {
+            if (head.isEmpty() && entries.size() < available()) {
+                refillHead(maxElements - entries.size());
+            }
+            if (head.isEmpty()) {
+                break;
+            }
+            QueueEntry<E> entry = head.pollFirst();
+            headBytes -= entry.getBytes();
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Leases the head of this queue.
+     *
+     * @param timeout how long the lease lasts unless acknowledged or released
+     * @param unit the unit of timeout
+     * @return the lease, or null if this queue is empty
+     * @see #lease(int, long, TimeUnit)
+     */
+    public Lease<E> lease(long timeout, TimeUnit unit) {
+        return lease(1, timeout, unit);
+    }
+
+    /**
+     * Leases up to maxElements objects from the head of this queue, oldest
+     * first. The objects are hidden from other consumers until the lease is
+     * acknowledged, which removes them, or released or expired, which returns
+     * them to the head. Nothing is written to the store until the lease is
+     * acknowledged.
+     *
+     * @param maxElements the maximum number of objects to lease
+     * @param timeout how long the lease lasts unless acknowledged or released
+     * @param unit the unit of timeout
+     * @return the lease, or null if this queue is empty
+     */
+    public Lease<E> lease(int maxElements, long timeout, TimeUnit unit) {
+        if (maxElements <= 0) {
+            throw new IllegalArgumentException("Lease size must be positive: " + maxElements);
+        }
+        takeLock.lock();
+        try {
+            return leaseHead(maxElements, unit.toNanos(timeout));
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Leases up to maxElements from the head under the take lock.
+     *
+     * @return the lease, or null if the queue is empty
+     */
+    Lease<E> leaseHead(int maxElements, long timeoutNanos) {
+        List<QueueEntry<E>> entries = pollEntries(maxElements);
+        if (entries.isEmpty()) {
+            return null;
+        }
+        Lease<E> lease = new Lease<>(this, entries, System.nanoTime() + timeoutNanos);
+        for (QueueEntry<E> entry : entries) {
+            leased.put(entry.getId(), lease);
+        }
+        leasedCount = leased.size();
+        leases.add(lease);
+        return lease;
+    }
+
+    /**
+     * Acknowledges the lease, removing its objects from this queue. A lease
+     * that has expired may still be acknowledged until its objects are
+     * delivered again. Unless the durability mode is ASYNC, the removal has
+     * been committed when this method returns true.
+     *
+     * @return false if the lease had already been acknowledged, released, or
+     * expired and its objects returned to the head
+     */
+    public boolean ack(Lease<E> lease) {
+        checkLease(lease);
+        takeLock.lock();
+        try {
+            if (!lease.active) {
+                return false;
+            }
+            endLease(lease);
+            try {
+                store.removeAll(idsOf(lease.entries));
+            } catch (RuntimeException e) {
+                returnToHead(lease.entries);
+                throw e;
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        awaitCommit();
+        return true;
+    }
+
+    /**
+     * Releases the lease, returning its objects to the head of this queue to be
+     * delivered again.
+     *
+     * @return false if the lease had already been acknowledged, released, or
+     * expired
+     */
+    public boolean nack(Lease<E> lease) {
+        checkLease(lease);
+        takeLock.lock();
+        try {
+            if (!lease.active) {
+                return false;
+            }
+            endLease(lease);
+            returnToHead(lease.entries);
+            return true;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void checkLease(Lease<E> lease) {
+        if (lease == null || !lease.isFrom(this)) {
+            throw new IllegalArgumentException("Lease is not from this queue.");
+        }
+    }
+
+    private void endLease(Lease<E> lease) {
+        lease.active = false;
+        leases.remove(lease);
+        for (QueueEntry<E> entry : lease.entries) {
+            leased.remove(entry.getId());
+        }
+        leasedCount = leased.size();
+    }
+
+    /**
+     * Returns the objects of expired leases to the head. Called under the take
+     * lock before the head is read.
+     */
+    private void expireLeases() {
+        long now = System.nanoTime();
+        while (!leases.isEmpty() && leases.peek().deadlineNanos - now <= 0) {
+            Lease<E> lease = leases.peek();
+            endLease(lease);
+            returnToHead(lease.entries);
+        }
+    }
+
+    /**
+     * Returns the nanoseconds until the next lease expires, or Long.MAX_VALUE
+     * if there are no leases. Called under the take lock by consumers waiting
+     * for the queue to become non-empty.
+     */
+    long nanosUntilLeaseExpiry() {
+        return leases.isEmpty() ? Long.MAX_VALUE : Math.max(0, leases.peek().deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * Merges released entries into the prefetch window in ID order. Entries
+     * past the end of the window are left to be read from the store again.
+     */
+    private void returnToHead(List<QueueEntry<E>> entries) {
+        List<QueueEntry<E>> merged = new ArrayList<>(head.size() + entries.size());
+        Iterator<QueueEntry<E>> window = head.iterator();
+        QueueEntry<E> next = window.hasNext() ? window.next() : null;
+        for (QueueEntry<E> entry : entries) {
+            if (entry.getId() > headTailId) {
+                break;
+            }
+            while (next != null && next.getId() < entry.getId()) {
+                merged.add(next);
+                next = window.hasNext() ? window.next() : null;
+            }
+            merged.add(entry);
+            headBytes += entry.getBytes();
+        }
+        if (next != null) {
+            merged.add(next);
+        }
+        while (window.hasNext()) {
+            merged.add(window.next());
+        }
+        head.clear();
+        head.addAll(merged);
+    }
+
+    private static <E> List<Long> idsOf(List<QueueEntry<E>> entries) {
+        List<Long> ids = new ArrayList<>(entries.size());
+        for (QueueEntry<E> entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes the object with the given ID. Used by iterators, which may remove
+     * objects from anywhere in the queue.
+     */
+    boolean removeById(long id) {
+        boolean removed = deleteById(id);
+        awaitCommit();
+        return removed;
+    }
+
+    private boolean deleteById(final long id) {
+        fullyLock();
+        try {
+            clearHead();
+            Lease<E> lease = leased.remove(id);
+            if (lease != null) {
+                leasedCount = leased.size();
+                for (Iterator<QueueEntry<E>> it = lease.entries.iterator(); it.hasNext();) {
+                    if (it.next().getId() == id) {
+                        it.remove();
+                    }
+                }
+            }
+            return store.remove(id);
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Waits for the calling thread's writes to be committed, as required by the
+     * durability mode. Must be called without holding either lock.
+     */
+    void awaitCommit() {
+        store.awaitCommit();
+    }
+
+    void fullyLock() {
+        putLock.lock();
+        takeLock.lock();
+    }
+
+    void fullyUnlock() {
+        takeLock.unlock();
+        putLock.unlock();
+    }
+
+    /**
+     * Returns the head element, refilling the prefetch window when it runs low.
+     */
+    private QueueEntry<E> headEntry() {
+        discardStaleHead();
+        expireLeases();
+        boolean low = head.size() <= prefetchSize / 4 && headBytes <= prefetchBytes / 4;
+        if (head.size() < available() && (head.isEmpty() || low)) {
+            refillHead(prefetchSize - head.size());
+        }
+        return head.peekFirst();
+    }
+
+    /**
+     * Appends up to max elements following the last element in the prefetch
+     * window, staying within the prefetch byte limit. Leased elements are
+     * skipped.
+     */
+    private void refillHead(int max) {
+        int limit = Math.max(1, Math.min(max, prefetchSize));
+        int size = head.size();
+        List<QueueEntry<E>> entries;
+        do {
+            long budget = prefetchBytes - headBytes;
+            if (!head.isEmpty() && budget <= 0) {
+                return;
+            }
+            entries = store.read(headTailId, limit, Math.max(budget, 1));
+            for (QueueEntry<E> entry : entries) {
+                // The store always returns its first element, which only fits an empty window.
+                if (!head.isEmpty() && headBytes + entry.getBytes() > prefetchBytes) {
+                    return;
+                }
+                headTailId = entry.getId();
+                if (!leased.containsKey(entry.getId())) {
+                    head.addLast(entry);
+                    headBytes += entry.getBytes();
+                }
+            }
+        } while (head.size() == size && !entries.isEmpty());
+    }
+
+    /**
+     * Returns the number of elements that are not leased.
+     */
+    private long available() {
+        return store.size() - leasedCount;
+    }
+
+    /**
+     * Returns the number of elements in the store, including leased elements.
+     */
+    long storedSize() {
+        return store.size();
+    }
+
+    private void clearHead() {
+        head.clear();
+        headBytes = 0;
+        headTailId = -1L;
+    }
+
+    /**
+     * Clears the prefetch window if the store has rolled back writes since it
+     * was filled, so that it is read again.
+     */
+    private void discardStaleHead() {
+        if (headStale) {
+            headStale = false;
+            clearHead();
+        }
+    }
+
+    /**
+     * Returns the number of elements that are not leased.
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(available(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements of this queue,
+     * oldest first, including leased elements. The iterator reads
+     * {@link #getIteratorPageSize()} elements at a time and supports remove().
+     */
     @Override
     public Iterator<E> iterator() {
-        return new PersistentQueueIterator<>(cm);
+        return new PersistentQueueIterator<>(this, store, iteratorPageSize, prefetchBytes);
+    }
+
+    /**
+     * Returns a spliterator over the elements of this queue, including leased
+     * elements, that splits by ID range so that {@code parallelStream()} reads
+     * and deserializes the elements on several threads. It covers the
+     * elements present when it is created, reading them
+     * {@link #getIteratorPageSize()} at a time.
+     */
+    @Override
+    public Spliterator<E> spliterator() {
+        long firstId = store.firstId();
+        long lastId = store.lastId();
+        if (firstId < 0 || lastId < firstId) {
+            return Spliterators.emptySpliterator();
+        }
+        return new PersistentQueueSpliterator<>(store, firstId - 1, lastId, store.size(), iteratorPageSize,
+                prefetchBytes);
     }
 
     /**
@@ -118,17 +854,33 @@ public class PersistentQueue<E extends Serializable>
      * transaction is committed. If the operator throws a RuntimeException, the
      * transaction is rolled back.
      *
+     * Any number of offers and polls on this queue made by the operator are
+     * committed together, as one write. Other threads cannot use the queue
+     * until the operator returns, so it must not wait for them, for example in
+     * a blocking take(). Operations on other persistent collections, which
+     * have their own databases, join those collections' transactions when
+     * the operator is nested in their inTransaction() calls; each database is
+     * committed separately, innermost first. The store of the queue must
+     * support transactions; a {@link org.pickle.store.LogQueueStore} does not
+     * undo the work of a failed operator.
+     *
      * @param operator the Runnable containing the code to run within a
      * transaction
+     * @return true if the operator completed and its work was committed
      */
-    public void inTransaction(Runnable operator) {
-        JdbcTemplate.openTransaction(cm);
+    public boolean inTransaction(Runnable operator) {
+        boolean committed;
+        fullyLock();
         try {
-            operator.run();
-            JdbcTemplate.commitTransaction();
-        } catch (RuntimeException e) {
-            log.log(Level.DEBUG, "Rolling back transaction due to exception", e);
-            JdbcTemplate.rollbackTransaction();
+            committed = store.inTransaction(operator);
+            if (!committed) {
+                // Polls rolled back by the store are no longer in the window.
+                clearHead();
+            }
+        } finally {
+            fullyUnlock();
         }
+        awaitCommit();
+        return committed;
     }
 }
@@ -4,92 +4,80 @@
 package org.pickle.util;
 
 import java.util.*;
-import java.sql.*;
+import java.io.Serializable;
 import org.apache.log4j.Logger;
-import org.pickle.sql.*;
+import org.pickle.store.*;
 
-class PersistentQueueIterator<E> implements Iterator<E> {
+/**
+ * Iterates over the elements of a PersistentQueue in ID order, reading them
+ * from the store a page at a time. Each page starts after the ID of the last
+ * element read, so memory is bounded by the page size and the iterator is
+ * weakly consistent: it never returns an element twice, sees elements added
+ * after the current page, and may return an element of the current page that
+ * has since been removed.
+ */
+class PersistentQueueIterator<E extends Serializable> implements Iterator<E> {
 
     private static final Logger log = Logger.getLogger(PersistentQueueIterator.class);
 
-    private final ConnectionManager cm;
-    private Long currentId;
+    private final PersistentQueue<E> queue;
+    private final QueueStore<E> store;
+    private final int pageSize;
+    private final long pageBytes;
+    // The elements read but not yet returned, and the ID of the last element read.
+    private final ArrayDeque<QueueEntry<E>> page = new ArrayDeque<>();
+    private long pageTailId = -1L;
+    // The ID of the element last returned by next(), or -1 if remove() is not allowed.
+    private long currentId = -1L;
 
-    public PersistentQueueIterator(ConnectionManager cm) {
-        this.cm = cm;
-        currentId = -1L;
+    /**
+     * @param queue the queue whose removeById() is called by remove()
+     * @param store the store to read
+     * @param pageSize the maximum number of elements read at a time
+     * @param pageBytes the maximum total size of the elements read at a time,
+     * except that a page always holds at least one element
+     */
+    public PersistentQueueIterator(PersistentQueue<E> queue, QueueStore<E> store, int pageSize, long pageBytes) {
+        this.queue = queue;
+        this.store = store;
+        this.pageSize = pageSize;
+        this.pageBytes = pageBytes;
     }
 
     @Override
     public boolean hasNext() {
-        return nextId() != null;
+        return nextEntry() != null;
     }
 
     @Override
     public E next() {
-        log.debug("Current ID = " + currentId);
-        currentId = nextId();
-        log.debug("Next ID = " + currentId);
-        if (currentId != null) {
-            @SuppressWarnings("unchecked")
-            E object = (E) JdbcTemplate.executeQuery(cm.getConnection(), PersistentQueue.SQL.SELECT_OBJECT,
-                    new JdbcTemplate() {
-                        @Override
-                        public void statement(PreparedStatement ps) throws SQLException {
-                            ps.setLong(1, currentId);
-                        }
-
-                        @Override
-                        public Object results(ResultSet rs) throws SQLException {
-                            return rs.next() ? rs.getObject(1) : null;
-                        }
-                    });
-            log.debug("Returning object with ID = " + currentId);
-            return object;
-        } else {
+        QueueEntry<E> entry = nextEntry();
+        if (entry == null) {
             throw new NoSuchElementException();
         }
+        page.pollFirst();
+        currentId = entry.getId();
+        return entry.getObject();
     }
 
     @Override
     public void remove() {
-        if (currentId != null) {
-            log.debug("Removing ID = " + currentId);
-            JdbcTemplate.executeUpdate(cm.getConnection(), PersistentQueue.SQL.DELETE_OBJECT, new JdbcTemplate() {
-                @Override
-                public void statement(PreparedStatement ps) throws SQLException {
-                    ps.setLong(1, currentId);
-                }
-            });
-        } else {
-            throw new NoSuchElementException();
+        if (currentId < 0) {
+            throw new IllegalStateException("next() has not returned an element since the last remove().");
         }
+        log.debug("Removing ID = " + currentId);
+        queue.removeById(currentId);
+        currentId = -1L;
     }
 
-    private Long nextId() {
-        if (currentId != null) {
-            return (Long) JdbcTemplate.executeQuery(cm.getConnection(), PersistentQueue.SQL.SELECT_NEXT_ID,
-                    new JdbcTemplate() {
-                        @Override
-                        public void statement(PreparedStatement ps) throws SQLException {
-                            ps.setLong(1, currentId);
-                        }
-
-                        @Override
-                        public Object results(ResultSet rs) throws SQLException {
-                            Long id = null;
-                            if (rs.next()) {
-                                // According to ResultSet#getLong(...) Javadocs, SQL NULL is returned as 0.
-                                id = rs.getLong(1);
-                                if (id == 0) {
-                                    id = null;
-                                }
-                            }
-                            return id;
-                        }
-                    });
-        } else {
-            return null;
+    private QueueEntry<E> nextEntry() {
+        if (page.isEmpty()) {
+            List<QueueEntry<E>> entries = store.read(pageTailId, pageSize, pageBytes);
+            if (!entries.isEmpty()) {
+                page.addAll(entries);
+                pageTailId = page.peekLast().getId();
+            }
         }
+        return page.peekFirst();
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.util.List;
+import org.pickle.store.*;
+
+/**
+ * Splits the elements of a PersistentQueue by ID range, reading each range
+ * from the queue's store a page at a time like
+ * {@link PersistentQueueIterator}.
+ */
+class PersistentQueueSpliterator<E> extends IdRangeSpliterator<QueueEntry<E>, E> {
+
+    private final QueueStore<E> store;
+    private final int pageSize;
+    private final long pageBytes;
+
+    /**
+     * @param store the store to read
+     * @param afterId the ID before the first element to cover
+     * @param lastId the ID of the last element to cover
+     * @param estimate the estimated number of elements in the range
+     * @param pageSize the maximum number of elements read at a time
+     * @param pageBytes the maximum total size of the elements read at a time
+     */
+    PersistentQueueSpliterator(QueueStore<E> store, long afterId, long lastId, long estimate, int pageSize,
+            long pageBytes) {
+        super(afterId, lastId, estimate, pageSize);
+        this.store = store;
+        this.pageSize = pageSize;
+        this.pageBytes = pageBytes;
+    }
+
+    @Override
+    List<QueueEntry<E>> read(long afterId, long lastId, int max) {
+        return store.read(afterId, lastId, max, pageBytes);
+    }
+
+    @Override
+    long idOf(QueueEntry<E> entry) {
+        return entry.getId();
+    }
+
+    @Override
+    E elementOf(QueueEntry<E> entry) {
+        return entry.getObject();
+    }
+
+    @Override
+    IdRangeSpliterator<QueueEntry<E>, E> split(long afterId, long lastId, long estimate) {
+        return new PersistentQueueSpliterator<>(store, afterId, lastId, estimate, pageSize, pageBytes);
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.pickle.Disposable;
+import org.pickle.serial.SerializationException;
+import org.pickle.serial.Serializer;
+import org.pickle.serial.Serializers;
+import org.pickle.sql.ConnectionManager;
+
+/**
+ * A Map spread over several {@link PersistentMap}s, each in its own database
+ * in a sub-directory of the data directory. Each key lives in the shard
+ * chosen by the digest of its serialized form, so every operation on one key
+ * is handled by one shard with that shard's guarantees. Since each shard has
+ * its own write connection and files, writes to keys in different shards
+ * commit in parallel.
+ *
+ * Operations spanning shards, such as {@link #size()}, {@link #clear()},
+ * {@link #putAll} and iteration, visit the shards one at a time and are not
+ * atomic as a whole. Iteration returns the entries of each shard in turn.
+ *
+ * The number of shards is fixed when the map is first created: opening it
+ * with a different number fails rather than losing track of keys.
+ */
+public class ShardedPersistentMap<K extends Serializable, V extends Serializable>
+        extends AbstractMap<K, V> implements ConcurrentMap<K, V>, Disposable {
+
+    private final List<PersistentMap<K, V>> shards;
+    private final Serializer<K> keySerializer;
+    private final Set<Map.Entry<K, V>> entrySetView = new EntrySet();
+    private final Set<K> keySetView = new KeySet();
+
+    public ShardedPersistentMap(File dataDir, int shards) {
+        this(dataDir, shards, Serializers.<K>java(), Serializers.<V>java());
+    }
+
+    /**
+     * Opens the map stored in the shard directories of dataDir, creating
+     * them if there are none.
+     *
+     * @param dataDir the base directory of the shards' databases
+     * @param shards the number of shards
+     * @param keySerializer converts keys to and from the stored bytes
+     * @param valueSerializer converts values to and from the stored bytes
+     * @throws IllegalArgumentException if dataDir holds a different number
+     * of shards
+     * @see Serializers
+     */
+    public ShardedPersistentMap(File dataDir, int shards, Serializer<K> keySerializer,
+            Serializer<V> valueSerializer) {
+        this.keySerializer = keySerializer;
+        List<PersistentMap<K, V>> maps = new ArrayList<>();
+        try {
+            for (File directory : Shards.directories(dataDir, shards)) {
+                maps.add(new PersistentMap<K, V>(directory, keySerializer, valueSerializer,
+                        ConnectionManager.DEFAULT_READ_CONNECTIONS));
+            }
+        } catch (RuntimeException e) {
+            for (PersistentMap<K, V> map : maps) {
+                map.dispose();
+            }
+            throw e;
+        }
+        this.shards = Collections.unmodifiableList(maps);
+    }
+
+    @Override
+    public void dispose() {
+        for (PersistentMap<K, V> shard : shards) {
+            shard.dispose();
+        }
+    }
+
+    /**
+     * Returns the shards, for example to set their cache limits or page
+     * sizes.
+     */
+    public List<PersistentMap<K, V>> getShards() {
+        return shards;
+    }
+
+    /**
+     * Compacts every shard, each on its own thread. The map must not be used
+     * by other threads until this method returns.
+     *
+     * @see PersistentMap#compact()
+     */
+    public void compact() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (final PersistentMap<K, V> shard : shards) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    shard.compact();
+                }
+            });
+        }
+        Shards.inParallel(tasks);
+    }
+
+    /**
+     * Returns the total size in bytes of the files holding the shards.
+     */
+    public long getDatabaseSize() {
+        long size = 0;
+        for (PersistentMap<K, V> shard : shards) {
+            size += shard.getDatabaseSize();
+        }
+        return size;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (PersistentMap<K, V> shard : shards) {
+            size += shard.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (PersistentMap<K, V> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        PersistentMap<K, V> shard = shardOf(key);
+        return shard != null && shard.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        PersistentMap<K, V> shard = shardOf(key);
+        return shard != null ? shard.get(key) : null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return shardFor(key).put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        PersistentMap<K, V> shard = shardOf(key);
+        return shard != null ? shard.remove(key) : null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        PersistentMap<K, V> shard = shardOf(key);
+        return shard != null && shard.remove(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return shardFor(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return shardFor(key).replace(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return shardFor(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return shardFor(key).compute(key, remappingFunction);
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return shardFor(key).computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return shardFor(key).computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        return shardFor(key).merge(key, value, remappingFunction);
+    }
+
+    /**
+     * Clears each shard in turn.
+     */
+    @Override
+    public void clear() {
+        for (PersistentMap<K, V> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * Returns the entries for those of the keys that are in the map, in the
+     * order of the keys, reading each shard's keys in batches.
+     *
+     * @see PersistentMap#getAll(Collection)
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        List<List<K>> byShard = byShard();
+        for (K key : keys) {
+            if (key != null) {
+                byShard.get(shardIndexFor(key)).add(key);
+            }
+        }
+        Map<K, V> found = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (!byShard.get(i).isEmpty()) {
+                found.putAll(shards.get(i).getAll(byShard.get(i)));
+            }
+        }
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K key : keys) {
+            V value = found.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Associates each value with its key, writing each shard's entries in
+     * batches.
+     *
+     * @see PersistentMap#putAll(Map)
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        List<Map<K, V>> byShard = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            byShard.add(new LinkedHashMap<K, V>());
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            byShard.get(shardIndexFor(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            if (!byShard.get(i).isEmpty()) {
+                shards.get(i).putAll(byShard.get(i));
+            }
+        }
+    }
+
+    /**
+     * Removes the entries for the keys, deleting each shard's keys in
+     * batches.
+     *
+     * @return the number of entries removed
+     * @see PersistentMap#removeAll(Collection)
+     */
+    public int removeAll(Collection<?> keys) {
+        List<List<Object>> byShard = byShard();
+        for (Object key : keys) {
+            int i = shardIndexOf(key);
+            if (i >= 0) {
+                byShard.get(i).add(key);
+            }
+        }
+        int removed = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            if (!byShard.get(i).isEmpty()) {
+                removed += shards.get(i).removeAll(byShard.get(i));
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return entrySetView;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return keySetView;
+    }
+
+    /**
+     * Returns the shard holding key, or null if the object cannot be a key of
+     * this map.
+     */
+    private PersistentMap<K, V> shardOf(Object key) {
+        int i = shardIndexOf(key);
+        return i >= 0 ? shards.get(i) : null;
+    }
+
+    private PersistentMap<K, V> shardFor(K key) {
+        return shards.get(shardIndexFor(key));
+    }
+
+    /**
+     * Returns the index of the shard holding key, or -1 if the object cannot
+     * be a key of this map.
+     */
+    @SuppressWarnings("unchecked")
+    private int shardIndexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        try {
+            return shardIndexFor((K) key);
+        } catch (ClassCastException | SerializationException e) {
+            return -1;
+        }
+    }
+
+    private int shardIndexFor(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("null is not supported.");
+        }
+        // The shards use the digest's low bits for their own locks and index,
+        // so the shard is chosen by the high ones.
+        long high = PersistentMap.high(PersistentMap.digest(keySerializer.serialize(key)));
+        return (int) ((high >>> 1) % shards.size());
+    }
+
+    /**
+     * Returns an empty list for each shard, in which to group keys.
+     */
+    private <T> List<List<T>> byShard() {
+        List<List<T>> byShard = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            byShard.add(new ArrayList<T>());
+        }
+        return byShard;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            List<Set<Map.Entry<K, V>>> entrySets = new ArrayList<>();
+            for (PersistentMap<K, V> shard : shards) {
+                entrySets.add(shard.entrySet());
+            }
+            return Shards.concat(entrySets);
+        }
+
+        @Override
+        public int size() {
+            return ShardedPersistentMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            PersistentMap<K, V> shard = shardOf(((Map.Entry<?, ?>) o).getKey());
+            return shard != null && shard.entrySet().contains(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return ShardedPersistentMap.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void clear() {
+            ShardedPersistentMap.this.clear();
+        }
+    }
+
+    private class KeySet extends AbstractSet<K> {
+
+        @Override
+        public Iterator<K> iterator() {
+            List<Set<K>> keySets = new ArrayList<>();
+            for (PersistentMap<K, V> shard : shards) {
+                keySets.add(shard.keySet());
+            }
+            return Shards.concat(keySets);
+        }
+
+        @Override
+        public int size() {
+            return ShardedPersistentMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            PersistentMap<K, V> shard = shardOf(o);
+            return shard != null && shard.keySet().remove(o);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            return ShardedPersistentMap.this.removeAll(c) > 0;
+        }
+
+        @Override
+        public void clear() {
+            ShardedPersistentMap.this.clear();
+        }
+    }
+}
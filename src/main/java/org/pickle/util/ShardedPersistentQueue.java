@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.pickle.Disposable;
+import org.pickle.serial.Serializer;
+import org.pickle.serial.Serializers;
+import org.pickle.sql.ConnectionManager;
+import org.pickle.sql.Durability;
+
+/**
+ * A queue spread over several {@link PersistentQueue}s, each in its own
+ * database in a sub-directory of the data directory, so that producers on
+ * different shards insert and commit in parallel.
+ *
+ * Each producer thread is assigned a shard, round-robin, the first time it
+ * offers and always offers to that shard, so the elements of one producer
+ * stay in FIFO order. Consumers take from the shards in rotation, moving on
+ * to the next shard when one is empty; there is no order between the
+ * elements of different shards. Threads that are not producers may still
+ * offer; each offering thread takes one shard, so a producer pool should have
+ * at least as many threads as there are shards.
+ *
+ * Operations spanning shards, such as {@link #size()} and iteration, visit the
+ * shards one at a time. Leases and transactions are not offered across
+ * shards; they are available on the queues returned by {@link #getShards()}.
+ *
+ * The number of shards is fixed when the queue is first created: opening it
+ * with a different number fails rather than losing track of elements.
+ */
+public class ShardedPersistentQueue<E extends Serializable>
+        extends AbstractQueue<E> implements Disposable {
+
+    private final List<PersistentQueue<E>> shards;
+    private final AtomicInteger nextProducer = new AtomicInteger();
+    private final AtomicInteger nextConsumer = new AtomicInteger();
+    private final ThreadLocal<PersistentQueue<E>> producerShard = new ThreadLocal<PersistentQueue<E>>() {
+        @Override
+        protected PersistentQueue<E> initialValue() {
+            return shards.get(Math.abs(nextProducer.getAndIncrement() % shards.size()));
+        }
+    };
+
+    public ShardedPersistentQueue(File dataDir, int shards) {
+        this(dataDir, shards, Durability.SYNC);
+    }
+
+    /**
+     * Opens the queue stored in the shard directories of dataDir, storing
+     * elements in the form produced by the given serializer.
+     *
+     * @param dataDir the base directory of the shards' databases
+     * @param shards the number of shards
+     * @param serializer converts elements to and from the stored bytes
+     * @throws IllegalArgumentException if dataDir holds a different number
+     * of shards
+     * @see Serializers
+     */
+    public ShardedPersistentQueue(File dataDir, int shards, final Serializer<E> serializer) {
+        this(dataDir, shards, new Factory<E>() {
+            @Override
+            public PersistentQueue<E> open(File directory) {
+                return new PersistentQueue<E>(directory, serializer);
+            }
+        });
+    }
+
+    /**
+     * Opens the queue stored in the shard directories of dataDir, committing
+     * each shard's writes according to the given durability mode.
+     *
+     * @param dataDir the base directory of the shards' databases
+     * @param shards the number of shards
+     * @param durability when offers and polls are committed
+     * @throws IllegalArgumentException if dataDir holds a different number
+     * of shards
+     * @see Durability
+     */
+    public ShardedPersistentQueue(File dataDir, int shards, final Durability durability) {
+        this(dataDir, shards, new Factory<E>() {
+            @Override
+            public PersistentQueue<E> open(File directory) {
+                return new PersistentQueue<E>(directory, durability,
+                        ConnectionManager.DEFAULT_COMMIT_WINDOW_MILLIS);
+            }
+        });
+    }
+
+    private ShardedPersistentQueue(File dataDir, int shards, Factory<E> factory) {
+        List<PersistentQueue<E>> queues = new ArrayList<>();
+        try {
+            for (File directory : Shards.directories(dataDir, shards)) {
+                queues.add(factory.open(directory));
+            }
+        } catch (RuntimeException e) {
+            for (PersistentQueue<E> queue : queues) {
+                queue.dispose();
+            }
+            throw e;
+        }
+        this.shards = Collections.unmodifiableList(queues);
+    }
+
+    /**
+     * Opens the queue of one shard.
+     */
+    private interface Factory<E extends Serializable> {
+        PersistentQueue<E> open(File directory);
+    }
+
+    @Override
+    public void dispose() {
+        for (PersistentQueue<E> shard : shards) {
+            shard.dispose();
+        }
+    }
+
+    /**
+     * Returns the shards, for example to lease from them or to set their
+     * batch and prefetch sizes.
+     */
+    public List<PersistentQueue<E>> getShards() {
+        return shards;
+    }
+
+    /**
+     * Compacts every shard, each on its own thread.
+     *
+     * @see PersistentQueue#compact()
+     */
+    public void compact() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (final PersistentQueue<E> shard : shards) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    shard.compact();
+                }
+            });
+        }
+        Shards.inParallel(tasks);
+    }
+
+    /**
+     * Commits any GROUP_COMMIT or ASYNC writes that are still pending in any
+     * shard.
+     */
+    public void flush() {
+        for (PersistentQueue<E> shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Returns the total size in bytes of the files holding the shards.
+     */
+    public long getDatabaseSize() {
+        long size = 0;
+        for (PersistentQueue<E> shard : shards) {
+            size += shard.getDatabaseSize();
+        }
+        return size;
+    }
+
+    /**
+     * Inserts the object at the tail of the calling thread's shard.
+     */
+    @Override
+    public boolean offer(E object) {
+        return producerShard.get().offer(object);
+    }
+
+    /**
+     * Inserts all of the objects at the tail of the calling thread's shard, in
+     * iteration order, using batch appends.
+     *
+     * @see PersistentQueue#offerAll(Collection)
+     */
+    public boolean offerAll(Collection<? extends E> objects) {
+        if (objects == this) {
+            throw new IllegalArgumentException("A Queue cannot be added to itself.");
+        }
+        return producerShard.get().offerAll(objects);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> objects) {
+        if (!offerAll(objects) && !objects.isEmpty()) {
+            throw new IllegalStateException("Queue full");
+        }
+        return !objects.isEmpty();
+    }
+
+    /**
+     * Returns the head of the first non-empty shard, starting with the one
+     * the next poll will try first.
+     */
+    @Override
+    public E peek() {
+        int first = nextConsumer.get();
+        for (int i = 0; i < shards.size(); i++) {
+            E object = shard(first + i).peek();
+            if (object != null) {
+                return object;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves and removes the head of the next non-empty shard in rotation.
+     */
+    @Override
+    public E poll() {
+        int first = nextConsumer.getAndIncrement();
+        for (int i = 0; i < shards.size(); i++) {
+            E object = shard(first + i).poll();
+            if (object != null) {
+                return object;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves and removes up to maxElements objects, taking as many as
+     * possible from the next shard in rotation before moving on to the
+     * following ones.
+     *
+     * @see PersistentQueue#pollBatch(int)
+     */
+    public List<E> pollBatch(int maxElements) {
+        List<E> objects = new ArrayList<>();
+        int first = nextConsumer.getAndIncrement();
+        for (int i = 0; i < shards.size() && objects.size() < maxElements; i++) {
+            objects.addAll(shard(first + i).pollBatch(maxElements - objects.size()));
+        }
+        return objects;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (PersistentQueue<E> shard : shards) {
+            size += shard.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (PersistentQueue<E> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements of each shard in
+     * turn, which supports remove().
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return Shards.concat(shards);
+    }
+
+    private PersistentQueue<E> shard(int i) {
+        return shards.get(Math.abs(i % shards.size()));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.util.*;
+import org.pickle.sql.DatabaseException;
+
+/**
+ * Helpers shared by the sharded collections, which keep each shard in its own
+ * database in a sub-directory named shard-0, shard-1 and so on of the data
+ * directory.
+ */
+final class Shards {
+
+    private static final String SHARD_PREFIX = "shard-";
+
+    private Shards() {
+    }
+
+    /**
+     * Returns the directories of count shards in dataDir, creating those that
+     * do not exist yet.
+     *
+     * @throws IllegalArgumentException if count is not positive or dataDir
+     * already holds a different number of shards, whose contents would
+     * otherwise be lost or misplaced
+     */
+    static File[] directories(File dataDir, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        if (!dataDir.isDirectory() || !dataDir.canWrite()) {
+            throw new DatabaseException(
+                    String.format("'%s' is not a writable directory or does not exist.", dataDir));
+        }
+        int existing = 0;
+        for (String name : dataDir.list()) {
+            if (name.matches(SHARD_PREFIX + "\\d+") && new File(dataDir, name).isDirectory()) {
+                existing++;
+            }
+        }
+        if (existing > 0 && existing != count) {
+            throw new IllegalArgumentException(
+                    String.format("'%s' holds %d shards, not %d.", dataDir, existing, count));
+        }
+        File[] directories = new File[count];
+        for (int i = 0; i < count; i++) {
+            directories[i] = new File(dataDir, SHARD_PREFIX + i);
+            directories[i].mkdir();
+        }
+        return directories;
+    }
+
+    /**
+     * Runs the tasks, each on its own thread, and waits for all of them to
+     * finish.
+     *
+     * @throws RuntimeException the first exception thrown by a task, after
+     * every task has finished
+     */
+    static void inParallel(List<Runnable> tasks) {
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (final Runnable task : tasks) {
+            Thread thread = new Thread("pickle-shard-" + threads.size()) {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException | Error e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // The tasks hold the shards' databases, so they are always waited for.
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (!failures.isEmpty()) {
+            Throwable failure = failures.get(0);
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements of each of the sources in turn,
+     * whose remove() removes through the source iterator.
+     */
+    static <T> Iterator<T> concat(final List<? extends Iterable<T>> sources) {
+        return new Iterator<T>() {
+            private int next;
+            private Iterator<T> current = Collections.emptyIterator();
+            private Iterator<T> last;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && next < sources.size()) {
+                    current = sources.get(next++).iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = current;
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                last.remove();
+                last = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class CompressingSerializerTest {
+
+  private static String repeat(String s, int times) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void testValuesBelowThresholdAreStoredRaw() {
+    Serializer<String> serializer = new CompressingSerializer<String>(Serializers.STRING, 100);
+    String small = repeat("a", 99);
+    byte[] bytes = serializer.serialize(small);
+    assertEquals(100, bytes.length);
+    assertEquals(small, serializer.deserialize(bytes));
+  }
+
+  @Test
+  public void testLargeValuesAreCompressed() {
+    Serializer<String> serializer = new CompressingSerializer<String>(Serializers.STRING, 100);
+    String large = repeat("{\"name\":\"value\",\"count\":42}", 1000);
+    byte[] bytes = serializer.serialize(large);
+    assertTrue(bytes.length < large.length() / 10);
+    assertEquals(large, serializer.deserialize(bytes));
+  }
+
+  @Test
+  public void testIncompressibleValuesAreStoredRaw() {
+    Serializer<byte[]> serializer = new CompressingSerializer<byte[]>(Serializers.BYTES, 0);
+    byte[] random = new byte[4096];
+    new Random(1).nextBytes(random);
+    byte[] bytes = serializer.serialize(random);
+    assertEquals(random.length + 1, bytes.length);
+    assertArrayEquals(random, serializer.deserialize(bytes));
+  }
+
+  @Test
+  public void testMixedValuesReadBack() {
+    Serializer<String> raw = new CompressingSerializer<String>(Serializers.STRING, Integer.MAX_VALUE);
+    Serializer<String> compressed = new CompressingSerializer<String>(Serializers.STRING, 0);
+    String value = repeat("abc", 100);
+    assertEquals(value, compressed.deserialize(raw.serialize(value)));
+    assertEquals(value, raw.deserialize(compressed.serialize(value)));
+  }
+
+  @Test
+  public void testDictionaryHelpsSmallValues() {
+    String sample = "{\"customer\":\"ACME Corporation\",\"status\":\"SHIPPED\",\"priority\":\"HIGH\"}";
+    byte[] dictionary = Serializers.STRING.serialize(sample);
+    Serializer<String> plain = new CompressingSerializer<String>(Serializers.STRING, 0);
+    Serializer<String> preset = new CompressingSerializer<String>(Serializers.STRING, 0, 9, dictionary);
+    String value = sample.replace("HIGH", "LOW");
+    byte[] bytes = preset.serialize(value);
+    assertTrue(bytes.length < plain.serialize(value).length);
+    assertEquals(value, preset.deserialize(bytes));
+    try {
+      new CompressingSerializer<String>(Serializers.STRING, 0, 9, new byte[]{1, 2, 3}).deserialize(bytes);
+      fail();
+    } catch (SerializationException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testLegacyJavaSerializedValuesReadBack() {
+    Serializer<ArrayList<String>> java = Serializers.java();
+    Serializer<ArrayList<String>> serializer = new CompressingSerializer<ArrayList<String>>(java);
+    ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+    assertEquals(list, serializer.deserialize(java.serialize(list)));
+  }
+
+  @Test(expected = SerializationException.class)
+  public void testUnknownCodecIsRejected() {
+    // The first byte of the Java serialization magic number alone is not a codec.
+    new CompressingSerializer<String>(Serializers.STRING).deserialize(new byte[]{(byte) 0xAC, 0});
+  }
+}
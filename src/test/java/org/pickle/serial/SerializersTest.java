@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.serial;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SerializersTest {
+
+  private static <E> E roundTrip(Serializer<E> serializer, E object) {
+    return serializer.deserialize(serializer.serialize(object));
+  }
+
+  @Test
+  public void testBuiltInRoundTrips() {
+    assertEquals("h\u00e9llo", roundTrip(Serializers.STRING, "h\u00e9llo"));
+    assertEquals("", roundTrip(Serializers.STRING, ""));
+    assertArrayEquals(new byte[]{1, 2, 3}, roundTrip(Serializers.BYTES, new byte[]{1, 2, 3}));
+    assertEquals(Integer.valueOf(-7), roundTrip(Serializers.INTEGER, -7));
+    assertEquals(Long.valueOf(Long.MAX_VALUE), roundTrip(Serializers.LONG, Long.MAX_VALUE));
+    assertEquals(Short.valueOf((short) 300), roundTrip(Serializers.SHORT, (short) 300));
+    assertEquals(Byte.valueOf((byte) -1), roundTrip(Serializers.BYTE, (byte) -1));
+    assertEquals(Character.valueOf('\u20ac'), roundTrip(Serializers.CHARACTER, '\u20ac'));
+    assertEquals(Boolean.TRUE, roundTrip(Serializers.BOOLEAN, true));
+    assertEquals(Float.valueOf(1.5f), roundTrip(Serializers.FLOAT, 1.5f));
+    assertEquals(Double.valueOf(Math.PI), roundTrip(Serializers.DOUBLE, Math.PI));
+    assertEquals(8, Serializers.LONG.serialize(1L).length);
+  }
+
+  @Test
+  public void testForClass() {
+    assertSame(Serializers.STRING, Serializers.forClass(String.class));
+    assertSame(Serializers.LONG, Serializers.forClass(Long.class));
+    Serializer<Date> dates = Serializers.forClass(Date.class);
+    assertEquals(new Date(42), roundTrip(dates, new Date(42)));
+  }
+
+  @Test(expected = SerializationException.class)
+  public void testWrongLengthIsRejected() {
+    Serializers.INTEGER.deserialize(new byte[3]);
+  }
+
+  @Test
+  public void testBinarySerializer() {
+    Serializer<List<String>> serializer = new BinarySerializer<List<String>>() {
+      @Override
+      protected void write(List<String> list, DataOutput out) throws IOException {
+        out.writeInt(list.size());
+        for (String s : list) {
+          out.writeUTF(s);
+        }
+      }
+
+      @Override
+      protected List<String> read(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(in.readUTF());
+        }
+        return list;
+      }
+    };
+    List<String> list = Arrays.asList("a", "bc", "");
+    assertEquals(list, roundTrip(serializer, list));
+    assertTrue(serializer.serialize(list).length < Serializers.java().serialize(list).length);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.sql;
+
+import java.io.File;
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.h2.tools.DeleteDbFiles;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class JdbcTemplateTest {
+
+    private static final String CREATE_TABLE_SQL
+            = "CREATE TABLE IF NOT EXISTS ITEM (ID IDENTITY PRIMARY KEY, NAME VARCHAR(64) NOT NULL)";
+    private static final String INSERT_SQL = "INSERT INTO ITEM (NAME) VALUES (?)";
+    private static final String COUNT_SQL = "SELECT COUNT(ID) FROM ITEM";
+
+    private final File dataDir
+            = new File(String.format("%s/%s", System.getProperty("java.io.tmpdir"), getClass().getName()));
+
+    private ConnectionManager cm;
+
+    @Before
+    public void setUp() {
+        dataDir.mkdir();
+        cm = new ConnectionManager(dataDir, CREATE_TABLE_SQL);
+    }
+
+    @After
+    public void tearDown() {
+        cm.dispose();
+        DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+        assertTrue(dataDir.delete());
+    }
+
+    private void insert(final String name) {
+        JdbcTemplate.executeUpdate(cm, INSERT_SQL, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setString(1, name);
+            }
+        });
+    }
+
+    private void insert(final String name, final AtomicInteger committed) {
+        JdbcTemplate.executeUpdate(cm, INSERT_SQL, new JdbcTemplate() {
+            @Override
+            public void statement(PreparedStatement ps) throws SQLException {
+                ps.setString(1, name);
+            }
+
+            @Override
+            public void committed(int count) {
+                committed.addAndGet(count);
+            }
+        });
+    }
+
+    private long count() {
+        return (Long) JdbcTemplate.executeQuery(cm, COUNT_SQL, new JdbcTemplate() {
+            @Override
+            public Object results(ResultSet rs) throws SQLException {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    @Test
+    public void testStatementCache() {
+        final Counter counter = new Counter(cm.getConnection(), "ITEM", COUNT_SQL);
+        long misses = cm.getStatementCacheMisses();
+        long hits = cm.getStatementCacheHits();
+        for (int i = 0; i < 10; i++) {
+            final String name = "item-" + i;
+            JdbcTemplate.executeUpdate(cm, INSERT_SQL, new JdbcTemplate() {
+                @Override
+                public void statement(PreparedStatement ps) throws SQLException {
+                    ps.setString(1, name);
+                }
+
+                @Override
+                public void updated(int count) {
+                    counter.persist(this, count);
+                }
+            });
+        }
+        // The insert and the counter update are each prepared once.
+        assertEquals(misses + 2, cm.getStatementCacheMisses());
+        assertTrue(cm.getStatementCacheHits() >= hits + 18);
+        assertEquals(10, count());
+        assertEquals(10, count());
+        counter.reload(cm.getConnection());
+        assertEquals(10, counter.get());
+    }
+
+    @Test
+    public void testFailedStatementIsEvicted() {
+        insert("first");
+        long misses = cm.getStatementCacheMisses();
+        try {
+            JdbcTemplate.executeUpdate(cm, INSERT_SQL, new JdbcTemplate() {
+                @Override
+                public void statement(PreparedStatement ps) throws SQLException {
+                    ps.setString(1, null);
+                }
+            });
+            fail("Expected a DatabaseException.");
+        } catch (DatabaseException e) {
+            // NAME is NOT NULL.
+        }
+        insert("second");
+        assertEquals(misses + 1, cm.getStatementCacheMisses());
+        assertEquals(2, count());
+    }
+
+    @Test
+    public void testTransactionCommitsTogether() {
+        JdbcTemplate.openTransaction(cm);
+        insert("a");
+        insert("b");
+        assertTrue(cm.isInTransaction());
+        assertEquals(2, count());
+        JdbcTemplate.commitTransaction();
+        assertFalse(cm.isInTransaction());
+        assertEquals(2, count());
+    }
+
+    @Test
+    public void testNestedRollbackRollsBackOuterTransaction() {
+        insert("kept");
+        JdbcTemplate.openTransaction(cm);
+        insert("a");
+        JdbcTemplate.openTransaction(cm);
+        insert("b");
+        JdbcTemplate.rollbackTransaction();
+        try {
+            JdbcTemplate.commitTransaction();
+            fail("Expected a DatabaseException.");
+        } catch (DatabaseException e) {
+            // The nested rollback undoes the whole transaction.
+        }
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void testCommittedWaitsForTransaction() {
+        AtomicInteger committed = new AtomicInteger();
+        insert("a", committed);
+        assertEquals(1, committed.get());
+        JdbcTemplate.openTransaction(cm);
+        insert("b", committed);
+        insert("c", committed);
+        assertEquals(1, committed.get());
+        JdbcTemplate.commitTransaction();
+        assertEquals(3, committed.get());
+    }
+
+    @Test
+    public void testCommittedIsNotCalledAfterRollback() {
+        AtomicInteger committed = new AtomicInteger();
+        JdbcTemplate.openTransaction(cm);
+        insert("a", committed);
+        JdbcTemplate.rollbackTransaction();
+        JdbcTemplate.openTransaction(cm);
+        insert("b", committed);
+        JdbcTemplate.commitTransaction();
+        assertEquals(1, committed.get());
+        assertEquals(1, count());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCommitWithoutTransaction() {
+        JdbcTemplate.commitTransaction();
+    }
+
+    @Test
+    public void testFailedGroupCommitIsReported() throws Exception {
+        cm.dispose();
+        // A window long enough that only flush() commits.
+        cm = new ConnectionManager(dataDir, CREATE_TABLE_SQL, Durability.GROUP_COMMIT, 60000);
+        final AtomicInteger rollbacks = new AtomicInteger();
+        cm.addRollbackListener(new Runnable() {
+            @Override
+            public void run() {
+                rollbacks.incrementAndGet();
+            }
+        });
+        final AtomicReference<Throwable> otherFailure = new AtomicReference<>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                insert("other");
+                try {
+                    cm.awaitCommit();
+                } catch (DatabaseException e) {
+                    otherFailure.set(e);
+                }
+            }
+        };
+        other.start();
+        while (count() == 0) {
+            Thread.sleep(1);
+        }
+        insert("mine");
+        cm.getConnection().close();
+        cm.flush();
+        other.join();
+        assertEquals(1, rollbacks.get());
+        assertTrue(otherFailure.get() instanceof DatabaseException);
+        try {
+            cm.awaitCommit();
+            fail("Expected a DatabaseException.");
+        } catch (DatabaseException e) {
+            // Both writes were rolled back by the failed commit.
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+import org.h2.tools.DeleteDbFiles;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.pickle.sql.Durability;
+
+/**
+ * Checks when the offers and polls of a PersistentQueue become visible to
+ * another connection, which sees only committed data, in each durability
+ * mode.
+ */
+public class DurabilityTest {
+
+    private final File dataDir
+            = new File(String.format("%s/%s", System.getProperty("java.io.tmpdir"), getClass().getName()));
+
+    private PersistentQueue<String> queue;
+    private Connection observer;
+
+    @Before
+    public void setUp() {
+        dataDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (observer != null) {
+            observer.close();
+        }
+        if (queue != null) {
+            queue.dispose();
+        }
+        DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+        assertTrue(dataDir.delete());
+    }
+
+    private void open(Durability durability, long commitWindowMillis) throws SQLException {
+        queue = new PersistentQueue<String>(dataDir, durability, commitWindowMillis);
+        observer = DriverManager.getConnection(
+                String.format("jdbc:h2:%s/pickle", dataDir.getAbsolutePath()), "sa", "");
+    }
+
+    private long committedCount() throws SQLException {
+        try (Statement statement = observer.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT COUNT(ID) FROM QUEUE")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void testSyncCommitsEachOperation() throws SQLException {
+        open(Durability.SYNC, 0);
+        assertTrue(queue.offer("a"));
+        assertEquals(1, committedCount());
+        assertEquals("a", queue.poll());
+        assertEquals(0, committedCount());
+    }
+
+    @Test
+    public void testGroupCommitWaitsForTheCommitWindow() throws SQLException {
+        final long window = 200;
+        open(Durability.GROUP_COMMIT, window);
+        long start = System.nanoTime();
+        assertTrue(queue.offer("a"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= window / 2);
+        assertEquals(1, committedCount());
+        assertEquals("a", queue.poll());
+        assertEquals(0, committedCount());
+    }
+
+    @Test
+    public void testAsyncReturnsBeforeCommitting() throws SQLException {
+        // A window long enough that only flush() commits.
+        open(Durability.ASYNC, 60000);
+        long start = System.nanoTime();
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 30000);
+        assertEquals(2, queue.size());
+        assertEquals(0, committedCount());
+        assertEquals("a", queue.poll());
+        assertEquals(0, committedCount());
+        queue.flush();
+        assertEquals(1, committedCount());
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class KeyIndexTest {
+
+    @Test
+    public void testProbingAndRemoval() {
+        KeyIndex index = new KeyIndex(0, 1 << 20);
+        // Digests sharing their low bits produce long probe runs.
+        for (long id = 1; id <= 1000; id++) {
+            index.put(id, (id % 7) << 32, id);
+        }
+        assertEquals(1000, index.size());
+        assertEquals(KeyIndex.ABSENT, index.get(1001, 0));
+        for (long id = 1; id <= 1000; id += 2) {
+            index.remove(id, (id % 7) << 32);
+        }
+        index.remove(5000, 0);
+        assertEquals(500, index.size());
+        for (long id = 1; id <= 1000; id++) {
+            assertEquals(id % 2 == 0 ? id : KeyIndex.ABSENT, index.get(id, (id % 7) << 32));
+        }
+        index.put(2, (2L % 7) << 32, 2000);
+        assertEquals(2000, index.get(2, (2L % 7) << 32));
+        assertEquals(500, index.size());
+        index.clear();
+        assertEquals(KeyIndex.ABSENT, index.get(2, (2L % 7) << 32));
+    }
+
+    @Test
+    public void testAbandonedBeyondLimit() {
+        KeyIndex index = new KeyIndex(0, 1024);
+        for (long id = 1; id <= 20; id++) {
+            index.put(0, id, id);
+        }
+        assertTrue(index.isAbandoned());
+        assertEquals(KeyIndex.UNKNOWN, index.get(0, 1));
+        assertEquals(0, index.getMemoryUsage());
+        assertTrue(new KeyIndex(1000, 1024).isAbandoned());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.pickle.sql.Durability;
+import org.pickle.store.LogQueueStore;
+
+/**
+ * Runs the PersistentQueue tests against the segmented log store.
+ */
+public class LogPersistentQueueTest extends PersistentQueueTest {
+
+  private static final int SEGMENT_SIZE = 1024;
+
+  // The log lives beside the data directory, which the base class expects to hold only H2 files.
+  private File getLogDir(File dataDir) {
+    return new File(dataDir.getPath() + "-log");
+  }
+
+  @Override
+  protected PersistentQueue<String> openQueue(File dataDir) {
+    return new PersistentQueue<String>(
+        new LogQueueStore<String>(getLogDir(dataDir), Durability.GROUP_COMMIT, SEGMENT_SIZE));
+  }
+
+  @Override
+  protected boolean isTransactional() {
+    return false;
+  }
+
+  @After
+  @Override
+  public void tearDown() {
+    super.tearDown();
+    File logDir = getLogDir(getDataDir());
+    File[] files = logDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        assertTrue(file.delete());
+      }
+    }
+    logDir.delete();
+  }
+
+  private int countSegments() {
+    int count = 0;
+    for (String name : getLogDir(getDataDir()).list()) {
+      if (name.startsWith("segment-")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testConsumedSegmentsAreDeleted() {
+    final int N = 200;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    int segments = countSegments();
+    assertTrue(segments > 1);
+    long size = persistentQueue.getDatabaseSize();
+    assertEquals(Arrays.asList(items(0, N / 2 - 1)), persistentQueue.pollBatch(N / 2));
+    assertTrue(countSegments() < segments);
+    assertTrue(persistentQueue.getDatabaseSize() < size);
+    assertEquals(Arrays.asList(items(N / 2, N - 1)), persistentQueue.pollBatch(N));
+    assertEquals(1, countSegments());
+    assertTrue(queue.offer(item(N)));
+    assertEquals(item(N), queue.poll());
+  }
+
+  @Test
+  public void testReopenKeepsOrderAndRemovals() {
+    final int N = 50;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    assertEquals(item(0), queue.poll());
+    Iterator<String> iterator = queue.iterator();
+    iterator.next();
+    iterator.next();
+    iterator.remove();
+    persistentQueue.dispose();
+
+    queue = persistentQueue = openQueue(getDataDir());
+    List<String> expected = new ArrayList<String>(Arrays.asList(items(1, N - 1)));
+    expected.remove(item(2));
+    assertEquals(N - 2, queue.size());
+    assertEquals(expected, persistentQueue.pollBatch(N));
+    assertTrue(queue.offer(item(N)));
+    persistentQueue.dispose();
+
+    PersistentQueue<String> reopened = openQueue(getDataDir());
+    try {
+      assertEquals(Collections.singletonList(item(N)), reopened.pollBatch(N));
+    } finally {
+      reopened.dispose();
+    }
+  }
+
+  @Test
+  public void testIncompleteBatchIsNotRecovered() throws Exception {
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, 2)));
+    persistentQueue.dispose();
+    // A crash before the batch's first length is written leaves it zero.
+    File segment = null;
+    for (File file : getLogDir(getDataDir()).listFiles()) {
+      if (file.getName().startsWith("segment-")) {
+        segment = file;
+      }
+    }
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.writeInt(0);
+    }
+
+    queue = persistentQueue = openQueue(getDataDir());
+    assertTrue(queue.isEmpty());
+    // A record of the same length would line up with the rest of the batch.
+    assertTrue(queue.offer(item(3)));
+    persistentQueue.dispose();
+
+    queue = persistentQueue = openQueue(getDataDir());
+    assertEquals(Collections.singletonList(item(3)), persistentQueue.pollBatch(10));
+  }
+}
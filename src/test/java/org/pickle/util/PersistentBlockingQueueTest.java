@@ -6,7 +6,9 @@ package org.pickle.util;
 import java.io.File;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
+import org.h2.tools.DeleteDbFiles;
 /*import org.apache.commons.logging.*;*/
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -19,11 +21,15 @@ public class PersistentBlockingQueueTest extends PersistentQueueTest {
 
     @Override
     protected Collection<String> createPersistentCollection(File dataDir) {
-        blockingQueue = new PersistentBlockingQueue<String>(dataDir);
+        blockingQueue = createBlockingQueue(dataDir);
         super.queue = blockingQueue;
         return blockingQueue;
     }
 
+    protected PersistentBlockingQueue<String> createBlockingQueue(File dataDir) {
+        return new PersistentBlockingQueue<String>(dataDir);
+    }
+
     @Test
     public void testOneConsumerOnEmpty() throws InterruptedException {
         final long delay = 250;
@@ -92,6 +98,51 @@ public class PersistentBlockingQueueTest extends PersistentQueueTest {
         }
     }
 
+    @Test
+    public void testManyProducersManyConsumersWithTake() throws Exception {
+        final int numThreads = 4;
+        final int itemsPerProducer = 25;
+        final int numItems = numThreads * itemsPerProducer;
+        ExecutorService executor = Executors.newFixedThreadPool(2 * numThreads);
+        List<Future<List<String>>> consumers = new ArrayList<Future<List<String>>>();
+        for (int c = 0; c < numThreads; c++) {
+            consumers.add(executor.submit(new Callable<List<String>>() {
+                public List<String> call() throws InterruptedException {
+                    List<String> taken = new ArrayList<String>();
+                    for (int i = 0; i < itemsPerProducer; i++) {
+                        taken.add(blockingQueue.take());
+                    }
+                    return taken;
+                }
+            }));
+        }
+        for (int p = 0; p < numThreads; p++) {
+            final int first = p * itemsPerProducer;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = first; i < first + itemsPerProducer; i++) {
+                            blockingQueue.put(item(i));
+                        }
+                    } catch (InterruptedException e) {
+                        log.debug("Producer interrupted", e);
+                    }
+                }
+            });
+        }
+
+        List<String> consumedItems = new ArrayList<String>();
+        for (Future<List<String>> consumer : consumers) {
+            consumedItems.addAll(consumer.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertEquals(0, blockingQueue.size());
+        Collections.sort(consumedItems);
+        assertEquals(Arrays.asList(items(0, numItems - 1)), consumedItems);
+    }
+
     @Test
     public void testDrainTo() {
         final int numItems = 20;
@@ -114,8 +165,176 @@ public class PersistentBlockingQueueTest extends PersistentQueueTest {
         }
     }
 
+    @Test
+    public void testBoundedCapacity() throws InterruptedException {
+        File boundedDir = new File(getDataDir(), "bounded");
+        boundedDir.mkdir();
+        final PersistentBlockingQueue<String> bounded = new PersistentBlockingQueue<String>(boundedDir, 2);
+        try {
+            assertEquals(2, bounded.remainingCapacity());
+            assertTrue(bounded.offer(item(0)));
+            bounded.put(item(1));
+            assertEquals(0, bounded.remainingCapacity());
+            assertFalse(bounded.offer(item(2)));
+            assertFalse(bounded.offer(item(2), 50, TimeUnit.MILLISECONDS));
+            try {
+                bounded.addAll(Arrays.asList(item(2)));
+                fail();
+            } catch (IllegalStateException e) {
+                // Expected.
+            }
+
+            // A blocked producer proceeds as soon as a consumer makes room.
+            Thread consumer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                        bounded.poll();
+                    } catch (InterruptedException e) {
+                        log.debug("Consumer interrupted", e);
+                    }
+                }
+            };
+            consumer.start();
+            assertTrue(bounded.offer(item(2), 5, TimeUnit.SECONDS));
+            consumer.join();
+            assertEquals(Arrays.asList(item(1), item(2)), bounded.pollBatch(2));
+        } finally {
+            bounded.dispose();
+            DeleteDbFiles.execute(boundedDir.getAbsolutePath(), null, true);
+            boundedDir.delete();
+        }
+    }
+
+    @Test
+    public void testTimedPollBatch() throws InterruptedException {
+        long before = System.currentTimeMillis();
+        assertTrue(blockingQueue.pollBatch(10, 100, TimeUnit.MILLISECONDS).isEmpty());
+        assertTrue(System.currentTimeMillis() - before >= 100);
+        blockingQueue.addAll(Arrays.asList(items(0, 4)));
+        assertEquals(Arrays.asList(items(0, 2)), blockingQueue.pollBatch(3, 1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(items(3, 4)), blockingQueue.pollBatch(10, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimedLease() throws InterruptedException {
+        assertNull(blockingQueue.lease(1, 1, 50, TimeUnit.MILLISECONDS));
+        blockingQueue.add(item(0));
+        Lease<String> lease = blockingQueue.lease(1, 100, 1000, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(item(0)), lease.getObjects());
+        // A waiting consumer wakes when the lease expires.
+        long before = System.currentTimeMillis();
+        assertEquals(item(0), blockingQueue.poll(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - before < 5000);
+        assertFalse(blockingQueue.ack(lease));
+    }
+
+    @Test
+    public void testLeasesCountAgainstCapacity() throws InterruptedException {
+        File boundedDir = new File(getDataDir(), "leased");
+        boundedDir.mkdir();
+        final PersistentBlockingQueue<String> bounded = new PersistentBlockingQueue<String>(boundedDir, 2);
+        try {
+            assertTrue(bounded.offer(item(0)));
+            assertTrue(bounded.offer(item(1)));
+            Lease<String> lease = bounded.lease(1, TimeUnit.MINUTES);
+            assertEquals(1, bounded.size());
+            assertEquals(0, bounded.remainingCapacity());
+            assertFalse(bounded.offer(item(2)));
+            assertTrue(bounded.ack(lease));
+            assertTrue(bounded.offer(item(2), 1, TimeUnit.SECONDS));
+        } finally {
+            bounded.dispose();
+            DeleteDbFiles.execute(boundedDir.getAbsolutePath(), null, true);
+            boundedDir.delete();
+        }
+    }
+
+    @Test
+    public void testConsumerPoolRedeliversFailedBatch() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        PersistentBlockingQueueConsumerPool<String> pool = new PersistentBlockingQueueConsumerPool<String>(
+                blockingQueue, 1, 10, 0, TimeUnit.MILLISECONDS) {
+            @Override
+            protected void objectsTaken(List<String> objects) {
+                assertEquals(Arrays.asList(item(0)), objects);
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Failing the first delivery.");
+                }
+                done.countDown();
+            }
+        };
+        pool.start();
+        try {
+            assertTrue(blockingQueue.offer(item(0)));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.dispose();
+        }
+        assertEquals(2, attempts.get());
+        assertTrue(blockingQueue.isEmpty());
+    }
+
+    @Test
+    public void testConsumerPool() throws InterruptedException {
+        final int numItems = 200;
+        final int maxBatchSize = 10;
+        final Set<String> taken = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(numItems);
+        PersistentBlockingQueueConsumerPool<String> pool = new PersistentBlockingQueueConsumerPool<String>(
+                blockingQueue, 4, maxBatchSize, 20, TimeUnit.MILLISECONDS) {
+            @Override
+            protected void objectsTaken(List<String> objects) {
+                batchSizes.add(objects.size());
+                for (String object : objects) {
+                    assertTrue(taken.add(object));
+                    done.countDown();
+                }
+            }
+        };
+        pool.start();
+        try {
+            for (int i = 0; i < numItems; i++) {
+                assertTrue(blockingQueue.offer(item(i)));
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.dispose();
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(items(0, numItems - 1))), taken);
+        for (int size : batchSizes) {
+            assertTrue(size >= 1 && size <= maxBatchSize);
+        }
+        assertTrue(blockingQueue.isEmpty());
+    }
+
     @Test
     public void testCompact() throws InterruptedException {
+        // A queue of its own, so that it can be reopened.
+        File dataDir = new File(getDataDir().getPath() + "-compact");
+        dataDir.mkdir();
+        PersistentBlockingQueue<String> queue = createBlockingQueue(dataDir);
+        try {
+            assertTrue(queue.addAll(Arrays.asList(items(0, 99))));
+            for (int i = 0; i < 50; i++) {
+                assertEquals(item(i), queue.poll(1, TimeUnit.SECONDS));
+            }
+            queue.compact();
+            assertEquals(50, queue.size());
+            assertEquals(item(50), queue.peek());
+            queue.dispose();
 
+            queue = createBlockingQueue(dataDir);
+            assertEquals(50, queue.size());
+            assertEquals(Arrays.asList(items(50, 99)), new ArrayList<String>(queue));
+            assertEquals(item(50), queue.poll(1, TimeUnit.SECONDS));
+        } finally {
+            queue.dispose();
+            DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+            assertTrue(dataDir.delete());
+        }
     }
 }
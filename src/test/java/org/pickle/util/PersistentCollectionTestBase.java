@@ -22,6 +22,10 @@ public abstract class PersistentCollectionTestBase {
 
     protected abstract Collection<String> createPersistentCollection(File dataDir);
 
+    protected File getDataDir() {
+        return dataDir;
+    }
+
     protected static String item(int i) {
         return String.format("item-%04d", i);
     }
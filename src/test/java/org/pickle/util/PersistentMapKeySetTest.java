@@ -5,28 +5,92 @@ package org.pickle.util;
 
 import java.io.File;
 import java.util.*;
+import java.util.stream.Collectors;
 import org.junit.*;
 import static org.junit.Assert.*;
+import org.pickle.Disposable;
 
-public class PersistentMapKeySetTest /* extends PersistentCollectionTestBase */ {
+public class PersistentMapKeySetTest extends PersistentCollectionTestBase {
   
   private PersistentMap<String, String> map;
   
+  /**
+   * The map's keySet(), which cannot be added to directly, with add()
+   * mapping each key to itself and dispose() disposing the map.
+   */
+  private class KeySet extends AbstractSet<String> implements Disposable {
+    @Override
+    public boolean add(String key) {
+      return map.put(key, key) == null;
+    }
+    
+    @Override
+    public boolean remove(Object o) {
+      return map.keySet().remove(o);
+    }
+    
+    @Override
+    public boolean removeAll(Collection<?> c) {
+      return map.keySet().removeAll(c);
+    }
+    
+    @Override
+    public boolean contains(Object o) {
+      return map.keySet().contains(o);
+    }
+    
+    @Override
+    public void clear() {
+      map.keySet().clear();
+    }
+    
+    @Override
+    public Iterator<String> iterator() {
+      return map.keySet().iterator();
+    }
+    
+    @Override
+    public int size() {
+      return map.keySet().size();
+    }
+    
+    public void dispose() {
+      map.dispose();
+    }
+  }
+  
   protected Collection<String> createPersistentCollection(File dataDir) {
     map = new PersistentMap<String, String>(dataDir);
-    return map.keySet();
-  }
-
-//  @Override
-  public void tearDown() {
-    map.dispose();
-//    super.tearDown();
+    return new KeySet();
   }
 
   @Test
-  @Ignore("PersistentMap needs to be implemented")
   public void testEmptyMap() {
     assertEquals(0, map.size());
+    assertTrue(map.keySet().isEmpty());
+  }
+  
+  @Test
+  public void testRetainAll() {
+    for (String item : items(0, 5)) {
+      map.put(item, item);
+    }
+    assertTrue(map.keySet().retainAll(Arrays.asList(item(1), item(3), item(99))));
+    assertEquals(2, map.size());
+    assertEquals(Arrays.asList(item(1), item(3)), new ArrayList<String>(map.keySet()));
+    assertFalse(map.keySet().retainAll(Arrays.asList(item(1), item(3))));
+    assertTrue(map.keySet().retainAll(Collections.emptyList()));
+    assertTrue(map.isEmpty());
+  }
+  
+  @Test
+  public void testPagedIteration() {
+    map.setIteratorPageSize(3);
+    for (String item : items(0, 9)) {
+      map.put(item, item);
+    }
+    assertEquals(Arrays.asList(items(0, 9)), new ArrayList<String>(map.keySet()));
+    List<String> keys = map.keySet().parallelStream().sorted().collect(Collectors.<String>toList());
+    assertEquals(Arrays.asList(items(0, 9)), keys);
   }
 }
-
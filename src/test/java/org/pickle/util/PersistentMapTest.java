@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.io.Serializable;
+import java.sql.*;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.h2.tools.DeleteDbFiles;
+import org.junit.*;
+import org.pickle.sql.ConnectionManager;
+import org.pickle.sql.JdbcTemplate;
+import static org.junit.Assert.*;
+
+public class PersistentMapTest {
+  
+  private final File dataDir
+      = new File(String.format("%s/%s", System.getProperty("java.io.tmpdir"), getClass().getName()));
+  
+  private PersistentMap<Serializable, String> map;
+  
+  protected PersistentMap<Serializable, String> openMap(File dataDir) {
+    return new PersistentMap<Serializable, String>(dataDir);
+  }
+  
+  @Before
+  public void setUp() {
+    dataDir.mkdir();
+    map = openMap(dataDir);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+    DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+    assertTrue(dataDir.delete());
+  }
+  
+  /**
+   * A key whose hash code is shared by every instance.
+   */
+  static class CollidingKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    
+    CollidingKey(String name) {
+      this.name = name;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof CollidingKey && ((CollidingKey) o).name.equals(name);
+    }
+    
+    @Override
+    public int hashCode() {
+      return 42;
+    }
+  }
+  
+  @Test
+  public void testPutReturnsPreviousValue() {
+    assertNull(map.put("a", "1"));
+    assertEquals("1", map.put("a", "2"));
+    assertEquals("2", map.get("a"));
+    assertEquals(1, map.size());
+    assertNull(map.get("b"));
+    assertFalse(map.containsKey("b"));
+    assertTrue(map.containsKey("a"));
+  }
+  
+  @Test
+  public void testHashCollisions() {
+    CollidingKey x = new CollidingKey("x");
+    CollidingKey y = new CollidingKey("y");
+    assertNull(map.put(x, "x1"));
+    assertFalse(map.containsKey(y));
+    assertNull(map.get(y));
+    assertNull(map.put(y, "y1"));
+    assertEquals("x1", map.put(new CollidingKey("x"), "x2"));
+    assertEquals("x2", map.get(x));
+    assertEquals("y1", map.get(y));
+    assertEquals(2, map.size());
+  }
+  
+  @Test
+  public void testSizeIsPersisted() {
+    for (int i = 0; i < 10; i++) {
+      map.put(i, "value-" + i);
+    }
+    map.put(3, "changed");
+    map.dispose();
+    map = openMap(dataDir);
+    assertEquals(10, map.size());
+    assertEquals("changed", map.get(3));
+  }
+  
+  @Test
+  public void testRolledBackPutIsUndone() {
+    map.put("kept", "1");
+    assertFalse(map.inTransaction(new Runnable() {
+      public void run() {
+        map.put("kept", "2");
+        map.put("dropped", "3");
+        throw new IllegalStateException("Rolling back.");
+      }
+    }));
+    assertEquals(1, map.size());
+    assertEquals("1", map.get("kept"));
+    assertFalse(map.containsKey("dropped"));
+  }
+  
+  @Test
+  public void testRemoveAndClear() {
+    map.put("a", "1");
+    map.put(new CollidingKey("x"), "x1");
+    map.put(new CollidingKey("y"), "y1");
+    assertEquals("1", map.remove("a"));
+    assertNull(map.remove("a"));
+    assertNull(map.remove(new CollidingKey("z")));
+    assertEquals("y1", map.remove(new CollidingKey("y")));
+    assertEquals("x1", map.get(new CollidingKey("x")));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(new CollidingKey("x")));
+    map.dispose();
+    map = openMap(dataDir);
+    assertEquals(0, map.size());
+  }
+  
+  @Test
+  public void testEntryIteratorWritesThrough() {
+    map.setIteratorPageSize(2);
+    for (int i = 0; i < 7; i++) {
+      map.put(i, "value-" + i);
+    }
+    int count = 0;
+    for (Iterator<Map.Entry<Serializable, String>> it = map.entrySet().iterator(); it.hasNext(); count++) {
+      Map.Entry<Serializable, String> entry = it.next();
+      assertEquals(count, entry.getKey());
+      if (count % 2 == 0) {
+        it.remove();
+      } else {
+        assertEquals("value-" + count, entry.setValue("odd-" + count));
+        assertEquals("odd-" + count, entry.getValue());
+      }
+    }
+    assertEquals(7, count);
+    assertEquals(3, map.size());
+    assertEquals("odd-3", map.get(3));
+    assertFalse(map.containsKey(4));
+    assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<Serializable, String>(5, "odd-5")));
+    assertFalse(map.entrySet().contains(new AbstractMap.SimpleEntry<Serializable, String>(5, "value-5")));
+    assertFalse(map.entrySet().remove(new AbstractMap.SimpleEntry<Serializable, String>(5, "value-5")));
+    assertTrue(map.entrySet().remove(new AbstractMap.SimpleEntry<Serializable, String>(5, "odd-5")));
+    assertEquals(Arrays.asList("odd-1", "odd-3"), new ArrayList<String>(map.values()));
+  }
+  
+  @Test
+  public void testKeySetRemoveAll() {
+    map.put("a", "1");
+    map.put("b", "2");
+    map.put(new CollidingKey("x"), "x1");
+    map.put(new CollidingKey("y"), "y1");
+    assertTrue(map.keySet().removeAll(Arrays.asList("a", new CollidingKey("y"), "missing", 17)));
+    assertEquals(2, map.size());
+    assertTrue(map.containsKey("b"));
+    assertTrue(map.containsKey(new CollidingKey("x")));
+    assertFalse(map.keySet().removeAll(Arrays.asList("a", new CollidingKey("y"))));
+    assertEquals(2, map.size());
+  }
+  
+  /**
+   * Returns the number of statements the map has run.
+   */
+  private long statements() {
+    return map.getStatementCacheHits() + map.getStatementCacheMisses();
+  }
+  
+  @Test
+  public void testIndexAnswersContainsKeyWithoutQuery() {
+    assertTrue(map.setKeyIndexLimit(1 << 20));
+    map.put("a", "1");
+    long statements = statements();
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertFalse(map.containsKey(new CollidingKey("a")));
+    assertEquals(statements, statements());
+  }
+  
+  @Test
+  public void testIndexFollowsWrites() {
+    assertTrue(map.setKeyIndexLimit(1 << 20));
+    map.put("a", "1");
+    map.put("b", "2");
+    map.put("c", "3");
+    map.remove("a");
+    map.keySet().retainAll(Arrays.asList("b", "d"));
+    long statements = statements();
+    assertFalse(map.containsKey("a"));
+    assertTrue(map.containsKey("b"));
+    assertFalse(map.containsKey("c"));
+    assertEquals(statements, statements());
+    
+    map.clear();
+    map.put("d", "4");
+    statements = statements();
+    assertFalse(map.containsKey("b"));
+    assertTrue(map.containsKey("d"));
+    assertEquals(statements, statements());
+    assertTrue(map.getKeyIndexMemoryUsage() > 0);
+  }
+  
+  @Test
+  public void testIndexIsRebuiltAfterRollback() {
+    assertTrue(map.setKeyIndexLimit(1 << 20));
+    map.put("a", "1");
+    assertFalse(map.inTransaction(new Runnable() {
+      public void run() {
+        map.put("b", "2");
+        map.remove("a");
+        assertTrue(map.containsKey("b"));
+        throw new IllegalStateException("Rolling back.");
+      }
+    }));
+    long statements = statements();
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertEquals(statements, statements());
+  }
+  
+  @Test
+  public void testIndexIsDroppedBeyondLimit() {
+    File dataDir = new File(String.format("%s/%s-limit", System.getProperty("java.io.tmpdir"), getClass().getName()));
+    dataDir.mkdir();
+    PersistentMap<Integer, String> map = new PersistentMap<Integer, String>(dataDir);
+    try {
+      assertTrue(map.setKeyIndexLimit(1024));
+      assertTrue(map.getKeyIndexMemoryUsage() > 0);
+      for (int i = 0; i < 100; i++) {
+        map.put(i, "value-" + i);
+      }
+      assertEquals(0, map.getKeyIndexMemoryUsage());
+      for (int i = 0; i < 100; i++) {
+        assertEquals("value-" + i, map.get(i));
+      }
+      assertFalse(map.setKeyIndexLimit(1024));
+      assertTrue(map.setKeyIndexLimit(1 << 20));
+      assertTrue(map.containsKey(99));
+      assertFalse(map.containsKey(100));
+    } finally {
+      map.dispose();
+      DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+      dataDir.delete();
+    }
+  }
+  
+  @Test
+  public void testNearCache() {
+    map.setNearCacheLimits(2, Long.MAX_VALUE);
+    map.put("a", "1");
+    map.put("b", "2");
+    assertEquals("1", map.get("a"));
+    assertEquals("1", map.get("a"));
+    assertEquals(1, map.getNearCacheHits());
+    assertEquals(1, map.getNearCacheMisses());
+    
+    // Writes invalidate the key.
+    map.put("a", "changed");
+    assertEquals("changed", map.get("a"));
+    map.remove("a");
+    assertNull(map.get("a"));
+    assertFalse(map.containsKey("a"));
+    
+    // A rolled back transaction leaves nothing stale behind.
+    assertEquals("2", map.get("b"));
+    map.inTransaction(new Runnable() {
+      public void run() {
+        map.put("b", "uncommitted");
+        assertEquals("uncommitted", map.get("b"));
+        throw new IllegalStateException("Rolling back.");
+      }
+    });
+    assertEquals("2", map.get("b"));
+    assertEquals("2", map.get("b"));
+    
+    // The least recently used value is evicted beyond the limit.
+    long evictions = map.getNearCacheEvictions();
+    map.put("c", "3");
+    map.put("d", "4");
+    map.get("c");
+    map.get("d");
+    assertEquals(evictions + 1, map.getNearCacheEvictions());
+    long misses = map.getNearCacheMisses();
+    map.get("b");
+    assertEquals(misses + 1, map.getNearCacheMisses());
+  }
+  
+  @Test
+  public void testNearCacheByteLimit() {
+    map.setNearCacheLimits(100, 1);
+    map.put("a", "1");
+    map.get("a");
+    map.get("a");
+    assertEquals(0, map.getNearCacheHits());
+    assertEquals("1", map.get("a"));
+  }
+  
+  /**
+   * A key whose hash code differs in every run, as Object.hashCode() does.
+   */
+  static class IdentityHashedKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    
+    IdentityHashedKey(String name) {
+      this.name = name;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof IdentityHashedKey && ((IdentityHashedKey) o).name.equals(name);
+    }
+    
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this);
+    }
+  }
+  
+  @Test
+  public void testKeysWithUnstableHashCodes() {
+    map.put(new IdentityHashedKey("a"), "1");
+    assertEquals("1", map.put(new IdentityHashedKey("a"), "2"));
+    map.dispose();
+    map = openMap(dataDir);
+    assertEquals("2", map.get(new IdentityHashedKey("a")));
+    assertEquals("2", map.remove(new IdentityHashedKey("a")));
+    assertTrue(map.isEmpty());
+  }
+  
+  @Test
+  public void testNearCacheIgnoresKeyHashCodes() {
+    map.setNearCacheLimits(10, Long.MAX_VALUE);
+    IdentityHashedKey cached = new IdentityHashedKey("a");
+    map.put(cached, "1");
+    assertEquals("1", map.get(cached));
+    // A key that serializes the same shares the cached value.
+    assertEquals("1", map.get(new IdentityHashedKey("a")));
+    assertEquals(1, map.getNearCacheHits());
+    // And a write through it invalidates that value.
+    map.put(new IdentityHashedKey("a"), "2");
+    assertEquals("2", map.get(cached));
+    map.remove(new IdentityHashedKey("a"));
+    assertNull(map.get(cached));
+  }
+  
+  @Test
+  public void testLegacyHashCodeTableIsUpgraded() throws Exception {
+    map.dispose();
+    DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+    ConnectionManager cm = new ConnectionManager(dataDir,
+        "CREATE TABLE MAP (ID IDENTITY PRIMARY KEY, KEY_HASHCODE INT NOT NULL, \"KEY\" OTHER NOT NULL, "
+        + "\"VALUE\" OTHER NOT NULL)");
+    // The key "b" was stored twice, as happens when its hash code changes between runs.
+    for (final String[] row : new String[][] {{"a", "1"}, {"b", "stale"}, {"b", "2"}}) {
+      JdbcTemplate.executeUpdate(cm.getConnection(),
+          "INSERT INTO MAP (KEY_HASHCODE, \"KEY\", \"VALUE\") VALUES (?, ?, ?)", new JdbcTemplate() {
+            public void statement(PreparedStatement ps) throws SQLException {
+              ps.setInt(1, row[0].hashCode());
+              ps.setObject(2, row[0], Types.JAVA_OBJECT);
+              ps.setObject(3, row[1], Types.JAVA_OBJECT);
+            }
+          });
+    }
+    cm.dispose();
+    map = openMap(dataDir);
+    assertEquals(2, map.size());
+    assertEquals("1", map.get("a"));
+    assertEquals("2", map.get("b"));
+    assertNull(map.put("c", "3"));
+    map.dispose();
+    map = openMap(dataDir);
+    assertEquals(3, map.size());
+    assertEquals("3", map.get("c"));
+  }
+  
+  @Test
+  public void testBatchOperations() {
+    map.setBatchSize(3);
+    map.put("k0", "old");
+    Map<Serializable, String> entries = new LinkedHashMap<Serializable, String>();
+    for (int i = 0; i < 10; i++) {
+      entries.put("k" + i, "v" + i);
+    }
+    map.putAll(entries);
+    assertEquals(10, map.size());
+    assertEquals("v0", map.get("k0"));
+    assertEquals("v9", map.get("k9"));
+    
+    Map<Serializable, String> found = map.getAll(Arrays.<Serializable>asList("k7", "missing", "k2", 17, "k7"));
+    assertEquals(Arrays.<Serializable>asList("k7", "k2"), new ArrayList<Serializable>(found.keySet()));
+    assertEquals("v7", found.get("k7"));
+    assertEquals("v2", found.get("k2"));
+    
+    assertEquals(5, map.removeAll(Arrays.asList("k1", "k3", "k5", "k7", "k9", "missing")));
+    assertEquals(5, map.size());
+    assertFalse(map.containsKey("k3"));
+    assertTrue(map.containsKey("k4"));
+    assertEquals(0, map.removeAll(Arrays.asList("k1", "k3")));
+    
+    map.dispose();
+    map = openMap(dataDir);
+    assertEquals(5, map.size());
+    assertEquals(5, map.getAll(entries.keySet()).size());
+  }
+  
+  @Test
+  public void testGetAllUsesNearCache() {
+    map.setNearCacheLimits(10, Long.MAX_VALUE);
+    map.put("a", "1");
+    map.put("b", "2");
+    assertEquals("1", map.get("a"));
+    long hits = map.getNearCacheHits();
+    Map<Serializable, String> found = map.getAll(Arrays.<Serializable>asList("a", "b"));
+    assertEquals(2, found.size());
+    assertEquals(hits + 1, map.getNearCacheHits());
+    assertEquals("2", map.get("b"));
+    assertEquals(hits + 2, map.getNearCacheHits());
+  }
+  
+  @Test
+  public void testConditionalUpdates() {
+    assertNull(map.putIfAbsent("a", "1"));
+    assertEquals("1", map.putIfAbsent("a", "2"));
+    assertNull(map.replace("b", "1"));
+    assertFalse(map.containsKey("b"));
+    assertEquals("1", map.replace("a", "3"));
+    assertFalse(map.replace("a", "1", "4"));
+    assertTrue(map.replace("a", "3", "4"));
+    assertFalse(map.remove("a", "3"));
+    assertFalse(map.remove(17, "4"));
+    assertTrue(map.remove("a", "4"));
+    assertTrue(map.isEmpty());
+    
+    map.put("c", "1");
+    map.put("d", "1");
+    assertFalse(map.entrySet().remove(new AbstractMap.SimpleEntry<Serializable, String>("c", "2")));
+    assertTrue(map.entrySet().remove(new AbstractMap.SimpleEntry<Serializable, String>("c", "1")));
+    assertTrue(map.keySet().remove("d"));
+    assertFalse(map.keySet().remove("d"));
+    assertEquals(0, map.size());
+  }
+  
+  @Test
+  public void testComputeAndMerge() {
+    Function<Serializable, String> name = new Function<Serializable, String>() {
+      public String apply(Serializable key) {
+        return "name-" + key;
+      }
+    };
+    assertEquals("name-a", map.computeIfAbsent("a", name));
+    assertEquals("name-a", map.computeIfAbsent("a", new Function<Serializable, String>() {
+      public String apply(Serializable key) {
+        throw new AssertionError("The key is present.");
+      }
+    }));
+    BiFunction<Serializable, String, String> upper = new BiFunction<Serializable, String, String>() {
+      public String apply(Serializable key, String value) {
+        return value != null ? value.toUpperCase() : "none";
+      }
+    };
+    assertEquals("NAME-A", map.compute("a", upper));
+    assertEquals("none", map.compute("b", upper));
+    assertNull(map.computeIfPresent("c", upper));
+    assertFalse(map.containsKey("c"));
+    assertNull(map.computeIfPresent("b", new BiFunction<Serializable, String, String>() {
+      public String apply(Serializable key, String value) {
+        return null;
+      }
+    }));
+    assertFalse(map.containsKey("b"));
+    
+    BiFunction<String, String, String> concat = new BiFunction<String, String, String>() {
+      public String apply(String current, String value) {
+        return current + value;
+      }
+    };
+    assertEquals("x", map.merge("m", "x", concat));
+    assertEquals("xy", map.merge("m", "y", concat));
+    assertEquals(2, map.size());
+    
+    map.dispose();
+    map = openMap(dataDir);
+    assertEquals("xy", map.get("m"));
+    assertEquals("NAME-A", map.get("a"));
+  }
+  
+  @Test
+  public void testConcurrentMerges() throws Exception {
+    final int threads = 4;
+    final int increments = 50;
+    final BiFunction<String, String, String> sum = new BiFunction<String, String, String>() {
+      public String apply(String current, String value) {
+        return String.valueOf(Integer.parseInt(current) + Integer.parseInt(value));
+      }
+    };
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < increments; i++) {
+              map.merge("counter-" + (i % 3), "1", sum);
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      };
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(Collections.emptyList(), failures);
+    int total = 0;
+    for (int i = 0; i < 3; i++) {
+      total += Integer.parseInt(map.get("counter-" + i));
+    }
+    assertEquals(threads * increments, total);
+    assertEquals(3, map.size());
+  }
+}
@@ -4,19 +4,36 @@
 package org.pickle.util;
 
 import java.io.File;
+import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import org.h2.tools.DeleteDbFiles;
 import org.junit.*;
 import static org.junit.Assert.*;
+import org.pickle.sql.ConnectionManager;
+import org.pickle.sql.JdbcTemplate;
   
 public class PersistentQueueTest extends PersistentCollectionTestBase {
   
   protected Queue<String> queue;
   
   protected Collection<String> createPersistentCollection(File dataDir) {
-    queue = new PersistentQueue<String>(dataDir);
+    queue = openQueue(dataDir);
     return queue;
   }
   
+  protected PersistentQueue<String> openQueue(File dataDir) {
+    return new PersistentQueue<String>(dataDir);
+  }
+  
+  /**
+   * Returns true if the queue's store rolls back failed transactions.
+   */
+  protected boolean isTransactional() {
+    return true;
+  }
+  
   @Test
   public void testEmptyQueue() {
     assertEquals(0, queue.size());
@@ -53,6 +70,291 @@ public class PersistentQueueTest extends PersistentCollectionTestBase {
     assertEquals(0, queue.size());
   }
   
+  @Test
+  public void testOfferAllInBatches() {
+    final int N = 25;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.setBatchSize(10);
+    assertTrue(persistentQueue.offerAll(Arrays.asList(items(0, N - 1))));
+    assertEquals(N, queue.size());
+    for (int i = 0; i < N; i++) {
+      assertEquals(item(i), queue.poll());
+    }
+    assertFalse(persistentQueue.offerAll(Collections.<String>emptyList()));
+    assertEquals(0, queue.size());
+  }
+  
+  @Test
+  public void testOfferAllRejectsNull() {
+    try {
+      queue.addAll(Arrays.asList(item(0), null));
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertTrue(queue.isEmpty());
+  }
+  
+  @Test
+  public void testPollBatch() {
+    final int N = 10;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    assertEquals(Arrays.asList(items(0, 3)), persistentQueue.pollBatch(4));
+    assertEquals(N - 4, queue.size());
+    assertEquals(item(4), queue.peek());
+    assertEquals(Arrays.asList(items(4, N - 1)), persistentQueue.pollBatch(N));
+    assertTrue(queue.isEmpty());
+    assertTrue(persistentQueue.pollBatch(N).isEmpty());
+  }
+  
+  @Test
+  public void testPrefetchWindow() {
+    final int N = 20;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.setPrefetchSize(4);
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    for (int i = 0; i < N / 2; i++) {
+      assertEquals(item(i), queue.poll());
+    }
+    // Offers and iterator removals while the window is populated must not disturb ordering.
+    assertTrue(queue.offer(item(N)));
+    assertTrue(queue.remove(item(N / 2 + 1)));
+    assertEquals(item(N / 2), queue.poll());
+    for (int i = N / 2 + 2; i <= N; i++) {
+      assertEquals(item(i), queue.poll());
+    }
+    assertNull(queue.poll());
+    assertTrue(queue.offer(item(0)));
+    assertEquals(item(0), queue.peek());
+  }
+  
+  @Test
+  public void testPrefetchByteLimit() {
+    final int N = 10;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.setPrefetchBytes(1);
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    assertEquals(item(0), queue.peek());
+    assertEquals(Arrays.asList(items(0, N - 1)), persistentQueue.pollBatch(N));
+    assertTrue(queue.isEmpty());
+  }
+  
+  @Test
+  public void testSizeIsPersisted() {
+    final int N = 10;
+    queue.addAll(Arrays.asList(items(0, N - 1)));
+    queue.poll();
+    Iterator<String> iterator = queue.iterator();
+    iterator.next();
+    iterator.remove();
+    ((PersistentQueue<String>) queue).flush();
+    PersistentQueue<String> reopened = openQueue(getDataDir());
+    try {
+      assertEquals(N - 2, reopened.size());
+    } finally {
+      reopened.dispose();
+    }
+  }
+  
+  @Test
+  public void testLeaseAndAck() {
+    final int N = 10;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    assertNull(persistentQueue.lease(1, TimeUnit.MINUTES));
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    Lease<String> lease = persistentQueue.lease(3, 1, TimeUnit.MINUTES);
+    assertEquals(Arrays.asList(items(0, 2)), lease.getObjects());
+    assertTrue(lease.getRemainingNanos() > 0);
+    assertEquals(N - 3, queue.size());
+    // Consumers pass over leased elements.
+    assertEquals(item(3), queue.poll());
+    assertTrue(persistentQueue.ack(lease));
+    assertFalse(persistentQueue.ack(lease));
+    assertFalse(persistentQueue.nack(lease));
+    assertEquals(Arrays.asList(items(4, N - 1)), persistentQueue.pollBatch(N));
+    assertTrue(queue.isEmpty());
+  }
+  
+  @Test
+  public void testNackRedeliversInOrder() {
+    final int N = 10;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    Lease<String> first = persistentQueue.lease(2, 1, TimeUnit.MINUTES);
+    Lease<String> second = persistentQueue.lease(2, 1, TimeUnit.MINUTES);
+    assertEquals(Arrays.asList(items(2, 3)), second.getObjects());
+    assertEquals(item(4), queue.poll());
+    assertTrue(persistentQueue.nack(second));
+    assertTrue(persistentQueue.nack(first));
+    assertFalse(persistentQueue.nack(first));
+    assertEquals(N - 1, queue.size());
+    List<String> expected = new ArrayList<String>(Arrays.asList(items(0, N - 1)));
+    expected.remove(item(4));
+    assertEquals(expected, persistentQueue.pollBatch(N));
+    assertTrue(queue.isEmpty());
+  }
+  
+  @Test
+  public void testExpiredLeaseIsRedelivered() throws InterruptedException {
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, 2)));
+    Lease<String> lease = persistentQueue.lease(2, 50, TimeUnit.MILLISECONDS);
+    assertEquals(item(2), queue.peek());
+    Thread.sleep(100);
+    assertTrue(lease.getRemainingNanos() < 0);
+    assertEquals(item(0), queue.peek());
+    assertEquals(3, queue.size());
+    assertFalse(persistentQueue.ack(lease));
+    assertEquals(Arrays.asList(items(0, 2)), persistentQueue.pollBatch(3));
+  }
+  
+  @Test
+  public void testRemoveLeasedElement() {
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, 2)));
+    Lease<String> lease = persistentQueue.lease(2, 1, TimeUnit.MINUTES);
+    assertTrue(queue.remove(item(1)));
+    assertTrue(persistentQueue.nack(lease));
+    assertEquals(Arrays.asList(item(0), item(2)), persistentQueue.pollBatch(3));
+  }
+  
+  @Test
+  public void testLeasedElementsAreRedeliveredAfterRestart() {
+    final int N = 10;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    persistentQueue.lease(N / 2, 1, TimeUnit.MINUTES);
+    persistentQueue.flush();
+    PersistentQueue<String> reopened = openQueue(getDataDir());
+    try {
+      assertEquals(N, reopened.size());
+      assertEquals(item(0), reopened.peek());
+    } finally {
+      reopened.dispose();
+    }
+  }
+  
+  @Test
+  public void testInTransaction() {
+    final PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, 1)));
+    assertTrue(persistentQueue.inTransaction(new Runnable() {
+      public void run() {
+        assertEquals(item(0), queue.poll());
+        assertTrue(queue.offer(item(2)));
+        assertTrue(queue.offer(item(3)));
+      }
+    }));
+    assertEquals(Arrays.asList(items(1, 3)), new ArrayList<String>(queue));
+    assertEquals(3, queue.size());
+  }
+  
+  @Test
+  public void testInTransactionRollsBack() {
+    Assume.assumeTrue(isTransactional());
+    final PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.addAll(Arrays.asList(items(0, 2)));
+    assertFalse(persistentQueue.inTransaction(new Runnable() {
+      public void run() {
+        assertEquals(Arrays.asList(items(0, 1)), persistentQueue.pollBatch(2));
+        assertTrue(queue.offer(item(3)));
+        throw new IllegalStateException("Rolling back.");
+      }
+    }));
+    assertEquals(3, queue.size());
+    assertEquals(Arrays.asList(items(0, 2)), persistentQueue.pollBatch(10));
+    persistentQueue.flush();
+    PersistentQueue<String> reopened = openQueue(getDataDir());
+    try {
+      assertEquals(0, reopened.size());
+    } finally {
+      reopened.dispose();
+    }
+  }
+  
+  @Test
+  public void testConcurrentIteration() throws Exception {
+    final int N = 100;
+    queue.addAll(Arrays.asList(items(0, N - 1)));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<String>>> snapshots = new ArrayList<Future<List<String>>>();
+      for (int i = 0; i < 8; i++) {
+        snapshots.add(executor.submit(new Callable<List<String>>() {
+          public List<String> call() {
+            return new ArrayList<String>(queue);
+          }
+        }));
+      }
+      for (Future<List<String>> snapshot : snapshots) {
+        assertEquals(Arrays.asList(items(0, N - 1)), snapshot.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // Reads started after a write see it.
+    assertTrue(queue.offer(item(N)));
+    assertEquals(N + 1, new ArrayList<String>(queue).size());
+  }
+  
+  @Test
+  public void testPagedIterator() {
+    final int N = 25;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.setIteratorPageSize(4);
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    Iterator<String> iterator = queue.iterator();
+    try {
+      iterator.remove();
+      fail("Expected an IllegalStateException.");
+    } catch (IllegalStateException e) {
+      // Nothing has been returned yet.
+    }
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < N; i++) {
+      assertTrue(iterator.hasNext());
+      assertTrue(iterator.hasNext());
+      String item = iterator.next();
+      assertEquals(item(i), item);
+      if (i % 3 == 0) {
+        iterator.remove();
+      } else {
+        expected.add(item);
+      }
+      if (i == N / 2) {
+        // Elements added during iteration are seen once the iterator reaches them.
+        assertTrue(queue.offer(item(N)));
+      }
+    }
+    assertEquals(item(N), iterator.next());
+    assertFalse(iterator.hasNext());
+    expected.add(item(N));
+    assertEquals(expected, new ArrayList<String>(queue));
+    assertEquals(expected.size(), queue.size());
+  }
+  
+  @Test
+  public void testParallelStream() {
+    final int N = 1000;
+    PersistentQueue<String> persistentQueue = (PersistentQueue<String>) queue;
+    persistentQueue.setIteratorPageSize(16);
+    assertEquals(0, persistentQueue.parallelStream().count());
+    persistentQueue.addAll(Arrays.asList(items(0, N - 1)));
+    assertEquals(Arrays.asList(items(0, 9)), persistentQueue.pollBatch(10));
+    List<String> expected = Arrays.asList(items(10, N - 1));
+    assertEquals(expected, persistentQueue.parallelStream().collect(Collectors.toList()));
+    Spliterator<String> spliterator = persistentQueue.spliterator();
+    assertTrue(spliterator.hasCharacteristics(Spliterator.ORDERED));
+    assertEquals(N - 10, spliterator.estimateSize());
+    Spliterator<String> prefix = spliterator.trySplit();
+    assertNotNull(prefix);
+    List<String> items = new ArrayList<String>();
+    prefix.forEachRemaining(items::add);
+    spliterator.forEachRemaining(items::add);
+    assertEquals(expected, items);
+  }
+  
   @Test
   public void testIteratorNoRemove() {
     final int N = 10;
@@ -70,4 +372,34 @@ public class PersistentQueueTest extends PersistentCollectionTestBase {
     }
     assertEquals(N, queue.size());
   }
-}
\ No newline at end of file
+  
+  @Test
+  public void testLegacyObjectColumnIsConverted() {
+    File legacyDir = new File(getDataDir(), "legacy");
+    legacyDir.mkdir();
+    try {
+      ConnectionManager cm = new ConnectionManager(legacyDir,
+          "CREATE TABLE QUEUE (ID IDENTITY PRIMARY KEY, OBJECT OTHER NOT NULL)");
+      for (final String item : items(0, 2)) {
+        JdbcTemplate.executeUpdate(cm.getConnection(), "INSERT INTO QUEUE (OBJECT) VALUES (?)", new JdbcTemplate() {
+          public void statement(PreparedStatement ps) throws SQLException {
+            ps.setObject(1, item, Types.JAVA_OBJECT);
+          }
+        });
+      }
+      cm.dispose();
+      PersistentQueue<String> legacy = new PersistentQueue<String>(legacyDir);
+      try {
+        assertEquals(3, legacy.size());
+        assertEquals(item(0), legacy.poll());
+        assertTrue(legacy.offer(item(3)));
+        assertEquals(Arrays.asList(items(1, 3)), legacy.pollBatch(3));
+      } finally {
+        legacy.dispose();
+      }
+    } finally {
+      DeleteDbFiles.execute(legacyDir.getAbsolutePath(), null, true);
+      legacyDir.delete();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import org.h2.tools.DeleteDbFiles;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.pickle.serial.CompressingSerializer;
+import org.pickle.serial.Serializer;
+import org.pickle.serial.Serializers;
+
+/**
+ * Checks the bytes a PersistentQueue stores for its elements with the
+ * serializer it is given.
+ */
+public class SerializedQueueTest {
+
+    private final File dataDir
+            = new File(String.format("%s/%s", System.getProperty("java.io.tmpdir"), getClass().getName()));
+
+    private PersistentQueue<String> queue;
+
+    @Before
+    public void setUp() {
+        dataDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.dispose();
+        }
+        DeleteDbFiles.execute(dataDir.getAbsolutePath(), null, true);
+        assertTrue(dataDir.delete());
+    }
+
+    private <E extends Serializable> PersistentQueue<E> reopen(PersistentQueue<?> previous, Serializer<E> serializer) {
+        if (previous != null) {
+            previous.dispose();
+        }
+        return new PersistentQueue<E>(dataDir, serializer);
+    }
+
+    /**
+     * Returns the stored bytes of the elements, oldest first.
+     */
+    private List<byte[]> storedBytes() throws SQLException {
+        List<byte[]> stored = new ArrayList<byte[]>();
+        try (Connection connection = DriverManager.getConnection(
+                String.format("jdbc:h2:%s/pickle", dataDir.getAbsolutePath()), "sa", "");
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT OBJECT FROM QUEUE ORDER BY ID")) {
+            while (rs.next()) {
+                stored.add(rs.getBytes(1));
+            }
+        }
+        return stored;
+    }
+
+    @Test
+    public void testElementsAreStoredInTheSerializersForm() throws SQLException {
+        queue = reopen(null, Serializers.STRING);
+        assertTrue(queue.offer("h\u00e9llo"));
+        assertTrue(queue.offer(""));
+        List<byte[]> stored = storedBytes();
+        assertEquals(2, stored.size());
+        assertArrayEquals("h\u00e9llo".getBytes(StandardCharsets.UTF_8), stored.get(0));
+        assertEquals(0, stored.get(1).length);
+
+        queue = reopen(queue, Serializers.STRING);
+        assertEquals(Arrays.asList("h\u00e9llo", ""), queue.pollBatch(10));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testElementsFromTheThresholdAreStoredCompressed() throws SQLException {
+        Serializer<String> serializer = new CompressingSerializer<String>(Serializers.STRING, 100);
+        String small = repeat("a", 99);
+        String large = repeat("{\"name\":\"value\"}", 100);
+        queue = reopen(null, serializer);
+        assertTrue(queue.offerAll(Arrays.asList(small, large)));
+        List<byte[]> stored = storedBytes();
+        // One header byte marks the small element as stored raw.
+        assertEquals(0, stored.get(0)[0]);
+        assertEquals(small.length() + 1, stored.get(0).length);
+        assertEquals(1, stored.get(1)[0]);
+        assertTrue(stored.get(1).length < large.length() / 10);
+
+        queue = reopen(queue, serializer);
+        assertEquals(Arrays.asList(small, large), queue.pollBatch(10));
+    }
+
+    @Test
+    public void testDictionaryIsNeededToReadBack() throws SQLException {
+        String sample = "{\"customer\":\"ACME Corporation\",\"status\":\"SHIPPED\"}";
+        Serializer<String> serializer = new CompressingSerializer<String>(Serializers.STRING, 0, 9,
+                Serializers.STRING.serialize(sample));
+        queue = reopen(null, serializer);
+        assertTrue(queue.offer(sample.replace("SHIPPED", "PENDING")));
+        assertEquals(2, storedBytes().get(0)[0]);
+
+        queue = reopen(queue, serializer);
+        assertEquals(sample.replace("SHIPPED", "PENDING"), queue.peek());
+    }
+
+    @Test
+    public void testRowsWithoutHeaderAreReadAfterEnablingCompression() {
+        Serializer<String> java = Serializers.java();
+        queue = reopen(null, java);
+        assertTrue(queue.offer("legacy"));
+
+        queue = reopen(queue, new CompressingSerializer<String>(java, 0));
+        assertTrue(queue.offer(repeat("compressed", 50)));
+        assertEquals(Arrays.asList("legacy", repeat("compressed", 50)), queue.pollBatch(10));
+    }
+}
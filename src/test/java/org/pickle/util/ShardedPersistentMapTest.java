@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.BiFunction;
+import org.h2.tools.DeleteDbFiles;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ShardedPersistentMapTest {
+  
+  private static final int SHARDS = 4;
+  
+  private final File dataDir
+      = new File(String.format("%s/%s", System.getProperty("java.io.tmpdir"), getClass().getName()));
+  
+  private ShardedPersistentMap<Serializable, String> map;
+  
+  @Before
+  public void setUp() {
+    dataDir.mkdir();
+    map = new ShardedPersistentMap<Serializable, String>(dataDir, SHARDS);
+  }
+  
+  @After
+  public void tearDown() {
+    map.dispose();
+    for (File shardDir : dataDir.listFiles()) {
+      DeleteDbFiles.execute(shardDir.getAbsolutePath(), null, true);
+      assertTrue(shardDir.delete());
+    }
+    assertTrue(dataDir.delete());
+  }
+  
+  @Test
+  public void testKeysAreSpreadOverShards() {
+    for (int i = 0; i < 100; i++) {
+      assertNull(map.put("k" + i, "v" + i));
+    }
+    assertEquals(100, map.size());
+    for (PersistentMap<Serializable, String> shard : map.getShards()) {
+      assertTrue(shard.size() > 0);
+    }
+    assertEquals("v42", map.get("k42"));
+    assertEquals("v42", map.put("k42", "w42"));
+    assertEquals("w42", map.get("k42"));
+    assertNull(map.get(42));
+    assertFalse(map.containsKey("missing"));
+    
+    Set<Serializable> keys = new HashSet<Serializable>();
+    for (Map.Entry<Serializable, String> entry : map.entrySet()) {
+      keys.add(entry.getKey());
+    }
+    assertEquals(100, keys.size());
+    
+    Iterator<Serializable> it = map.keySet().iterator();
+    while (it.hasNext()) {
+      if (((String) it.next()).endsWith("7")) {
+        it.remove();
+      }
+    }
+    assertEquals(90, map.size());
+    assertFalse(map.containsKey("k17"));
+    assertTrue(map.keySet().remove("k18"));
+    assertTrue(map.entrySet().remove(new AbstractMap.SimpleEntry<Serializable, String>("k19", "v19")));
+    assertEquals(88, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+  
+  @Test
+  public void testBatchOperations() {
+    Map<Serializable, String> entries = new LinkedHashMap<Serializable, String>();
+    for (int i = 0; i < 20; i++) {
+      entries.put("k" + i, "v" + i);
+    }
+    map.putAll(entries);
+    assertEquals(20, map.size());
+    
+    Map<Serializable, String> found = map.getAll(Arrays.<Serializable>asList("k7", "missing", "k2", "k13"));
+    assertEquals(Arrays.<Serializable>asList("k7", "k2", "k13"), new ArrayList<Serializable>(found.keySet()));
+    assertEquals("v13", found.get("k13"));
+    
+    assertEquals(3, map.removeAll(Arrays.asList("k1", "k2", "k3", "missing", 17)));
+    assertEquals(17, map.size());
+  }
+  
+  @Test
+  public void testAtomicOperations() {
+    BiFunction<String, String, String> concat = new BiFunction<String, String, String>() {
+      public String apply(String current, String value) {
+        return current + value;
+      }
+    };
+    assertNull(map.putIfAbsent("a", "1"));
+    assertEquals("1", map.putIfAbsent("a", "2"));
+    assertTrue(map.replace("a", "1", "3"));
+    assertEquals("3x", map.merge("a", "x", concat));
+    assertFalse(map.remove("a", "3"));
+    assertTrue(map.remove("a", "3x"));
+    assertTrue(map.isEmpty());
+  }
+  
+  @Test
+  public void testCompactAndReopen() {
+    for (int i = 0; i < 100; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    for (int i = 0; i < 50; i++) {
+      map.remove("k" + i);
+    }
+    map.compact();
+    assertEquals(50, map.size());
+    assertEquals("v99", map.get("k99"));
+    map.dispose();
+    try {
+      new ShardedPersistentMap<Serializable, String>(dataDir, SHARDS - 1);
+      fail("Expected an IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Keys would be looked for in the wrong shards.
+    }
+    map = new ShardedPersistentMap<Serializable, String>(dataDir, SHARDS);
+    assertEquals(50, map.size());
+    assertEquals("v50", map.get("k50"));
+    assertFalse(map.containsKey("k0"));
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2008, Steven R. Farley.  Licensed under a BSD-like license (see LICENSE.TXT).
+ */
+package org.pickle.util;
+
+import java.io.File;
+import java.util.*;
+import org.h2.tools.DeleteDbFiles;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ShardedPersistentQueueTest extends PersistentCollectionTestBase {
+
+  private static final int SHARDS = 3;
+
+  private ShardedPersistentQueue<String> queue;
+
+  // The shards live beside the data directory, which the base class expects to hold only H2 files.
+  private File getShardsDir(File dataDir) {
+    return new File(dataDir.getPath() + "-shards");
+  }
+
+  @Override
+  protected Collection<String> createPersistentCollection(File dataDir) {
+    getShardsDir(dataDir).mkdir();
+    queue = new ShardedPersistentQueue<String>(getShardsDir(dataDir), SHARDS);
+    return queue;
+  }
+
+  @After
+  @Override
+  public void tearDown() {
+    super.tearDown();
+    deleteShards(getShardsDir(getDataDir()));
+  }
+
+  private static void deleteShards(File shardsDir) {
+    File[] shardDirs = shardsDir.listFiles();
+    if (shardDirs != null) {
+      for (File shardDir : shardDirs) {
+        DeleteDbFiles.execute(shardDir.getAbsolutePath(), null, true);
+        assertTrue(shardDir.delete());
+      }
+    }
+    assertTrue(shardsDir.delete());
+  }
+
+  @Test
+  public void testProducersKeepTheirOrder() throws Exception {
+    final int producers = 6;
+    final int count = 50;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      threads.add(new Thread() {
+        public void run() {
+          for (int i = 0; i < count; i++) {
+            queue.offer(producer + ":" + i);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(producers * count, queue.size());
+    for (PersistentQueue<String> shard : queue.getShards()) {
+      assertEquals(producers / SHARDS * count, shard.size());
+    }
+
+    int[] next = new int[producers];
+    String object;
+    while ((object = queue.poll()) != null) {
+      String[] parts = object.split(":");
+      int producer = Integer.parseInt(parts[0]);
+      assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+    }
+    for (int p = 0; p < producers; p++) {
+      assertEquals(count, next[p]);
+    }
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testPollBatchSpansShards() {
+    for (final PersistentQueue<String> shard : queue.getShards()) {
+      shard.offerAll(Arrays.asList(items(0, 1)));
+    }
+    assertEquals(2, queue.pollBatch(2).size());
+    assertEquals(4, queue.pollBatch(10).size());
+    assertTrue(queue.pollBatch(10).isEmpty());
+  }
+
+  @Test
+  public void testCompactAndReopen() {
+    File shardsDir = new File(getDataDir().getPath() + "-reopened");
+    shardsDir.mkdir();
+    ShardedPersistentQueue<String> reopened = new ShardedPersistentQueue<String>(shardsDir, SHARDS);
+    try {
+      reopened.addAll(Arrays.asList(items(0, 99)));
+      for (int i = 0; i < 50; i++) {
+        reopened.poll();
+      }
+      reopened.compact();
+      assertEquals(50, reopened.size());
+      reopened.dispose();
+      try {
+        new ShardedPersistentQueue<String>(shardsDir, SHARDS + 1);
+        fail("Expected an IllegalArgumentException.");
+      } catch (IllegalArgumentException e) {
+        // The queue was created with three shards.
+      }
+      reopened = new ShardedPersistentQueue<String>(shardsDir, SHARDS);
+      assertEquals(50, reopened.size());
+      assertEquals(Arrays.asList(items(50, 99)), new ArrayList<String>(reopened));
+    } finally {
+      reopened.dispose();
+      deleteShards(shardsDir);
+    }
+  }
+}